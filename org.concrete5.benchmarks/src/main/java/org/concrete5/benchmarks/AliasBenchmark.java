@@ -0,0 +1,119 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolve the alias of a method argument like
+ * FactoryMethodMethodReturnTypeEvaluator does (a quarter of the arguments are
+ * not in the alias map, so the fallback alias is used).
+ *
+ * The alias values are not parsed into PDT types, since PDT is not available
+ * outside of Eclipse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AliasBenchmark {
+
+	/**
+	 * The number of queries (a power of 2).
+	 */
+	private final static int QUERIES = 1024;
+
+	/**
+	 * The number of factory methods.
+	 */
+	@Param({ "100", "1000", "10000", "100000" })
+	public int size;
+
+	private File directory;
+	/**
+	 * The storage whose factory methods have just been indexed (their aliases
+	 * are in the heap).
+	 */
+	private FactoryMethodStorage indexedStorage;
+	/**
+	 * The storage whose factory methods have been loaded from disk (their
+	 * aliases are in mapped files).
+	 */
+	private FactoryMethodStorage loadedStorage;
+	private final FactoryMethod[] indexedFactoryMethods = new FactoryMethod[QUERIES];
+	private final FactoryMethod[] loadedFactoryMethods = new FactoryMethod[QUERIES];
+	private final String[] arguments = new String[QUERIES];
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.directory = SyntheticStore.createTempDirectory();
+		File loadedDirectory = new File(this.directory, "loaded"); //$NON-NLS-1$
+		SyntheticStore.createStorage(loadedDirectory, this.size).close();
+		this.loadedStorage = SyntheticStore.openStorage(loadedDirectory);
+		this.indexedStorage = SyntheticStore.createStorage(new File(this.directory, "indexed"), this.size); //$NON-NLS-1$
+		Random random = new Random(42L);
+		for (int i = 0; i < QUERIES; i++) {
+			int methodIndex = random.nextInt(this.size);
+			String path = SyntheticStore.getPath(methodIndex / SyntheticStore.METHODS_PER_FILE);
+			int indexInFile = methodIndex % SyntheticStore.METHODS_PER_FILE;
+			this.indexedFactoryMethods[i] = this.indexedStorage.getSnapshot().getFactoryMethodsForPath(path)
+					.get(indexInFile);
+			this.loadedFactoryMethods[i] = this.loadedStorage.getSnapshot().getFactoryMethodsForPath(path)
+					.get(indexInFile);
+			this.arguments[i] = SyntheticStore
+					.getAliasKey(random.nextInt(SyntheticStore.ALIASES_PER_MAP * 4 / 3));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.loadedStorage.close();
+		this.indexedStorage.close();
+		SyntheticStore.delete(this.directory);
+	}
+
+	private int nextQuery() {
+		this.next = (this.next + 1) & (QUERIES - 1);
+		return this.next;
+	}
+
+	@Benchmark
+	public String resolveIndexed() {
+		int query = this.nextQuery();
+		return resolve(this.indexedFactoryMethods[query], this.arguments[query]);
+	}
+
+	@Benchmark
+	public String resolveLoaded() {
+		int query = this.nextQuery();
+		return resolve(this.loadedFactoryMethods[query], this.arguments[query]);
+	}
+
+	private static String resolve(FactoryMethod factoryMethod, String methodArgument) {
+		if (methodArgument == null || methodArgument.length() == 0
+				|| !factoryMethod.aliases.containsKey(methodArgument)) {
+			return factoryMethod.fallbackAlias;
+		}
+		return factoryMethod.aliases.get(methodArgument);
+	}
+}
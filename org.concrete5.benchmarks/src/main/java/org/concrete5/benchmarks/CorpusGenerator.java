@@ -0,0 +1,431 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generate a synthetic concrete5 code base: PHPSTORM_META files, the classes
+ * they refer to, and PHP files that call the factory methods.
+ *
+ * The generated directory can be imported in Eclipse as a PHP project (so that
+ * it's processed by Concrete5IndexingVisitorExtension), and its meta files can
+ * be read by the benchmarks (see ScanBenchmark).
+ *
+ * Every package has a meta file about as large as the one of concrete5 core:
+ * the scale is the number of packages. The first package overrides the
+ * factory methods of the core classes, the others override the ones of their
+ * own factories (which extend the core Application class).
+ *
+ * Usage: CorpusGenerator [options] &lt;output directory&gt; (use --help to
+ * list the options).
+ */
+public class CorpusGenerator {
+
+	private final static Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private final static String META_FILE_NAME = ".phpstorm.meta.php"; //$NON-NLS-1$
+	private final static String APPLICATION_CLASS = "Concrete\\Core\\Application\\Application"; //$NON-NLS-1$
+	private final static String CONTAINER_CLASS = "Illuminate\\Container\\Container"; //$NON-NLS-1$
+	private final static String FACADE_CLASS = "Concrete\\Core\\Support\\Facade\\Application"; //$NON-NLS-1$
+
+	/**
+	 * The factory methods of concrete5 core (class name, method name; an empty
+	 * class name is a function).
+	 */
+	private final static String[][] CORE_FACTORIES = new String[][] { { APPLICATION_CLASS, "make" }, //$NON-NLS-1$
+			{ APPLICATION_CLASS, "build" }, //$NON-NLS-1$
+			{ APPLICATION_CLASS, "offsetGet" }, //$NON-NLS-1$
+			{ CONTAINER_CLASS, "make" }, //$NON-NLS-1$
+			{ CONTAINER_CLASS, "build" }, //$NON-NLS-1$
+			{ CONTAINER_CLASS, "offsetGet" }, //$NON-NLS-1$
+			{ FACADE_CLASS, "make" }, //$NON-NLS-1$
+			{ FACADE_CLASS, "build" }, //$NON-NLS-1$
+			{ "", "app" }, //$NON-NLS-1$ //$NON-NLS-2$
+	};
+
+	/**
+	 * The method names of the factories of the packages.
+	 */
+	private final static String[] PACKAGE_FACTORY_METHODS = new String[] { "make", "build", "get", "resolve" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+	/**
+	 * The generation options (the defaults generate a code base about as
+	 * large as concrete5 core).
+	 */
+	public static class Options {
+		/**
+		 * The number of packages (every package has its own meta file).
+		 */
+		public int scale = 1;
+		/**
+		 * The number of override() calls of every meta file.
+		 */
+		public int overrides = CORE_FACTORIES.length;
+		/**
+		 * The number of entries of the alias maps.
+		 */
+		public int aliases = 600;
+		/**
+		 * The ratio of the alias values written as <code>\Foo::class</code>
+		 * (the others are strings).
+		 */
+		public double classValues = 0.5;
+		/**
+		 * The ratio of the string alias values that are unions
+		 * (<code>'Foo|Bar'</code>).
+		 */
+		public double unions = 0.1;
+		/**
+		 * The ratio of the string alias values that are arrays
+		 * (<code>'Foo[]'</code>).
+		 */
+		public double arrays = 0.1;
+		/**
+		 * The ratio of the override() calls with a fallback
+		 * (<code>'' =&gt; '@'</code>) entry.
+		 */
+		public double fallbacks = 0.5;
+		/**
+		 * The depth of the class hierarchies of the alias targets.
+		 */
+		public int depth = 3;
+		/**
+		 * Generate the PHP classes (otherwise only the meta files are
+		 * generated).
+		 */
+		public boolean classes = true;
+		/**
+		 * The number of files of every package that call the factory methods.
+		 */
+		public int usages = 10;
+		/**
+		 * The number of factory method calls of every usage file.
+		 */
+		public int calls = 50;
+		/**
+		 * The seed of the random choices (the same options always generate the
+		 * same files).
+		 */
+		public long seed = 42L;
+	}
+
+	private final Options options;
+	private final File directory;
+	private final Random random;
+	private final List<File> metaFiles = new ArrayList<File>();
+	private long bytes = 0L;
+	private int files = 0;
+
+	private CorpusGenerator(Options options, File directory) {
+		this.options = options;
+		this.directory = directory;
+		this.random = new Random(options.seed);
+	}
+
+	/**
+	 * Generate a code base.
+	 *
+	 * @param options
+	 *            The generation options
+	 * @param directory
+	 *            The output directory (the existing files are overwritten)
+	 *
+	 * @return The generated meta files
+	 *
+	 * @throws IOException
+	 */
+	public static List<File> generate(Options options, File directory) throws IOException {
+		CorpusGenerator generator = new CorpusGenerator(options, directory);
+		generator.generate();
+		return generator.metaFiles;
+	}
+
+	private void generate() throws IOException {
+		if (this.options.classes) {
+			this.writeCoreClasses();
+		}
+		for (int packageIndex = 0; packageIndex < this.options.scale; packageIndex++) {
+			this.writePackage(packageIndex);
+		}
+	}
+
+	private static String getPackageNamespace(int packageIndex) {
+		return "Concrete\\Bench\\Package" + packageIndex; //$NON-NLS-1$
+	}
+
+	private static File getPackageDirectory(File directory, int packageIndex) {
+		return new File(directory, "packages/package" + packageIndex); //$NON-NLS-1$
+	}
+
+	private static String getServiceClass(int packageIndex, int aliasIndex) {
+		return getPackageNamespace(packageIndex) + "\\Service\\Service" + aliasIndex; //$NON-NLS-1$
+	}
+
+	private static String getAliasKey(int packageIndex, int aliasIndex) {
+		if (aliasIndex % 3 == 0) {
+			// concrete5 binds many services by the name of their interface
+			return getPackageNamespace(packageIndex) + "\\Contract\\Service" + aliasIndex + "Interface"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return "package" + packageIndex + "/service_" + aliasIndex; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Get the factory methods overridden by the meta file of a package.
+	 */
+	private String[][] getFactories(int packageIndex) {
+		String[][] result = new String[this.options.overrides][];
+		for (int i = 0; i < result.length; i++) {
+			if (packageIndex == 0 && i < CORE_FACTORIES.length) {
+				result[i] = CORE_FACTORIES[i];
+			} else {
+				result[i] = new String[] { getPackageNamespace(packageIndex) + "\\Factory\\Factory" + (i / PACKAGE_FACTORY_METHODS.length), //$NON-NLS-1$
+						PACKAGE_FACTORY_METHODS[i % PACKAGE_FACTORY_METHODS.length] };
+			}
+		}
+		return result;
+	}
+
+	private void writePackage(int packageIndex) throws IOException {
+		File packageDirectory = getPackageDirectory(this.directory, packageIndex);
+		String[][] factories = this.getFactories(packageIndex);
+		this.writeMetaFile(new File(packageDirectory, META_FILE_NAME), packageIndex, factories);
+		if (!this.options.classes) {
+			return;
+		}
+		String namespace = getPackageNamespace(packageIndex);
+		for (int level = 0; level < this.options.depth; level++) {
+			this.writeClass(packageDirectory, namespace + "\\Service\\AbstractLevel" + level, //$NON-NLS-1$
+					level == 0 ? null : namespace + "\\Service\\AbstractLevel" + (level - 1), true, //$NON-NLS-1$
+					"level" + level); //$NON-NLS-1$
+		}
+		for (int aliasIndex = 0; aliasIndex < this.options.aliases; aliasIndex++) {
+			String parent = this.options.depth == 0 ? null
+					: namespace + "\\Service\\AbstractLevel" + (aliasIndex % this.options.depth); //$NON-NLS-1$
+			this.writeClass(packageDirectory, getServiceClass(packageIndex, aliasIndex), parent, false,
+					"service" + aliasIndex); //$NON-NLS-1$
+		}
+		Set<String> factoryClasses = new HashSet<String>();
+		for (String[] factory : factories) {
+			if (factory[0].startsWith(namespace) && factoryClasses.add(factory[0])) {
+				this.writeFactoryClass(packageDirectory, factory[0], APPLICATION_CLASS);
+			}
+		}
+		for (int usageIndex = 0; usageIndex < this.options.usages; usageIndex++) {
+			this.writeUsageFile(packageDirectory, packageIndex, usageIndex, factories);
+		}
+	}
+
+	private void writeMetaFile(File file, int packageIndex, String[][] factories) throws IOException {
+		StringBuilder map = new StringBuilder();
+		for (int aliasIndex = 0; aliasIndex < this.options.aliases; aliasIndex++) {
+			map.append("\t\t'").append(getAliasKey(packageIndex, aliasIndex)).append("' => "); //$NON-NLS-1$ //$NON-NLS-2$
+			String target = getServiceClass(packageIndex, aliasIndex);
+			if (this.random.nextDouble() < this.options.classValues) {
+				map.append('\\').append(target).append("::class"); //$NON-NLS-1$
+			} else {
+				map.append('\'').append(target);
+				double kind = this.random.nextDouble();
+				if (kind < this.options.unions) {
+					map.append('|').append(getServiceClass(packageIndex, (aliasIndex + 1) % this.options.aliases));
+				} else if (kind < this.options.unions + this.options.arrays) {
+					map.append("[]"); //$NON-NLS-1$
+				}
+				map.append('\'');
+			}
+			map.append(",\n"); //$NON-NLS-1$
+		}
+		StringBuilder source = new StringBuilder();
+		source.append("<?php\n\nnamespace PHPSTORM_META {\n"); //$NON-NLS-1$
+		for (String[] factory : factories) {
+			source.append("\n\toverride(\\"); //$NON-NLS-1$
+			source.append(factory[0].isEmpty() ? factory[1] : factory[0] + "::" + factory[1]); //$NON-NLS-1$
+			source.append("(0), map([\n"); //$NON-NLS-1$
+			if (this.random.nextDouble() < this.options.fallbacks) {
+				source.append("\t\t'' => '@',\n"); //$NON-NLS-1$
+			}
+			source.append(map);
+			source.append("\t]));\n"); //$NON-NLS-1$
+		}
+		source.append("}\n"); //$NON-NLS-1$
+		this.write(file, source);
+		this.metaFiles.add(file);
+	}
+
+	private void writeCoreClasses() throws IOException {
+		File coreDirectory = new File(this.directory, "core"); //$NON-NLS-1$
+		this.writeFactoryClass(coreDirectory, CONTAINER_CLASS, null);
+		this.writeFactoryClass(coreDirectory, APPLICATION_CLASS, CONTAINER_CLASS);
+		this.writeFactoryClass(coreDirectory, FACADE_CLASS, null);
+		this.write(new File(coreDirectory, "helpers.php"), //$NON-NLS-1$
+				"<?php\n\nfunction app($abstract = null, array $parameters = [])\n{\n}\n"); //$NON-NLS-1$
+	}
+
+	private void writeFactoryClass(File directory, String className, String parentClass) throws IOException {
+		StringBuilder body = new StringBuilder();
+		for (String methodName : new String[] { "make", "build", "get", "resolve", "offsetGet" }) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+			body.append("\tpublic function ").append(methodName).append("($abstract, array $parameters = [])\n\t{\n\t}\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		this.writeClassFile(directory, className, "class", parentClass, body); //$NON-NLS-1$
+	}
+
+	private void writeClass(File directory, String className, String parentClass, boolean isAbstract,
+			String methodName) throws IOException {
+		StringBuilder body = new StringBuilder();
+		body.append("\tpublic function ").append(methodName).append("()\n\t{\n\t\treturn $this;\n\t}\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		this.writeClassFile(directory, className, isAbstract ? "abstract class" : "class", parentClass, body); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void writeClassFile(File directory, String className, String keyword, String parentClass,
+			CharSequence body) throws IOException {
+		int separator = className.lastIndexOf('\\');
+		String namespace = className.substring(0, separator);
+		String shortName = className.substring(separator + 1);
+		StringBuilder source = new StringBuilder();
+		source.append("<?php\n\nnamespace ").append(namespace).append(";\n\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		source.append(keyword).append(' ').append(shortName);
+		if (parentClass != null) {
+			source.append(" extends \\").append(parentClass); //$NON-NLS-1$
+		}
+		source.append("\n{\n").append(body).append("}\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		this.write(new File(directory, "src/" + className.replace('\\', '/') + ".php"), source); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void writeUsageFile(File directory, int packageIndex, int usageIndex, String[][] factories)
+			throws IOException {
+		StringBuilder source = new StringBuilder();
+		source.append("<?php\n\nnamespace ").append(getPackageNamespace(packageIndex)).append("\\Usage;\n\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		source.append("class Usage").append(usageIndex).append("\n{\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		for (int call = 0; call < this.options.calls; call++) {
+			String[] factory = factories[this.random.nextInt(factories.length)];
+			int aliasIndex = this.random.nextInt(Math.max(1, this.options.aliases));
+			String argument = "'" + getAliasKey(packageIndex, aliasIndex) + "'"; //$NON-NLS-1$ //$NON-NLS-2$
+			source.append("\tpublic function call").append(call).append("()\n\t{\n"); //$NON-NLS-1$ //$NON-NLS-2$
+			if (factory[0].isEmpty()) {
+				source.append("\t\t$service = \\").append(factory[1]).append('(').append(argument).append(");\n"); //$NON-NLS-1$
+			} else {
+				source.append("\t\t$factory = new \\").append(factory[0]).append("();\n"); //$NON-NLS-1$ //$NON-NLS-2$
+				source.append("\t\t$service = $factory->").append(factory[1]).append('(').append(argument) //$NON-NLS-1$
+						.append(");\n"); //$NON-NLS-1$
+			}
+			source.append("\t\treturn $service;\n\t}\n"); //$NON-NLS-1$
+		}
+		source.append("}\n"); //$NON-NLS-1$
+		this.write(new File(directory, "src/Usage/Usage" + usageIndex + ".php"), source); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private void write(File file, CharSequence contents) throws IOException {
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create the directory " + parent); //$NON-NLS-1$
+		}
+		byte[] data = contents.toString().getBytes(UTF8);
+		try (OutputStream stream = new FileOutputStream(file)) {
+			stream.write(data);
+		}
+		this.bytes += data.length;
+		this.files++;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Options options = new Options();
+		File directory = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help")) { //$NON-NLS-1$
+					printUsage();
+					return;
+				}
+				if (!arg.startsWith("--")) { //$NON-NLS-1$
+					if (directory != null) {
+						throw new IllegalArgumentException("Only one output directory can be specified"); //$NON-NLS-1$
+					}
+					directory = new File(arg);
+					continue;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value of " + arg); //$NON-NLS-1$
+				}
+				String value = args[++i];
+				switch (arg) {
+					case "--scale": //$NON-NLS-1$
+						options.scale = Integer.parseInt(value);
+						break;
+					case "--overrides": //$NON-NLS-1$
+						options.overrides = Integer.parseInt(value);
+						break;
+					case "--aliases": //$NON-NLS-1$
+						options.aliases = Integer.parseInt(value);
+						break;
+					case "--class-values": //$NON-NLS-1$
+						options.classValues = Double.parseDouble(value);
+						break;
+					case "--unions": //$NON-NLS-1$
+						options.unions = Double.parseDouble(value);
+						break;
+					case "--arrays": //$NON-NLS-1$
+						options.arrays = Double.parseDouble(value);
+						break;
+					case "--fallbacks": //$NON-NLS-1$
+						options.fallbacks = Double.parseDouble(value);
+						break;
+					case "--depth": //$NON-NLS-1$
+						options.depth = Integer.parseInt(value);
+						break;
+					case "--classes": //$NON-NLS-1$
+						options.classes = Boolean.parseBoolean(value);
+						break;
+					case "--usages": //$NON-NLS-1$
+						options.usages = Integer.parseInt(value);
+						break;
+					case "--calls": //$NON-NLS-1$
+						options.calls = Integer.parseInt(value);
+						break;
+					case "--seed": //$NON-NLS-1$
+						options.seed = Long.parseLong(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + arg); //$NON-NLS-1$
+				}
+			}
+			if (directory == null) {
+				throw new IllegalArgumentException("Missing output directory"); //$NON-NLS-1$
+			}
+		} catch (IllegalArgumentException x) {
+			System.err.println(x.getMessage());
+			printUsage();
+			System.exit(1);
+			return;
+		}
+		CorpusGenerator generator = new CorpusGenerator(options, directory);
+		generator.generate();
+		System.out.println("Generated " + generator.files + " files (" + generator.bytes + " bytes, " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ generator.metaFiles.size() + " meta files) in " + directory); //$NON-NLS-1$
+	}
+
+	private static void printUsage() {
+		Options defaults = new Options();
+		System.err.println("Usage: CorpusGenerator [options] <output directory>"); //$NON-NLS-1$
+		System.err.println("Options:"); //$NON-NLS-1$
+		System.err.println("  --scale <n>           number of packages (default: " + defaults.scale + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --overrides <n>       override() calls per meta file (default: " + defaults.overrides + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --aliases <n>         entries per alias map (default: " + defaults.aliases + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --class-values <r>    ratio of ::class values (default: " + defaults.classValues + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --unions <r>          ratio of string values with unions (default: " + defaults.unions + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --arrays <r>          ratio of string values with arrays (default: " + defaults.arrays + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --fallbacks <r>       ratio of maps with a '' key (default: " + defaults.fallbacks + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --depth <n>           depth of the class hierarchies (default: " + defaults.depth + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --classes <bool>      generate the PHP classes (default: " + defaults.classes + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --usages <n>          files calling the factory methods, per package (default: " + defaults.usages + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --calls <n>           factory method calls per usage file (default: " + defaults.calls + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+		System.err.println("  --seed <n>            seed of the random choices (default: " + defaults.seed + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,104 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.storage.FactoryMethodSnapshot;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Look up the factory methods like the type inference does (a quarter of the
+ * method names are not factory methods).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+	/**
+	 * The number of queries (a power of 2).
+	 */
+	private final static int QUERIES = 1024;
+
+	/**
+	 * The number of factory methods.
+	 */
+	@Param({ "100", "1000", "10000", "100000" })
+	public int size;
+
+	private File directory;
+	private FactoryMethodStorage storage;
+	private FactoryMethodSnapshot snapshot;
+	private final String[] methodNames = new String[QUERIES];
+	private final String[] classNames = new String[QUERIES];
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.directory = SyntheticStore.createTempDirectory();
+		SyntheticStore.createStorage(this.directory, this.size).close();
+		this.storage = SyntheticStore.openStorage(this.directory);
+		this.snapshot = this.storage.getSnapshot();
+		Random random = new Random(42L);
+		for (int i = 0; i < QUERIES; i++) {
+			int methodIndex = random.nextInt(this.size);
+			if (i % 4 == 3) {
+				this.methodNames[i] = "missing" + methodIndex; //$NON-NLS-1$
+			} else {
+				// The method names are case insensitive
+				String methodName = SyntheticStore.getMethodName(methodIndex);
+				this.methodNames[i] = i % 2 == 0 ? methodName : methodName.toUpperCase();
+			}
+			this.classNames[i] = SyntheticStore.getClassName(methodIndex);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.storage.close();
+		SyntheticStore.delete(this.directory);
+	}
+
+	private int nextQuery() {
+		this.next = (this.next + 1) & (QUERIES - 1);
+		return this.next;
+	}
+
+	@Benchmark
+	public List<FactoryMethod> getFactoryMethodsByMethodName() {
+		return this.snapshot.getFactoryMethodsByMethodName(this.methodNames[this.nextQuery()],
+				FactoryMethod.TYPE_INSTANCEMETHOD);
+	}
+
+	@Benchmark
+	public FactoryMethod getFactoryMethod() {
+		int query = this.nextQuery();
+		return this.snapshot.getFactoryMethod(this.methodNames[query], this.classNames[query],
+				FactoryMethod.TYPE_INSTANCEMETHOD);
+	}
+
+	@Benchmark
+	public boolean mightHaveFactoryMethods() {
+		return this.snapshot.mightHaveFactoryMethods(this.methodNames[this.nextQuery()]);
+	}
+}
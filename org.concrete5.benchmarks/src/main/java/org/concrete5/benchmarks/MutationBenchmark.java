@@ -0,0 +1,117 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Change the factory methods of a loaded storage (every change publishes a new
+ * snapshot; nothing is written to disk).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MutationBenchmark {
+
+	private final static String ADDED_PATH = "/bench/concrete/src/Added/.phpstorm.meta.php"; //$NON-NLS-1$
+	private final static String RENAMED_PATH = "/bench/concrete/src/Renamed/.phpstorm.meta.php"; //$NON-NLS-1$
+	private final static String NOT_DEFINER_PATH = "/bench/concrete/src/Package0/Controller.php"; //$NON-NLS-1$
+
+	/**
+	 * The number of factory methods.
+	 */
+	@Param({ "100", "1000", "10000", "100000" })
+	public int size;
+
+	private File directory;
+	private FactoryMethodStorage storage;
+	private FactoryMethod addedFactoryMethod;
+	private boolean renamed = false;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.directory = SyntheticStore.createTempDirectory();
+		this.storage = SyntheticStore.createStorage(this.directory, this.size);
+		this.addedFactoryMethod = new FactoryMethod(ADDED_PATH, "Concrete\\Bench\\Added", "make", 0, //$NON-NLS-1$ //$NON-NLS-2$
+				FactoryMethod.TYPE_INSTANCEMETHOD, SyntheticStore.createAliases(0), ""); //$NON-NLS-1$
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.storage.discard();
+		SyntheticStore.delete(this.directory);
+	}
+
+	/**
+	 * Remove the factory method added by addFactoryMethod() before every call.
+	 */
+	@State(Scope.Thread)
+	public static class WithoutAddedMethod {
+		@Setup(Level.Invocation)
+		public void setUp(MutationBenchmark benchmark) {
+			benchmark.storage.resetForPath(ADDED_PATH);
+		}
+	}
+
+	/**
+	 * Add the factory method removed by resetForPath() before every call.
+	 */
+	@State(Scope.Thread)
+	public static class WithAddedMethod {
+		@Setup(Level.Invocation)
+		public void setUp(MutationBenchmark benchmark) {
+			benchmark.storage.addFactoryMethod(benchmark.addedFactoryMethod);
+		}
+	}
+
+	@Benchmark
+	public void addFactoryMethod(WithoutAddedMethod state) {
+		this.storage.addFactoryMethod(this.addedFactoryMethod);
+	}
+
+	@Benchmark
+	public void resetForPath(WithAddedMethod state) {
+		this.storage.resetForPath(ADDED_PATH);
+	}
+
+	/**
+	 * Reset a resource that doesn't define factory methods (the most common
+	 * case while indexing).
+	 */
+	@Benchmark
+	public void resetForPathNotDefiner() {
+		this.storage.resetForPath(NOT_DEFINER_PATH);
+	}
+
+	/**
+	 * Move the factory methods of a file back and forth.
+	 */
+	@Benchmark
+	public void renameForPath() {
+		if (this.renamed) {
+			this.storage.renameForPath(RENAMED_PATH, SyntheticStore.getPath(0));
+		} else {
+			this.storage.renameForPath(SyntheticStore.getPath(0), RENAMED_PATH);
+		}
+		this.renamed = !this.renamed;
+	}
+}
@@ -0,0 +1,94 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.index.MetaFileScanner;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read the meta files generated by CorpusGenerator, at 1, 10 and 100 times the
+ * size of concrete5 core (use the gc profiler to measure the allocations).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+	/**
+	 * The number of packages of the generated code base.
+	 */
+	@Param({ "1", "10", "100" })
+	public int scale;
+
+	private File directory;
+	private final List<String> paths = new ArrayList<String>();
+	private final List<String> sources = new ArrayList<String>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.directory = SyntheticStore.createTempDirectory();
+		CorpusGenerator.Options options = new CorpusGenerator.Options();
+		options.scale = this.scale;
+		options.classes = false;
+		File corpusDirectory = new File(this.directory, "corpus"); //$NON-NLS-1$
+		for (File metaFile : CorpusGenerator.generate(options, corpusDirectory)) {
+			this.paths.add(metaFile.getPath().substring(corpusDirectory.getPath().length()).replace('\\', '/'));
+			this.sources.add(new String(Files.readAllBytes(metaFile.toPath()), "UTF-8")); //$NON-NLS-1$
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticStore.delete(this.directory);
+	}
+
+	/**
+	 * Extract the factory methods of all the meta files.
+	 */
+	@Benchmark
+	public int scan() {
+		int result = 0;
+		for (int i = 0; i < this.sources.size(); i++) {
+			result += MetaFileScanner.scan(this.paths.get(i), this.sources.get(i)).size();
+		}
+		return result;
+	}
+
+	/**
+	 * Extract the factory methods of all the meta files, and publish them in an
+	 * empty storage (like MetaFileScanJob does when a project is opened).
+	 */
+	@Benchmark
+	public void scanAndStore() {
+		FactoryMethodStorage storage = SyntheticStore.openStorage(new File(this.directory, "storage")); //$NON-NLS-1$
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		for (int i = 0; i < this.sources.size(); i++) {
+			List<FactoryMethod> factoryMethods = MetaFileScanner.scan(this.paths.get(i), this.sources.get(i));
+			batch.replaceForPath(this.paths.get(i), factoryMethods);
+		}
+		batch.commit();
+		storage.discard();
+	}
+}
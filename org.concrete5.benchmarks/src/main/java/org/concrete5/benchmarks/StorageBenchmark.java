@@ -0,0 +1,109 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.storage.FactoryMethodSerializer;
+import org.concrete5.core.storage.FactoryMethodSnapshot;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load and save the factory methods from/to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+	/**
+	 * The number of factory methods.
+	 */
+	@Param({ "100", "1000", "10000", "100000" })
+	public int size;
+
+	/**
+	 * The storage loaded by load() (never kept open, so that the segments are
+	 * actually read from disk).
+	 */
+	private File directory;
+	/**
+	 * The storage changed by saveChangedFile().
+	 */
+	private File changedDirectory;
+	private FactoryMethodStorage storage;
+	private FactoryMethod[] allFactoryMethods;
+	private File segmentFile;
+	/**
+	 * The two versions of the file changed by saveChangedFile().
+	 */
+	private List<List<FactoryMethod>> changedFileVersions;
+	private int changedFileVersion = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.directory = SyntheticStore.createTempDirectory();
+		SyntheticStore.createStorage(this.directory, this.size).close();
+		this.changedDirectory = SyntheticStore.createTempDirectory();
+		this.storage = SyntheticStore.createStorage(this.changedDirectory, this.size);
+		this.allFactoryMethods = this.storage.getAllFactoryMethods();
+		this.segmentFile = new File(this.changedDirectory, "segment"); //$NON-NLS-1$
+		this.changedFileVersions = Arrays.asList(SyntheticStore.createFile(0, 1, 0),
+				SyntheticStore.createFile(0, 1, 1));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.storage.close();
+		SyntheticStore.delete(this.directory);
+		SyntheticStore.delete(this.changedDirectory);
+	}
+
+	/**
+	 * Load all the factory methods of a project (and release them).
+	 */
+	@Benchmark
+	public FactoryMethodSnapshot load() {
+		FactoryMethodStorage storage = SyntheticStore.openStorage(this.directory);
+		FactoryMethodSnapshot result = storage.getSnapshot();
+		storage.close();
+		return result;
+	}
+
+	/**
+	 * Change the factory methods of a file and write the change to disk.
+	 */
+	@Benchmark
+	public void saveChangedFile() {
+		this.changedFileVersion = 1 - this.changedFileVersion;
+		this.storage.replaceForPath(SyntheticStore.getPath(0), this.changedFileVersions.get(this.changedFileVersion));
+		this.storage.flush();
+	}
+
+	/**
+	 * Serialize all the factory methods to a single file.
+	 */
+	@Benchmark
+	public void writeAll() throws IOException {
+		FactoryMethodSerializer.write(this.segmentFile, this.allFactoryMethods);
+	}
+}
@@ -0,0 +1,167 @@
+package org.concrete5.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.storage.FactoryMethodStorage;
+
+/**
+ * Generate synthetic sets of factory methods.
+ *
+ * The factory methods are shaped like the ones of the concrete5 meta files:
+ * they are grouped in files, a few method names (make, build, ...) are used
+ * by many classes, and many methods share the same alias maps.
+ */
+final class SyntheticStore {
+
+	/**
+	 * The number of factory methods defined by every file.
+	 */
+	final static int METHODS_PER_FILE = 20;
+	/**
+	 * The number of different alias maps.
+	 */
+	final static int ALIAS_MAPS = 64;
+	/**
+	 * The number of entries of every alias map.
+	 */
+	final static int ALIASES_PER_MAP = 32;
+
+	/**
+	 * The method names shared by many classes.
+	 */
+	final static String[] COMMON_METHOD_NAMES = new String[] { "make", "build", "get", "offsetGet", "app", "resolve", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+			"singleton", "factory" }; //$NON-NLS-1$ //$NON-NLS-2$
+	/**
+	 * The number of different method names used only by some classes.
+	 */
+	final static int SPECIFIC_METHOD_NAMES = 1000;
+
+	private SyntheticStore() {
+	}
+
+	/**
+	 * Get the path of a synthetic file.
+	 */
+	static String getPath(int fileIndex) {
+		return "/bench/concrete/src/Package" + fileIndex + "/.phpstorm.meta.php"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	static String getClassName(int methodIndex) {
+		return "Concrete\\Bench\\Package" + (methodIndex / METHODS_PER_FILE) + "\\Service" + methodIndex; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	static String getMethodName(int methodIndex) {
+		if (methodIndex % 4 != 0) {
+			return COMMON_METHOD_NAMES[methodIndex % COMMON_METHOD_NAMES.length];
+		}
+		return "method" + (methodIndex % SPECIFIC_METHOD_NAMES); //$NON-NLS-1$
+	}
+
+	static String getAliasKey(int aliasIndex) {
+		return "service/key" + aliasIndex; //$NON-NLS-1$
+	}
+
+	/**
+	 * Create an alias map (the values contain unions, arrays and passthrough
+	 * aliases).
+	 */
+	static Map<String, String> createAliases(int mapIndex) {
+		Map<String, String> result = new HashMap<String, String>();
+		for (int i = 0; i < ALIASES_PER_MAP; i++) {
+			String target = "\\Concrete\\Bench\\Target" + mapIndex + "\\Class" + i; //$NON-NLS-1$ //$NON-NLS-2$
+			switch (i % 8) {
+				case 1:
+					target += "|\\Concrete\\Bench\\Common"; //$NON-NLS-1$
+					break;
+				case 2:
+					target += "[]"; //$NON-NLS-1$
+					break;
+				case 3:
+					target = "@"; //$NON-NLS-1$
+					break;
+			}
+			result.put(getAliasKey(i), target);
+		}
+		return result;
+	}
+
+	/**
+	 * Create the factory methods of a file.
+	 *
+	 * @param variant
+	 *            Files created with different variants have different alias
+	 *            maps
+	 */
+	static List<FactoryMethod> createFile(int fileIndex, int count, int variant) {
+		String path = getPath(fileIndex);
+		List<FactoryMethod> result = new ArrayList<FactoryMethod>(count);
+		for (int i = 0; i < count; i++) {
+			int methodIndex = fileIndex * METHODS_PER_FILE + i;
+			result.add(new FactoryMethod(path, getClassName(methodIndex), getMethodName(methodIndex), 0,
+					FactoryMethod.TYPE_INSTANCEMETHOD, createAliases((methodIndex + variant) % ALIAS_MAPS),
+					i % 2 == 0 ? "" : "@")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return result;
+	}
+
+	/**
+	 * Create a set of factory methods.
+	 *
+	 * @return The factory methods, by definer path
+	 */
+	static Map<String, List<FactoryMethod>> create(int size) {
+		Map<String, List<FactoryMethod>> result = new LinkedHashMap<String, List<FactoryMethod>>();
+		for (int fileIndex = 0; fileIndex * METHODS_PER_FILE < size; fileIndex++) {
+			result.put(getPath(fileIndex),
+					createFile(fileIndex, Math.min(METHODS_PER_FILE, size - fileIndex * METHODS_PER_FILE), 0));
+		}
+		return result;
+	}
+
+	/**
+	 * Create a storage containing a set of factory methods, and write it to
+	 * disk.
+	 *
+	 * @param directory
+	 *            The directory that will contain the storage data
+	 */
+	static FactoryMethodStorage createStorage(File directory, int size) {
+		FactoryMethodStorage result = openStorage(directory);
+		FactoryMethodStorage.Batch batch = result.beginBatch();
+		for (Map.Entry<String, List<FactoryMethod>> file : create(size).entrySet()) {
+			batch.replaceForPath(file.getKey(), file.getValue());
+		}
+		batch.commit();
+		result.flush();
+		return result;
+	}
+
+	/**
+	 * Open the storage contained in a directory.
+	 */
+	static FactoryMethodStorage openStorage(File directory) {
+		return new FactoryMethodStorage(new File(directory, "data"), new File(directory, "shared")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	static File createTempDirectory() throws IOException {
+		return Files.createTempDirectory("c5-bench").toFile(); //$NON-NLS-1$
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
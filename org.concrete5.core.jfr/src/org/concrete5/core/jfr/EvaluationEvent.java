@@ -0,0 +1,32 @@
+package org.concrete5.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The evaluation of the return type of a factory method call.
+ */
+@Name("org.concrete5.Evaluation")
+@Label("Goal Evaluation")
+@Category("concrete5")
+@Description("The evaluation of the return type of a factory method call")
+class EvaluationEvent extends Event {
+
+	@Label("Method")
+	String methodName;
+
+	@Label("Class")
+	@Description("The type the method is called on")
+	String className;
+
+	@Label("Hierarchy Depth")
+	@Description("The number of parent class levels walked to find the factory method")
+	int hierarchyDepth;
+
+	@Label("Cache Hit")
+	@Description("Whether the result was in the return type cache")
+	boolean cacheHit;
+}
@@ -0,0 +1,24 @@
+package org.concrete5.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The indexing of a source module (including the time spent by PDT).
+ */
+@Name("org.concrete5.Indexing")
+@Label("Module Indexing")
+@Category("concrete5")
+@Description("The indexing of a PHP source module")
+class IndexingEvent extends Event {
+
+	@Label("Path")
+	String path;
+
+	@Label("Factory Methods")
+	@Description("The number of factory methods found in the module")
+	int factoryMethods;
+}
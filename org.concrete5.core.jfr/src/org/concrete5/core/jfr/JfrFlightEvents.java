@@ -0,0 +1,76 @@
+package org.concrete5.core.jfr;
+
+import org.concrete5.core.metrics.FlightEvents;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+
+/**
+ * The Java Flight Recorder implementation of the events of the plugin (loaded
+ * by FlightEvents).
+ */
+public class JfrFlightEvents extends FlightEvents {
+
+	public JfrFlightEvents() {
+		// Make the events configurable before they are first committed
+		FlightRecorder.register(IndexingEvent.class);
+		FlightRecorder.register(StorageReadEvent.class);
+		FlightRecorder.register(StorageWriteEvent.class);
+		FlightRecorder.register(EvaluationEvent.class);
+	}
+
+	private static Event begin(Event event) {
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	protected Object newIndexingEvent() {
+		return begin(new IndexingEvent());
+	}
+
+	@Override
+	protected void commitIndexingEvent(Object event, String path, int factoryMethods) {
+		IndexingEvent indexingEvent = (IndexingEvent) event;
+		indexingEvent.path = path;
+		indexingEvent.factoryMethods = factoryMethods;
+		indexingEvent.commit();
+	}
+
+	@Override
+	protected Object newStorageReadEvent() {
+		return begin(new StorageReadEvent());
+	}
+
+	@Override
+	protected Object newStorageWriteEvent() {
+		return begin(new StorageWriteEvent());
+	}
+
+	@Override
+	protected void commitStorageEvent(Object event, long bytes, int entries) {
+		StorageEvent storageEvent = (StorageEvent) event;
+		storageEvent.bytes = bytes;
+		storageEvent.entries = entries;
+		storageEvent.commit();
+	}
+
+	@Override
+	protected Object newEvaluationEvent() {
+		return begin(new EvaluationEvent());
+	}
+
+	@Override
+	protected void commitEvaluationEvent(Object event, String methodName, String className, int hierarchyDepth,
+			boolean cacheHit) {
+		EvaluationEvent evaluationEvent = (EvaluationEvent) event;
+		evaluationEvent.methodName = methodName;
+		evaluationEvent.className = className;
+		evaluationEvent.hierarchyDepth = hierarchyDepth;
+		evaluationEvent.cacheHit = cacheHit;
+		evaluationEvent.commit();
+	}
+}
@@ -0,0 +1,22 @@
+package org.concrete5.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * The fields shared by the storage events.
+ */
+@Category("concrete5")
+abstract class StorageEvent extends Event {
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("Entries")
+	@Description("The number of factory methods")
+	int entries;
+}
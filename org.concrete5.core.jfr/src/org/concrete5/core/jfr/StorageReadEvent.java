@@ -0,0 +1,14 @@
+package org.concrete5.core.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The load of the factory methods of a project from disk.
+ */
+@Name("org.concrete5.StorageRead")
+@Label("Storage Read")
+@Description("The load of the factory methods of a project from disk")
+class StorageReadEvent extends StorageEvent {
+}
@@ -0,0 +1,14 @@
+package org.concrete5.core.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The write of the changed factory methods of a project to disk.
+ */
+@Name("org.concrete5.StorageWrite")
+@Label("Storage Write")
+@Description("The write of the changed factory methods of a project to disk")
+class StorageWriteEvent extends StorageEvent {
+}
@@ -0,0 +1,126 @@
+package org.concrete5.core.factory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.eclipse.dltk.evaluation.types.AmbiguousType;
+import org.eclipse.dltk.evaluation.types.MultiTypeType;
+import org.eclipse.dltk.ti.types.IEvaluatedType;
+import org.eclipse.php.internal.core.typeinference.PHPClassType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check how alias values are parsed, and that they are compiled only once.
+ */
+@SuppressWarnings("restriction")
+public class AliasTargetTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static void assertClassType(String expectedName, IEvaluatedType type) {
+		assertTrue(String.valueOf(type), type instanceof PHPClassType);
+		assertEquals(expectedName, type.getTypeName());
+	}
+
+	private static IEvaluatedType assertArrayType(IEvaluatedType type) {
+		assertTrue(String.valueOf(type), type instanceof MultiTypeType);
+		List<IEvaluatedType> types = ((MultiTypeType) type).getTypes();
+		assertEquals(1, types.size());
+		return types.get(0);
+	}
+
+	@Test
+	public void testClassNames() {
+		// The indexer removes the leading backslash of the ::class values
+		assertClassType("\\Concrete\\Core\\Cache\\Cache", //$NON-NLS-1$
+				AliasTarget.compile("Concrete\\Core\\Cache\\Cache").resolve(null)); //$NON-NLS-1$
+		assertClassType("\\Concrete\\Core\\Cache\\Cache", //$NON-NLS-1$
+				AliasTarget.compile("\\Concrete\\Core\\Cache\\Cache").resolve(null)); //$NON-NLS-1$
+		assertTrue(!(AliasTarget.compile("string").resolve(null) instanceof PHPClassType)); //$NON-NLS-1$
+		assertClassType("\\Foo", assertArrayType(AliasTarget.compile("Foo[]").resolve(null))); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testUnions() {
+		IEvaluatedType type = AliasTarget.compile("Foo|Bar[]|string").resolve("x"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(String.valueOf(type), type instanceof AmbiguousType);
+		IEvaluatedType[] types = ((AmbiguousType) type).getPossibleTypes();
+		assertEquals(3, types.length);
+		assertClassType("\\Foo", types[0]); //$NON-NLS-1$
+		assertClassType("\\Bar", assertArrayType(types[1])); //$NON-NLS-1$
+		assertTrue(!(types[2] instanceof PHPClassType));
+		// Empty parts are ignored
+		assertClassType("\\Foo", AliasTarget.compile("|Foo|").resolve(null)); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testPassthrough() {
+		assertClassType("\\Foo\\Bar", AliasTarget.compile("@").resolve("Foo\\Bar")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertClassType("\\Foo", assertArrayType(AliasTarget.compile("@[]").resolve("Foo"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertNull(AliasTarget.compile("@").resolve(null)); //$NON-NLS-1$
+		// Without the argument, only the other parts are left
+		assertClassType("\\Foo", AliasTarget.compile("@|Foo").resolve("")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		IEvaluatedType type = AliasTarget.compile("@|Foo").resolve("Bar"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(String.valueOf(type), type instanceof AmbiguousType);
+		assertClassType("\\Bar", ((AmbiguousType) type).getPossibleTypes()[0]); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testEmpty() {
+		assertNull(AliasTarget.compile(null).resolve("Foo")); //$NON-NLS-1$
+		assertNull(AliasTarget.compile("").resolve("Foo")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull(AliasTarget.compile("|").resolve("Foo")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testFixedTypesAreShared() {
+		AliasTarget target = AliasTarget.compile("Foo|Bar"); //$NON-NLS-1$
+		assertSame(target.resolve("a"), target.resolve("b")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testCompiledOnce() throws IOException {
+		File dataDirectory = this.folder.newFolder("project"); //$NON-NLS-1$
+		File sharedDirectory = this.folder.newFolder("shared"); //$NON-NLS-1$
+		Map<String, String> aliases = new HashMap<String, String>();
+		aliases.put("cache", "Concrete\\Core\\Cache\\Cache"); //$NON-NLS-1$ //$NON-NLS-2$
+		FactoryMethodStorage storage = new FactoryMethodStorage(dataDirectory, sharedDirectory);
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		batch.addFactoryMethod(new FactoryMethod("/a.php", "Core", "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				aliases, "@")); //$NON-NLS-1$
+		batch.addFactoryMethod(new FactoryMethod("/a.php", "Core", "build", 0, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				new HashMap<String, String>(aliases), "@")); //$NON-NLS-1$
+		batch.commit();
+		List<FactoryMethod> factoryMethods = storage.getSnapshot().getFactoryMethodsForPath("/a.php"); //$NON-NLS-1$
+		FactoryMethod make = factoryMethods.get(0);
+		FactoryMethod build = factoryMethods.get(1);
+		AliasTarget target = make.getAliasTarget("cache"); //$NON-NLS-1$
+		assertSame(target, make.getAliasTarget("cache")); //$NON-NLS-1$
+		// The factory methods with the same aliases share their compiled values
+		assertSame(target, build.getAliasTarget("cache")); //$NON-NLS-1$
+		assertSame(make.getAliasTarget("other"), make.getAliasTarget("")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertClassType("\\Other", make.getAliasTarget("other").resolve("Other")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		storage.close();
+
+		// The same goes for the factory methods read from disk
+		storage = new FactoryMethodStorage(dataDirectory, sharedDirectory);
+		make = storage.getSnapshot().getFactoryMethodsForPath("/a.php").get(0); //$NON-NLS-1$
+		target = make.getAliasTarget("cache"); //$NON-NLS-1$
+		assertClassType("\\Concrete\\Core\\Cache\\Cache", target.resolve("cache")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertSame(target, make.getAliasTarget("cache")); //$NON-NLS-1$
+		assertSame(make.getAliasTarget("other"), make.getAliasTarget(null)); //$NON-NLS-1$
+		storage.close();
+	}
+}
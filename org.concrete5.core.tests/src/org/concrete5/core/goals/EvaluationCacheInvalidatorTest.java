@@ -0,0 +1,143 @@
+package org.concrete5.core.goals;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.concrete5.core.builder.ProjectData;
+import org.concrete5.core.builder.ProjectDataFactory;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.dltk.core.ElementChangedEvent;
+import org.eclipse.dltk.core.IModelElement;
+import org.eclipse.dltk.core.IModelElementDelta;
+import org.eclipse.dltk.ti.types.IEvaluatedType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check which changes of the PHP model discard the cached evaluation results.
+ */
+public class EvaluationCacheInvalidatorTest {
+
+	private IProject project;
+	private ProjectData projectData;
+	private final AtomicInteger loads = new AtomicInteger();
+
+	/**
+	 * Create an object that implements an interface, and returns the values
+	 * of some of its methods (the other ones return null).
+	 */
+	private static <T> T mock(Class<T> type, final Map<String, Object> values) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("equals")) { //$NON-NLS-1$
+							return Boolean.valueOf(proxy == args[0]);
+						}
+						if (name.equals("hashCode")) { //$NON-NLS-1$
+							return Integer.valueOf(System.identityHashCode(proxy));
+						}
+						if (values.containsKey(name)) {
+							return values.get(name);
+						}
+						Class<?> returnType = method.getReturnType();
+						if (returnType == int.class) {
+							return Integer.valueOf(0);
+						}
+						if (returnType == boolean.class) {
+							return Boolean.FALSE;
+						}
+						return null;
+					}
+				}));
+	}
+
+	private static IModelElementDelta delta(int elementType, int kind, int flags, IModelElementDelta... children) {
+		Map<String, Object> elementValues = new HashMap<String, Object>();
+		elementValues.put("getElementType", Integer.valueOf(elementType)); //$NON-NLS-1$
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getElement", mock(IModelElement.class, elementValues)); //$NON-NLS-1$
+		values.put("getKind", Integer.valueOf(kind)); //$NON-NLS-1$
+		values.put("getFlags", Integer.valueOf(flags)); //$NON-NLS-1$
+		values.put("getAffectedChildren", children); //$NON-NLS-1$
+		return mock(IModelElementDelta.class, values);
+	}
+
+	/**
+	 * A change of a source module of a project.
+	 */
+	private static IModelElementDelta moduleChange(IModelElementDelta module) {
+		return delta(IModelElement.SCRIPT_MODEL, IModelElementDelta.CHANGED, IModelElementDelta.F_CHILDREN,
+				delta(IModelElement.SCRIPT_PROJECT, IModelElementDelta.CHANGED, IModelElementDelta.F_CHILDREN,
+						module));
+	}
+
+	@Before
+	public void setUp() {
+		this.project = mock(IProject.class, new HashMap<String, Object>());
+		this.projectData = ProjectDataFactory.get(this.project);
+	}
+
+	@After
+	public void tearDown() {
+		ProjectDataFactory.release(this.project, true, null);
+	}
+
+	/**
+	 * Send a change of the PHP model, and tell if it discarded the cached
+	 * results.
+	 */
+	private boolean clearsCache(IModelElementDelta delta) {
+		EvaluationCache.Loader<IEvaluatedType> loader = new EvaluationCache.Loader<IEvaluatedType>() {
+			@Override
+			public IEvaluatedType load() {
+				EvaluationCacheInvalidatorTest.this.loads.incrementAndGet();
+				return null;
+			}
+		};
+		EvaluationCache<String, IEvaluatedType> cache = this.projectData.getReturnTypeCache();
+		cache.get(1L, "key", loader); //$NON-NLS-1$
+		int loads = this.loads.get();
+		new EvaluationCacheInvalidator()
+				.elementChanged(new ElementChangedEvent(delta, ElementChangedEvent.POST_CHANGE));
+		cache.get(1L, "key", loader); //$NON-NLS-1$
+		return this.loads.get() != loads;
+	}
+
+	@Test
+	public void testHierarchyChanges() {
+		assertTrue(this.clearsCache(moduleChange(
+				delta(IModelElement.SOURCE_MODULE, IModelElementDelta.ADDED, 0))));
+		assertTrue(this.clearsCache(moduleChange(
+				delta(IModelElement.SOURCE_MODULE, IModelElementDelta.REMOVED, 0))));
+		// Content changes without details
+		assertTrue(this.clearsCache(moduleChange(
+				delta(IModelElement.SOURCE_MODULE, IModelElementDelta.CHANGED, IModelElementDelta.F_CONTENT))));
+		assertTrue(this.clearsCache(moduleChange(delta(IModelElement.SOURCE_MODULE,
+				IModelElementDelta.CHANGED, IModelElementDelta.F_CONTENT | IModelElementDelta.F_FINE_GRAINED,
+				delta(IModelElement.TYPE, IModelElementDelta.ADDED, 0)))));
+		assertTrue(this.clearsCache(moduleChange(delta(IModelElement.SOURCE_MODULE,
+				IModelElementDelta.CHANGED, IModelElementDelta.F_CONTENT | IModelElementDelta.F_FINE_GRAINED,
+				delta(IModelElement.TYPE, IModelElementDelta.CHANGED, IModelElementDelta.F_CONTENT)))));
+	}
+
+	@Test
+	public void testMemberChanges() {
+		assertFalse(this.clearsCache(moduleChange(delta(IModelElement.SOURCE_MODULE,
+				IModelElementDelta.CHANGED, IModelElementDelta.F_CONTENT | IModelElementDelta.F_FINE_GRAINED,
+				delta(IModelElement.TYPE, IModelElementDelta.CHANGED, IModelElementDelta.F_CHILDREN,
+						delta(IModelElement.METHOD, IModelElementDelta.ADDED, 0),
+						delta(IModelElement.FIELD, IModelElementDelta.REMOVED, 0))))));
+		assertFalse(this.clearsCache(moduleChange(delta(IModelElement.SOURCE_MODULE,
+				IModelElementDelta.CHANGED, IModelElementDelta.F_CONTENT | IModelElementDelta.F_FINE_GRAINED))));
+	}
+}
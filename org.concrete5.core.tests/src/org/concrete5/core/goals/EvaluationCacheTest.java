@@ -0,0 +1,223 @@
+package org.concrete5.core.goals;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Check the generations, the eviction and the coalesced computations of the
+ * evaluation caches.
+ */
+public class EvaluationCacheTest {
+
+	private final static long TIMEOUT = 10000L;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * A loader that counts its calls.
+	 */
+	private static class CountingLoader implements EvaluationCache.Loader<String> {
+		final AtomicInteger calls = new AtomicInteger();
+		private final String value;
+
+		CountingLoader(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public String load() {
+			this.calls.incrementAndGet();
+			return this.value;
+		}
+	}
+
+	/**
+	 * A loader that waits until it's released.
+	 */
+	private static class BlockingLoader implements EvaluationCache.Loader<String> {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final String value;
+
+		BlockingLoader(String value) {
+			this.value = value;
+		}
+
+		@Override
+		public String load() {
+			this.started.countDown();
+			try {
+				this.release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.value == null) {
+				throw new IllegalStateException();
+			}
+			return this.value;
+		}
+	}
+
+	private Future<String> getLater(final EvaluationCache<String, String> cache, final String key,
+			final EvaluationCache.Loader<String> loader) {
+		return this.executor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return cache.get(1L, key, loader);
+			}
+		});
+	}
+
+	/**
+	 * Give a request the time to find the pending computation of another
+	 * thread (if it's late, it finds the computed value instead, so the
+	 * results are the same).
+	 */
+	private static void awaitWaiting() throws InterruptedException {
+		Thread.sleep(100L);
+	}
+
+	@Test
+	public void testGenerations() {
+		EvaluationCache<String, String> cache = new EvaluationCache<String, String>(10);
+		CountingLoader first = new CountingLoader("first"); //$NON-NLS-1$
+		assertEquals("first", cache.get(1L, "key", first)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("first", cache.get(1L, "key", first)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, first.calls.get());
+
+		// A newer generation discards the old entries
+		CountingLoader second = new CountingLoader("second"); //$NON-NLS-1$
+		assertEquals("second", cache.get(2L, "key", second)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, second.calls.get());
+
+		// The values computed with outdated data are not cached
+		CountingLoader outdated = new CountingLoader("outdated"); //$NON-NLS-1$
+		assertEquals("outdated", cache.get(1L, "key", outdated)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("outdated", cache.get(1L, "other", outdated)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("second", cache.get(2L, "key", second)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, second.calls.get());
+		CountingLoader other = new CountingLoader("other"); //$NON-NLS-1$
+		assertEquals("other", cache.get(2L, "other", other)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, other.calls.get());
+
+		cache.clear();
+		assertEquals("second", cache.get(2L, "key", second)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(2, second.calls.get());
+	}
+
+	@Test
+	public void testEviction() {
+		EvaluationCache<String, String> cache = new EvaluationCache<String, String>(2);
+		CountingLoader loader = new CountingLoader(null);
+		cache.get(1L, "a", loader); //$NON-NLS-1$
+		cache.get(1L, "b", loader); //$NON-NLS-1$
+		// Null values are cached too
+		assertNull(cache.get(1L, "a", loader)); //$NON-NLS-1$
+		assertEquals(2, loader.calls.get());
+		// b is the least recently used entry
+		cache.get(1L, "c", loader); //$NON-NLS-1$
+		cache.get(1L, "a", loader); //$NON-NLS-1$
+		assertEquals(3, loader.calls.get());
+		cache.get(1L, "b", loader); //$NON-NLS-1$
+		assertEquals(4, loader.calls.get());
+	}
+
+	@Test
+	public void testRecursiveRequest() {
+		final EvaluationCache<String, String> cache = new EvaluationCache<String, String>(10, TIMEOUT);
+		String value = cache.get(1L, "key", new EvaluationCache.Loader<String>() { //$NON-NLS-1$
+			@Override
+			public String load() {
+				return "outer+" + cache.get(1L, "key", new CountingLoader("inner")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+		});
+		assertEquals("outer+inner", value); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testCoalescedRequests() throws Exception {
+		EvaluationCache<String, String> cache = new EvaluationCache<String, String>(10, TIMEOUT);
+		BlockingLoader leader = new BlockingLoader("leader"); //$NON-NLS-1$
+		Future<String> leaderResult = this.getLater(cache, "key", leader); //$NON-NLS-1$
+		assertTrue(leader.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		CountingLoader waiter = new CountingLoader("waiter"); //$NON-NLS-1$
+		Future<String> waiterResult = this.getLater(cache, "key", waiter); //$NON-NLS-1$
+		awaitWaiting();
+		leader.release.countDown();
+		assertEquals("leader", leaderResult.get(TIMEOUT, TimeUnit.MILLISECONDS)); //$NON-NLS-1$
+		// The waiting request got the value of the leader
+		assertEquals("leader", waiterResult.get(TIMEOUT, TimeUnit.MILLISECONDS)); //$NON-NLS-1$
+		assertEquals(0, waiter.calls.get());
+		assertEquals("leader", cache.get(1L, "key", waiter)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(0, waiter.calls.get());
+	}
+
+	@Test
+	public void testAwaitTimeout() throws Exception {
+		EvaluationCache<String, String> cache = new EvaluationCache<String, String>(10, 1L);
+		BlockingLoader leader = new BlockingLoader("leader"); //$NON-NLS-1$
+		Future<String> leaderResult = this.getLater(cache, "key", leader); //$NON-NLS-1$
+		assertTrue(leader.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		// The leader takes too long: the value is computed by the waiting
+		// thread
+		CountingLoader waiter = new CountingLoader("waiter"); //$NON-NLS-1$
+		assertEquals("waiter", cache.get(1L, "key", waiter)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, waiter.calls.get());
+		leader.release.countDown();
+		assertEquals("leader", leaderResult.get(TIMEOUT, TimeUnit.MILLISECONDS)); //$NON-NLS-1$
+		assertEquals("leader", cache.get(1L, "key", waiter)); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testFailedLeader() throws Exception {
+		EvaluationCache<String, String> cache = new EvaluationCache<String, String>(10, TIMEOUT);
+		BlockingLoader leader = new BlockingLoader(null);
+		Future<String> leaderResult = this.getLater(cache, "key", leader); //$NON-NLS-1$
+		assertTrue(leader.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		CountingLoader waiter = new CountingLoader("waiter"); //$NON-NLS-1$
+		Future<String> waiterResult = this.getLater(cache, "key", waiter); //$NON-NLS-1$
+		awaitWaiting();
+		leader.release.countDown();
+		try {
+			leaderResult.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause() instanceof IllegalStateException);
+		}
+		// The waiting request computed the value itself
+		assertEquals("waiter", waiterResult.get(TIMEOUT, TimeUnit.MILLISECONDS)); //$NON-NLS-1$
+		assertEquals(1, waiter.calls.get());
+	}
+
+	@Test
+	public void testClearDuringComputation() throws Exception {
+		EvaluationCache<String, String> cache = new EvaluationCache<String, String>(10, TIMEOUT);
+		BlockingLoader leader = new BlockingLoader("stale"); //$NON-NLS-1$
+		Future<String> leaderResult = this.getLater(cache, "key", leader); //$NON-NLS-1$
+		assertTrue(leader.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		cache.clear();
+		leader.release.countDown();
+		assertEquals("stale", leaderResult.get(TIMEOUT, TimeUnit.MILLISECONDS)); //$NON-NLS-1$
+		// The value computed before the cache was cleared is not kept
+		CountingLoader loader = new CountingLoader("fresh"); //$NON-NLS-1$
+		assertEquals("fresh", cache.get(1L, "key", loader)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, loader.calls.get());
+	}
+}
@@ -0,0 +1,172 @@
+package org.concrete5.core.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.eclipse.dltk.ast.declarations.ModuleDeclaration;
+import org.eclipse.dltk.compiler.env.ModuleSource;
+import org.eclipse.php.internal.core.compiler.ast.parser.PHPSourceParserFactory;
+import org.junit.Test;
+
+/**
+ * Check that MetaFileScanner extracts the same factory methods as
+ * Concrete5IndexingVisitorExtension.
+ */
+@SuppressWarnings("restriction")
+public class MetaFileScannerTest {
+
+	private final static String PATH = "/project/.phpstorm.meta.php"; //$NON-NLS-1$
+
+	/**
+	 * Extract the factory methods of a source with both the scanner and the
+	 * indexer, and check that they are the same.
+	 *
+	 * @return The descriptions of the factory methods (see describe())
+	 */
+	private static List<String> extract(String source) throws Exception {
+		List<String> scanned = describe(MetaFileScanner.scan(PATH, source));
+		ModuleDeclaration module = (ModuleDeclaration) new PHPSourceParserFactory()
+				.parse(new ModuleSource(PATH, source), null);
+		List<String> indexed = describe(Concrete5IndexingVisitorExtension.extractFactoryMethods(PATH, module));
+		assertEquals(indexed, scanned);
+		return scanned;
+	}
+
+	private static List<String> describe(List<FactoryMethod> factoryMethods) {
+		List<String> result = new ArrayList<String>(factoryMethods.size());
+		for (FactoryMethod factoryMethod : factoryMethods) {
+			assertEquals(PATH, factoryMethod.definerResourcePath);
+			Map<String, String> aliases = new TreeMap<String, String>(factoryMethod.aliases);
+			result.add(factoryMethod.className + "::" + factoryMethod.methodName + '(' //$NON-NLS-1$
+					+ factoryMethod.discrimintatorIndex + ") " + aliases //$NON-NLS-1$
+					+ " '" + factoryMethod.fallbackAlias + '\''); //$NON-NLS-1$
+		}
+		return result;
+	}
+
+	@Test
+	public void testValues() throws Exception {
+		List<String> factoryMethods = extract("<?php\n" //$NON-NLS-1$
+				+ "namespace PHPSTORM_META {\n" //$NON-NLS-1$
+				+ "    override(\\Concrete\\Core\\Application\\Application::make(0), map([\n" //$NON-NLS-1$
+				+ "        'app' => \\Concrete\\Core\\Application\\Application::class,\n" //$NON-NLS-1$
+				+ "        'cache' => 'Concrete\\Core\\Cache\\Cache',\n" //$NON-NLS-1$
+				+ "        \"config\" => '\\Concrete\\Core\\Config\\Repository|\\Illuminate\\Config\\Repository',\n" //$NON-NLS-1$
+				+ "        'empty' => '',\n" //$NON-NLS-1$
+				+ "        'constant' => \\Concrete\\Core\\Cache\\Cache::ENABLED,\n" //$NON-NLS-1$
+				+ "        'concatenated' => 'Concrete' . 'Cache',\n" //$NON-NLS-1$
+				+ "        'interpolated' => \"Cache$name\",\n" //$NON-NLS-1$
+				+ "        '' => '@',\n" //$NON-NLS-1$
+				+ "    ]));\n" //$NON-NLS-1$
+				+ "    override(\\Core::make(1), map(array(\n" //$NON-NLS-1$
+				+ "        '' => \\Concrete\\Core\\Entity\\Package::class,\n" //$NON-NLS-1$
+				+ "        'site' => \\Concrete\\Core\\Site\\Service::class\n" //$NON-NLS-1$
+				+ "    )));\n" //$NON-NLS-1$
+				+ "    override(\\app(0), map([\n" //$NON-NLS-1$
+				+ "        'url' => 'League\\Url\\UrlInterface',\n" //$NON-NLS-1$
+				+ "    ]));\n" //$NON-NLS-1$
+				+ "}\n"); //$NON-NLS-1$
+		assertEquals(Arrays.asList(
+				"Concrete\\Core\\Application\\Application::make(0) {app=Concrete\\Core\\Application\\Application, " //$NON-NLS-1$
+						+ "cache=Concrete\\Core\\Cache\\Cache, " //$NON-NLS-1$
+						+ "config=\\Concrete\\Core\\Config\\Repository|\\Illuminate\\Config\\Repository} '@'", //$NON-NLS-1$
+				"Core::make(1) {site=Concrete\\Core\\Site\\Service} 'Concrete\\Core\\Entity\\Package'", //$NON-NLS-1$
+				"::app(0) {url=League\\Url\\UrlInterface} ''"), //$NON-NLS-1$
+				factoryMethods);
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		List<String> factoryMethods = extract("<?php\n" //$NON-NLS-1$
+				+ "namespace PHPSTORM_META;\n" //$NON-NLS-1$
+				+ "override(\\Core::make(0), map([\n" //$NON-NLS-1$
+				+ "    0 => 'Number',\n" //$NON-NLS-1$
+				+ "    \\Concrete\\Core\\Cache\\Cache::class => 'ClassName',\n" //$NON-NLS-1$
+				+ "    [] => 'Array',\n" //$NON-NLS-1$
+				+ "    ['a', 'b'] => 'Array',\n" //$NON-NLS-1$
+				+ "    'list',\n" //$NON-NLS-1$
+				+ "    \"{$key}\" => 'Interpolated',\n" //$NON-NLS-1$
+				+ "    'a[]' => 'Brackets',\n" //$NON-NLS-1$
+				+ "    'cache' => 'First',\n" //$NON-NLS-1$
+				+ "    'cache' => 'Last',\n" //$NON-NLS-1$
+				+ "]));\n" //$NON-NLS-1$
+				+ "override(\\Core::build(0), map([]));\n" //$NON-NLS-1$
+				+ "override(\\Core::get(0), map(['' => '']));\n"); //$NON-NLS-1$
+		assertEquals(Collections.singletonList("Core::make(0) {a[]=Brackets, cache=Last} ''"), factoryMethods); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testComments() throws Exception {
+		List<String> factoryMethods = extract("<?php\n" //$NON-NLS-1$
+				+ "namespace PHPSTORM_META {\n" //$NON-NLS-1$
+				+ "    // override(\\Core::commented(0), map(['a' => 'A']));\n" //$NON-NLS-1$
+				+ "    # override(\\Core::commented(1), map(['a' => 'A']));\n" //$NON-NLS-1$
+				+ "    /* override(\\Core::commented(2), map(['a' => 'A'])); } */\n" //$NON-NLS-1$
+				+ "    /**\n" //$NON-NLS-1$
+				+ "     * The factory of the services { \n" //$NON-NLS-1$
+				+ "     */\n" //$NON-NLS-1$
+				+ "    override(/* factory */ \\Core::make(0), map([ // the services\n" //$NON-NLS-1$
+				+ "        'a' /* key */ => /* value */ 'A', # first\n" //$NON-NLS-1$
+				+ "        // 'b' => 'B',\n" //$NON-NLS-1$
+				+ "        'c' => 'C', /* last */\n" //$NON-NLS-1$
+				+ "    ]));\n" //$NON-NLS-1$
+				+ "}\n"); //$NON-NLS-1$
+		assertEquals(Collections.singletonList("Core::make(0) {a=A, c=C} ''"), factoryMethods); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testHeredocs() throws Exception {
+		List<String> factoryMethods = extract("<?php\n" //$NON-NLS-1$
+				+ "namespace PHPSTORM_META {\n" //$NON-NLS-1$
+				+ "    $text = <<<EOT\n" //$NON-NLS-1$
+				+ "override(\\Core::heredoc(0), map(['a' => 'A']));\n" //$NON-NLS-1$
+				+ "}\n" //$NON-NLS-1$
+				+ "EOT;\n" //$NON-NLS-1$
+				+ "    $text = <<<'EOT'\n" //$NON-NLS-1$
+				+ "override(\\Core::nowdoc(0), map(['a' => 'A'])); {\n" //$NON-NLS-1$
+				+ "EOT;\n" //$NON-NLS-1$
+				+ "    override(\\Core::make(0), map([\n" //$NON-NLS-1$
+				+ "        'heredoc' => <<<EOT\n" //$NON-NLS-1$
+				+ "Concrete\\Core\\{$name}\n" //$NON-NLS-1$
+				+ "EOT\n" //$NON-NLS-1$
+				+ "        ,\n" //$NON-NLS-1$
+				+ "        'a' => 'A',\n" //$NON-NLS-1$
+				+ "    ]));\n" //$NON-NLS-1$
+				+ "}\n"); //$NON-NLS-1$
+		assertEquals(Collections.singletonList("Core::make(0) {a=A} ''"), factoryMethods); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testNestedBraces() throws Exception {
+		List<String> factoryMethods = extract("<?php\n" //$NON-NLS-1$
+				+ "namespace PHPSTORM_META {\n" //$NON-NLS-1$
+				+ "    if (true) {\n" //$NON-NLS-1$
+				+ "        override(\\Core::make(0), map([\n" //$NON-NLS-1$
+				+ "            'closure' => function () { return ['a' => 'A']; },\n" //$NON-NLS-1$
+				+ "            'a' => 'A',\n" //$NON-NLS-1$
+				+ "            'call' => \\strtolower(\"{$name}\"),\n" //$NON-NLS-1$
+				+ "            'b' => \\Concrete\\Core\\B::class,\n" //$NON-NLS-1$
+				+ "        ]));\n" //$NON-NLS-1$
+				+ "    }\n" //$NON-NLS-1$
+				+ "    function factories()\n" //$NON-NLS-1$
+				+ "    {\n" //$NON-NLS-1$
+				+ "        override(\\Core::build(0), map([\n" //$NON-NLS-1$
+				+ "            'c' => 'C',\n" //$NON-NLS-1$
+				+ "        ]));\n" //$NON-NLS-1$
+				+ "    }\n" //$NON-NLS-1$
+				+ "}\n" //$NON-NLS-1$
+				+ "namespace Other {\n" //$NON-NLS-1$
+				+ "    override(\\Core::other(0), map(['a' => 'A']));\n" //$NON-NLS-1$
+				+ "}\n"); //$NON-NLS-1$
+		assertEquals(Arrays.asList("Core::make(0) {a=A, b=Concrete\\Core\\B} ''", //$NON-NLS-1$
+				"Core::build(0) {c=C} ''"), //$NON-NLS-1$
+				factoryMethods);
+	}
+}
@@ -0,0 +1,99 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check which factory method has precedence when more than one resource
+ * defines the same method and class names.
+ */
+public class FactoryMethodIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dataDirectory;
+	private File sharedDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dataDirectory = this.folder.newFolder("project"); //$NON-NLS-1$
+		this.sharedDirectory = this.folder.newFolder("shared"); //$NON-NLS-1$
+	}
+
+	private static FactoryMethod create(String path, String fallback) {
+		return new FactoryMethod(path, "Core", "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$
+				Collections.<String, String>emptyMap(), fallback);
+	}
+
+	private static String getWinner(FactoryMethodStorage storage) {
+		FactoryMethod factoryMethod = storage.getSnapshot().getFactoryMethod("make", "core", //$NON-NLS-1$ //$NON-NLS-2$
+				FactoryMethod.TYPE_INSTANCEMETHOD);
+		return factoryMethod == null ? null : factoryMethod.definerResourcePath + ' ' + factoryMethod.fallbackAlias;
+	}
+
+	@Test
+	public void testDuplicateDefiners() {
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		batch.addFactoryMethod(create("/b.php", "B")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertEquals("/b.php B", getWinner(storage)); //$NON-NLS-1$
+		batch.addFactoryMethod(create("/a.php", "A")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/c.php", "C")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertEquals("/a.php A", getWinner(storage)); //$NON-NLS-1$
+
+		// Reindexing a definer doesn't change the precedence
+		batch.replaceForPath("/a.php", Arrays.asList(create("/a.php", "A2"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		assertEquals("/a.php A2", getWinner(storage)); //$NON-NLS-1$
+		batch.replaceForPath("/b.php", Arrays.asList(create("/b.php", "B2"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		assertEquals("/a.php A2", getWinner(storage)); //$NON-NLS-1$
+
+		batch.resetForPath("/a.php"); //$NON-NLS-1$
+		batch.commit();
+		assertEquals("/b.php B2", getWinner(storage)); //$NON-NLS-1$
+		batch.renameForPath("/c.php", "/0.php"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertEquals("/0.php C", getWinner(storage)); //$NON-NLS-1$
+		batch.resetForPath("/0.php"); //$NON-NLS-1$
+		batch.resetForPath("/b.php"); //$NON-NLS-1$
+		batch.commit();
+		assertNull(getWinner(storage));
+		storage.close();
+	}
+
+	@Test
+	public void testDuplicatesInResource() throws IOException {
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		batch.replaceForPath("/a.php", Arrays.asList(create("/a.php", "first"), create("/a.php", "second"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		batch.replaceForPath("/b.php", Arrays.asList(create("/b.php", "B"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		assertEquals("/a.php first", getWinner(storage)); //$NON-NLS-1$
+
+		// Only the new factory method is added to the index
+		batch.replaceForPath("/a.php", Arrays.asList(create("/a.php", "zero"), create("/a.php", "first"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		batch.commit();
+		assertEquals("/a.php zero", getWinner(storage)); //$NON-NLS-1$
+		storage.close();
+
+		// The same factory method has precedence after loading them from disk
+		storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		assertEquals("/a.php zero", getWinner(storage)); //$NON-NLS-1$
+		storage.close();
+	}
+}
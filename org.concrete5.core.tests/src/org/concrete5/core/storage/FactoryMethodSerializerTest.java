@@ -0,0 +1,124 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check that the factory methods written by FactoryMethodSerializer are read
+ * back unchanged.
+ */
+public class FactoryMethodSerializerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Map<String, String> aliases = new LinkedHashMap<String, String>();
+		aliases.put("cache", "\\Concrete\\Core\\Cache\\Cache"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("helper/form", "\\Concrete\\Core\\Form\\Service\\Form|\\Concrete\\Core\\Form\\Form"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("entities", "\\Concrete\\Core\\Entity\\Site\\Site[]"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("passthrough", "@"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("mixed", "@|\\Foo\\Bar[]|int"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("n\u00e4me", "\\V\u00e4lue\\\ud83d\ude00"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("", "\\Empty\\Key"); //$NON-NLS-1$ //$NON-NLS-2$
+		FactoryMethod[] factoryMethods = new FactoryMethod[] {
+				new FactoryMethod("/site/.phpstorm.meta.php", "Concrete\\Core\\Application\\Application", "make", 0, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						FactoryMethod.TYPE_INSTANCEMETHOD, aliases, "@"), //$NON-NLS-1$
+				new FactoryMethod("/site/.phpstorm.meta.php", "", "app", 1, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						aliases, "@[]"), //$NON-NLS-1$
+				new FactoryMethod("/site/other.php", "Core", "build", 2, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						new HashMap<String, String>(), ""), //$NON-NLS-1$
+		};
+		FactoryMethod[] read = this.writeAndRead(factoryMethods);
+		assertEquals(factoryMethods.length, read.length);
+		for (int i = 0; i < factoryMethods.length; i++) {
+			assertSameFactoryMethod(factoryMethods[i], read[i]);
+		}
+	}
+
+	@Test
+	public void testNullStrings() throws IOException {
+		Map<String, String> aliases = new HashMap<String, String>();
+		aliases.put("key", null); //$NON-NLS-1$
+		FactoryMethod[] read = this.writeAndRead(new FactoryMethod[] {
+				new FactoryMethod("/a.php", null, "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD, aliases, null) }); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(1, read.length);
+		// Null strings are saved as empty strings
+		assertEquals("", read[0].className); //$NON-NLS-1$
+		assertEquals("", read[0].fallbackAlias); //$NON-NLS-1$
+		assertEquals("", read[0].aliases.get("key")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testAliasLookups() throws IOException {
+		Map<String, String> aliases = new HashMap<String, String>();
+		for (int i = 0; i < 100; i++) {
+			aliases.put("alias" + i, "\\Class" + i); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		FactoryMethod[] read = this.writeAndRead(new FactoryMethod[] {
+				new FactoryMethod("/a.php", "A", "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD, aliases, "") }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		Map<String, String> readAliases = read[0].aliases;
+		assertEquals(aliases.size(), readAliases.size());
+		for (Map.Entry<String, String> alias : aliases.entrySet()) {
+			assertTrue(readAliases.containsKey(alias.getKey()));
+			assertEquals(alias.getValue(), readAliases.get(alias.getKey()));
+		}
+		assertFalse(readAliases.containsKey("alias100")); //$NON-NLS-1$
+		assertNull(readAliases.get("Alias1")); //$NON-NLS-1$
+		assertNull(readAliases.get(Integer.valueOf(1)));
+		assertEquals(aliases, readAliases);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		FactoryMethod[] read = this.writeAndRead(new FactoryMethod[0]);
+		assertNotNull(read);
+		assertEquals(0, read.length);
+	}
+
+	@Test
+	public void testOtherFormats() throws IOException {
+		File file = this.folder.newFile();
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			stream.write(new byte[] { 'N', 'O', 'T', 'C', '5', 'F', 'M', 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+		}
+		assertNull(FactoryMethodSerializer.read(file));
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			stream.write(FactoryMethodSerializer.MAGIC);
+			stream.write(new byte[] { 0, 0, 0, (byte) (FactoryMethodSerializer.VERSION + 1), 0, 0, 0, 0, 0, 0, 0, 0 });
+		}
+		assertNull(FactoryMethodSerializer.read(file));
+	}
+
+	private FactoryMethod[] writeAndRead(FactoryMethod[] factoryMethods) throws IOException {
+		File file = this.folder.newFile();
+		FactoryMethodSerializer.write(file, factoryMethods);
+		return FactoryMethodSerializer.read(file);
+	}
+
+	static void assertSameFactoryMethod(FactoryMethod expected, FactoryMethod actual) {
+		assertEquals(expected.definerResourcePath, actual.definerResourcePath);
+		assertEquals(expected.className, actual.className);
+		assertEquals(expected.methodName, actual.methodName);
+		assertEquals(expected.discrimintatorIndex, actual.discrimintatorIndex);
+		assertEquals(expected.type, actual.type);
+		assertEquals(expected.fallbackAlias, actual.fallbackAlias);
+		assertEquals(expected.aliases, actual.aliases);
+	}
+}
@@ -0,0 +1,253 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check how the changes of a batch are applied to the factory methods.
+ */
+public class FactoryMethodStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dataDirectory;
+	private File sharedDirectory;
+	private FactoryMethodStorage storage;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dataDirectory = this.folder.newFolder("project"); //$NON-NLS-1$
+		this.sharedDirectory = this.folder.newFolder("shared"); //$NON-NLS-1$
+		this.storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+	}
+
+	@After
+	public void tearDown() {
+		this.storage.close();
+	}
+
+	private static FactoryMethod create(String path, String methodName) {
+		return new FactoryMethod(path, "Core", methodName, 0, FactoryMethod.TYPE_INSTANCEMETHOD); //$NON-NLS-1$
+	}
+
+	private List<String> getMethodNames(String path) {
+		List<FactoryMethod> factoryMethods = this.storage.getSnapshot().getFactoryMethodsForPath(path);
+		if (factoryMethods == null) {
+			return null;
+		}
+		String[] result = new String[factoryMethods.size()];
+		for (int i = 0; i < result.length; i++) {
+			assertEquals(path, factoryMethods.get(i).definerResourcePath);
+			result[i] = factoryMethods.get(i).methodName;
+		}
+		return Arrays.asList(result);
+	}
+
+	@Test
+	public void testAddAndReset() {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.addFactoryMethod(create("/a.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/a.php", "build")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/b.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/a.php")); //$NON-NLS-1$
+		batch.commit();
+		assertEquals(Arrays.asList("make", "build"), this.getMethodNames("/a.php")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertEquals(2, this.storage.getSnapshot()
+				.getFactoryMethodsByMethodName("MAKE", FactoryMethod.TYPE_INSTANCEMETHOD).size()); //$NON-NLS-1$
+
+		// ADD appends to the published factory methods
+		batch.addFactoryMethod(create("/b.php", "build")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertEquals(Arrays.asList("make", "build"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		// The changes are applied in order
+		batch.resetForPath("/a.php"); //$NON-NLS-1$
+		batch.addFactoryMethod(create("/a.php", "get")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.resetForPath("/b.php"); //$NON-NLS-1$
+		batch.commit();
+		assertEquals(Arrays.asList("get"), this.getMethodNames("/a.php")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/b.php")); //$NON-NLS-1$
+		assertEquals(0, this.storage.getSnapshot()
+				.getFactoryMethodsByMethodName("make", FactoryMethod.TYPE_INSTANCEMETHOD).size()); //$NON-NLS-1$
+		assertEquals(1, this.storage.getSnapshot().getAllFactoryMethods().length);
+
+		// Resetting a path without factory methods doesn't change anything
+		FactoryMethodSnapshot snapshot = this.storage.getSnapshot();
+		batch.resetForPath("/c.php"); //$NON-NLS-1$
+		batch.commit();
+		assertSame(snapshot, this.storage.getSnapshot());
+	}
+
+	@Test
+	public void testRename() {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.addFactoryMethod(create("/a.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		batch.renameForPath("/a.php", "/b.php"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/a.php")); //$NON-NLS-1$
+		assertEquals(Arrays.asList("make"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// Renaming factory methods added by the same batch
+		batch.addFactoryMethod(create("/c.php", "build")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.renameForPath("/c.php", "/d.php"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertNull(this.getMethodNames("/c.php")); //$NON-NLS-1$
+		assertEquals(Arrays.asList("build"), this.getMethodNames("/d.php")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// Renaming a path without factory methods doesn't change anything
+		batch.renameForPath("/e.php", "/b.php"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertEquals(Arrays.asList("make"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	@Test
+	public void testRenameOverwritesTarget() throws IOException {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.addFactoryMethod(create("/a.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/b.php", "build")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/b.php", "get")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		this.storage.flush();
+		batch.renameForPath("/a.php", "/b.php"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		// The factory methods of the target are replaced, not merged
+		assertEquals(Arrays.asList("make"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/a.php")); //$NON-NLS-1$
+		assertEquals(0, this.storage.getSnapshot()
+				.getFactoryMethodsByMethodName("build", FactoryMethod.TYPE_INSTANCEMETHOD).size()); //$NON-NLS-1$
+		assertEquals(1, this.storage.getSnapshot().getAllFactoryMethods().length);
+	}
+
+	@Test
+	public void testReplaceForPath() {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		FactoryMethod make = create("/a.php", "make"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.replaceForPath("/a.php", Arrays.asList(make, create("/other.php", "build"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		assertEquals(Arrays.asList("make", "build"), this.getMethodNames("/a.php")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/other.php")); //$NON-NLS-1$
+
+		// Replacing with the same factory methods keeps the published snapshot
+		FactoryMethodSnapshot snapshot = this.storage.getSnapshot();
+		batch.replaceForPath("/a.php", //$NON-NLS-1$
+				Arrays.asList(create("/a.php", "make"), create("/a.php", "build"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		batch.commit();
+		assertSame(snapshot, this.storage.getSnapshot());
+
+		batch.replaceForPath("/a.php", Arrays.asList(create("/a.php", "get"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		assertNotSame(snapshot, this.storage.getSnapshot());
+		assertEquals(Arrays.asList("get"), this.getMethodNames("/a.php")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		batch.replaceForPath("/a.php", Collections.<FactoryMethod>emptyList()); //$NON-NLS-1$
+		batch.commit();
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/a.php")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testInitializeForPath() {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.addFactoryMethod(create("/a.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		// The factory methods found meanwhile are kept
+		batch.initializeForPath("/a.php", Arrays.asList(create("/a.php", "build"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.initializeForPath("/b.php", //$NON-NLS-1$
+				Arrays.asList(create("/b.php", "build"), create("/b.php", "get"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		batch.commit();
+		assertEquals(Arrays.asList("make"), this.getMethodNames("/a.php")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(Arrays.asList("build", "get"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	@Test
+	public void testStaleReset() {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.replaceForPath("/a.php", Arrays.asList(create("/a.php", "make"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.replaceForPath("/b.php", Arrays.asList(create("/b.php", "make"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		// The files are removed, and the removals are queued
+		long since = this.storage.getChangeCount();
+		// The files are created again and indexed before the removals are
+		// applied (with new and with the same factory methods)
+		batch.replaceForPath("/a.php", Arrays.asList(create("/a.php", "build"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		batch.replaceForPath("/b.php", Arrays.asList(create("/b.php", "make"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		batch.resetForPath("/a.php", since); //$NON-NLS-1$
+		batch.resetForPath("/b.php", since); //$NON-NLS-1$
+		batch.commit();
+		assertEquals(Arrays.asList("build"), this.getMethodNames("/a.php")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(Arrays.asList("make"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// The removals that are not stale are applied
+		since = this.storage.getChangeCount();
+		batch.resetForPath("/a.php", since); //$NON-NLS-1$
+		batch.commit();
+		assertNull(this.getMethodNames("/a.php")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testStaleRename() {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.addFactoryMethod(create("/a.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/c.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		long since = this.storage.getChangeCount();
+		// The new path is indexed before the move is applied: the old factory
+		// methods are removed, and the new ones are kept
+		batch.replaceForPath("/b.php", Arrays.asList(create("/b.php", "build"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		batch.renameForPath("/a.php", "/b.php", since); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertNull(this.getMethodNames("/a.php")); //$NON-NLS-1$
+		assertEquals(Arrays.asList("build"), this.getMethodNames("/b.php")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// The old path is created again and indexed before the move is
+		// applied: nothing is changed
+		since = this.storage.getChangeCount();
+		batch.replaceForPath("/c.php", Arrays.asList(create("/c.php", "get"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		batch.commit();
+		batch.renameForPath("/c.php", "/d.php", since); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		assertEquals(Arrays.asList("get"), this.getMethodNames("/c.php")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull(this.getMethodNames("/d.php")); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		FactoryMethodStorage.Batch batch = this.storage.beginBatch();
+		batch.addFactoryMethod(create("/a.php", "make")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.addFactoryMethod(create("/b.php", "build")); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.commit();
+		this.storage.flush();
+		batch.renameForPath("/a.php", "/c.php"); //$NON-NLS-1$ //$NON-NLS-2$
+		batch.resetForPath("/b.php"); //$NON-NLS-1$
+		batch.commit();
+		this.storage.flush();
+		this.storage.close();
+
+		this.storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/a.php")); //$NON-NLS-1$
+		assertFalse(this.storage.getSnapshot().hasDefinerPath("/b.php")); //$NON-NLS-1$
+		assertEquals(Arrays.asList("make"), this.getMethodNames("/c.php")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(this.storage.getSnapshot().hasFactoryMethods("make", FactoryMethod.TYPE_INSTANCEMETHOD)); //$NON-NLS-1$
+	}
+}
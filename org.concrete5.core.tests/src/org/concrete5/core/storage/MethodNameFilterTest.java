@@ -0,0 +1,151 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check that the filter of the method names never rejects the name of a
+ * stored factory method.
+ */
+public class MethodNameFilterTest {
+
+	/**
+	 * Some method names, including one with the Kelvin sign (whose lower case
+	 * version is ASCII).
+	 */
+	private final static String[] NAMES = new String[] { "make", "Build", "getInstance", "\u00c4nderN", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			"\u212aey", "_", "a1_B2" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String randomName(Random random) {
+		char[] result = new char[1 + random.nextInt(20)];
+		for (int i = 0; i < result.length; i++) {
+			int kind = random.nextInt(20);
+			if (kind == 0) {
+				result[i] = (char) (0x80 + random.nextInt(0x200));
+			} else if (kind < 8) {
+				result[i] = (char) ('A' + random.nextInt(26));
+			} else {
+				result[i] = (char) ('a' + random.nextInt(26));
+			}
+		}
+		return new String(result);
+	}
+
+	private static List<String> caseFold(List<String> names) {
+		List<String> result = new ArrayList<String>(names.size());
+		for (String name : names) {
+			result.add(name.toLowerCase(Locale.ENGLISH));
+		}
+		return result;
+	}
+
+	/**
+	 * Swap the case of the ASCII letters (like PHP, which ignores the case of
+	 * the ASCII letters only in method names).
+	 */
+	private static String swapCase(String name) {
+		char[] result = name.toCharArray();
+		for (int i = 0; i < result.length; i++) {
+			char c = result[i];
+			if (c >= 'a' && c <= 'z') {
+				result[i] = (char) (c - 'a' + 'A');
+			} else if (c >= 'A' && c <= 'Z') {
+				result[i] = (char) (c - 'A' + 'a');
+			}
+		}
+		return new String(result);
+	}
+
+	private static boolean isAscii(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void assertMightContain(MethodNameFilter filter, String name) {
+		assertTrue(name, filter.mightContain(name));
+		assertTrue(name, filter.mightContain(name.toLowerCase(Locale.ENGLISH)));
+		assertTrue(name, filter.mightContain(swapCase(name)));
+	}
+
+	@Test
+	public void testNoFalseNegatives() {
+		MethodNameFilter filter = MethodNameFilter.create(caseFold(Arrays.asList(NAMES)));
+		for (String name : NAMES) {
+			assertMightContain(filter, name);
+		}
+		assertFalse(filter.mightContain(null));
+
+		Random random = new Random(42);
+		for (int size : new int[] { 1, 3, 4, 5, 100, 5000 }) {
+			List<String> names = new ArrayList<String>(size);
+			for (int i = 0; i < size; i++) {
+				names.add(randomName(random));
+			}
+			filter = MethodNameFilter.create(caseFold(names));
+			for (String name : names) {
+				assertMightContain(filter, name);
+			}
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		MethodNameFilter filter = MethodNameFilter.create(Collections.<String>emptyList());
+		for (String name : NAMES) {
+			// The names with non-ASCII characters are never rejected
+			assertTrue(name, filter.mightContain(name) != isAscii(name));
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.folder.newFolder("project"), //$NON-NLS-1$
+				this.folder.newFolder("shared")); //$NON-NLS-1$
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		Random random = new Random(7);
+		List<String> names = new ArrayList<String>(Arrays.asList(NAMES));
+		for (int i = 0; i < 200; i++) {
+			names.add(randomName(random));
+		}
+		for (int i = 0; i < names.size(); i++) {
+			batch.addFactoryMethod(new FactoryMethod("/file" + (i % 10) + ".php", "Core", names.get(i), 0, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					FactoryMethod.TYPE_INSTANCEMETHOD));
+		}
+		batch.commit();
+		// Remove a file, so that the filter is rebuilt from the changed index
+		batch.resetForPath("/file0.php"); //$NON-NLS-1$
+		batch.commit();
+		FactoryMethodSnapshot snapshot = storage.getSnapshot();
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if (snapshot.getFactoryMethodsByMethodName(name, FactoryMethod.TYPE_INSTANCEMETHOD).isEmpty()) {
+				continue;
+			}
+			assertTrue(name, snapshot.mightHaveFactoryMethods(name));
+			assertTrue(name, snapshot.mightHaveFactoryMethods(swapCase(name)));
+			assertTrue(name, snapshot.hasFactoryMethods(swapCase(name), FactoryMethod.TYPE_INSTANCEMETHOD));
+		}
+		assertTrue(snapshot.hasFactoryMethods("BUILD", FactoryMethod.TYPE_INSTANCEMETHOD)); //$NON-NLS-1$
+		storage.close();
+	}
+}
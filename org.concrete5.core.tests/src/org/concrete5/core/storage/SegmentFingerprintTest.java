@@ -0,0 +1,106 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check that the fingerprints of the segments don't depend on how the
+ * factory methods are stored, and that they are computed from the mapped
+ * bytes.
+ */
+public class SegmentFingerprintTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testStringHashMatchesUtf8Bytes() {
+		String[] strings = new String[] { "", "make", "\\Concrete\\Core\\Cache\\Cache[]|@", "\u00e4\u00f6\u00fc", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				"\u20ac\uffff", "\ud83d\ude00", "\ud83d", "a\ude00b", "\ude00\ud83d" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(FactoryMethodSerializer.UTF8);
+			assertEquals(string, SegmentFingerprint.hash(ByteBuffer.wrap(bytes), 0, bytes.length),
+					SegmentFingerprint.hash(string));
+		}
+		assertEquals(SegmentFingerprint.hash(""), SegmentFingerprint.hash((String) null)); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testMappedSegment() throws IOException {
+		FactoryMethod[] segment = createSegment("/a.php", "\\Foo\\Bar|@"); //$NON-NLS-1$ //$NON-NLS-2$
+		FactoryMethod[] mapped = this.writeAndRead(segment);
+		assertTrue(mapped[0].aliases instanceof MappedAliasMap);
+		assertEquals(SegmentFingerprint.compute(segment), SegmentFingerprint.compute(mapped));
+		assertEquals(SegmentFingerprint.compute(segment), SegmentFingerprint.compute(Arrays.asList(mapped)));
+		assertTrue(SegmentFingerprint.sameFactoryMethods(segment, Arrays.asList(mapped)));
+		assertTrue(SegmentFingerprint.sameFactoryMethods(mapped, Arrays.asList(segment)));
+	}
+
+	@Test
+	public void testIgnoredDifferences() {
+		FactoryMethod[] segment = createSegment("/a.php", "\\Foo\\Bar"); //$NON-NLS-1$ //$NON-NLS-2$
+		// Other definer path, other alias order, null instead of empty strings
+		Map<String, String> aliases = new TreeMap<String, String>(segment[0].aliases);
+		FactoryMethod[] other = new FactoryMethod[] {
+				new FactoryMethod("/b.php", segment[0].className, segment[0].methodName, //$NON-NLS-1$
+						segment[0].discrimintatorIndex, segment[0].type, aliases, segment[0].fallbackAlias),
+				new FactoryMethod("/b.php", null, segment[1].methodName, segment[1].discrimintatorIndex, //$NON-NLS-1$
+						segment[1].type, new HashMap<String, String>(), null) };
+		assertEquals(SegmentFingerprint.compute(segment), SegmentFingerprint.compute(other));
+		assertTrue(SegmentFingerprint.sameFactoryMethods(segment, Arrays.asList(other)));
+	}
+
+	@Test
+	public void testDifferentSegments() throws IOException {
+		FactoryMethod[] segment = createSegment("/a.php", "\\Foo\\Bar"); //$NON-NLS-1$ //$NON-NLS-2$
+		FactoryMethod[] other = createSegment("/a.php", "\\Foo\\Baz"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNotEquals(SegmentFingerprint.compute(segment), SegmentFingerprint.compute(other));
+		assertFalse(SegmentFingerprint.sameFactoryMethods(segment, Arrays.asList(other)));
+		assertFalse(SegmentFingerprint.sameFactoryMethods(this.writeAndRead(segment), Arrays.asList(other)));
+		assertFalse(SegmentFingerprint.sameFactoryMethods(segment, Arrays.asList(this.writeAndRead(other))));
+	}
+
+	@Test
+	public void testMappedEntries() throws IOException {
+		FactoryMethod[] mapped = this.writeAndRead(createSegment("/a.php", "\\Foo\\Bar")); //$NON-NLS-1$ //$NON-NLS-2$
+		MappedAliasMap aliases = (MappedAliasMap) mapped[0].aliases;
+		assertTrue(aliases.containsEntry("cache", "\\Concrete\\Core\\Cache\\Cache")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(aliases.containsEntry("empty", null)); //$NON-NLS-1$
+		assertFalse(aliases.containsEntry("cache", "\\Concrete\\Core\\Cache\\Cach")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertFalse(aliases.containsEntry("missing", "\\Foo\\Bar")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private FactoryMethod[] writeAndRead(FactoryMethod[] segment) throws IOException {
+		File file = this.folder.newFile();
+		FactoryMethodSerializer.write(file, segment);
+		return FactoryMethodSerializer.read(file);
+	}
+
+	private static FactoryMethod[] createSegment(String path, String alias) {
+		Map<String, String> aliases = new HashMap<String, String>();
+		aliases.put("cache", "\\Concrete\\Core\\Cache\\Cache"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("alias", alias); //$NON-NLS-1$
+		aliases.put("n\u00e4me", "\\V\u00e4lue"); //$NON-NLS-1$ //$NON-NLS-2$
+		aliases.put("empty", ""); //$NON-NLS-1$ //$NON-NLS-2$
+		return new FactoryMethod[] {
+				new FactoryMethod(path, "Concrete\\Core\\Application\\Application", "make", 0, //$NON-NLS-1$ //$NON-NLS-2$
+						FactoryMethod.TYPE_INSTANCEMETHOD, aliases, "@"), //$NON-NLS-1$
+				new FactoryMethod(path, "", "app", 1, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$
+						new HashMap<String, String>(), "") }; //$NON-NLS-1$
+	}
+}
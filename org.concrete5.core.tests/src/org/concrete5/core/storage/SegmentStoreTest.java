@@ -0,0 +1,137 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check how the factory methods of a project are saved and loaded, and how
+ * the storage of the previous versions of the plugin is migrated.
+ */
+public class SegmentStoreTest {
+
+	private final static String LEGACY_STORAGE_FILE = "factoryMethods"; //$NON-NLS-1$
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dataDirectory;
+	private File sharedDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dataDirectory = this.folder.newFolder("project"); //$NON-NLS-1$
+		this.sharedDirectory = this.folder.newFolder("shared"); //$NON-NLS-1$
+	}
+
+	@Test
+	public void testLegacyStorageMigration() throws IOException {
+		Map<String, String> aliases = new HashMap<String, String>();
+		aliases.put("cache", "\\Concrete\\Core\\Cache\\Cache|@"); //$NON-NLS-1$ //$NON-NLS-2$
+		FactoryMethod[] factoryMethods = new FactoryMethod[] {
+				new FactoryMethod("/site/.phpstorm.meta.php", "Core", "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						aliases, "@"), //$NON-NLS-1$
+				new FactoryMethod("/site/a.php", "A", "build", 1, FactoryMethod.TYPE_INSTANCEMETHOD), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				new FactoryMethod("/site/.phpstorm.meta.php", "", "app", 0, FactoryMethod.TYPE_INSTANCEMETHOD, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						aliases, ""), //$NON-NLS-1$
+		};
+		File legacyFile = new File(this.dataDirectory, LEGACY_STORAGE_FILE);
+		try (ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+			stream.writeObject(factoryMethods);
+		}
+
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodSnapshot snapshot = storage.getSnapshot();
+		assertFalse(legacyFile.exists());
+		assertEquals(2, snapshot.getDefinerPaths().size());
+		List<FactoryMethod> meta = snapshot.getFactoryMethodsForPath("/site/.phpstorm.meta.php"); //$NON-NLS-1$
+		assertEquals(2, meta.size());
+		FactoryMethodSerializerTest.assertSameFactoryMethod(factoryMethods[0], meta.get(0));
+		FactoryMethodSerializerTest.assertSameFactoryMethod(factoryMethods[2], meta.get(1));
+		FactoryMethodSerializerTest.assertSameFactoryMethod(factoryMethods[1],
+				snapshot.getFactoryMethodsForPath("/site/a.php").get(0)); //$NON-NLS-1$
+		assertNotNull(snapshot.getFactoryMethod("MAKE", "core", FactoryMethod.TYPE_INSTANCEMETHOD)); //$NON-NLS-1$ //$NON-NLS-2$
+		storage.close();
+
+		// The migrated factory methods have been saved in the new format
+		storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		snapshot = storage.getSnapshot();
+		assertEquals(3, snapshot.getAllFactoryMethods().length);
+		FactoryMethodSerializerTest.assertSameFactoryMethod(factoryMethods[0],
+				snapshot.getFactoryMethodsForPath("/site/.phpstorm.meta.php").get(0)); //$NON-NLS-1$
+		storage.close();
+	}
+
+	@Test
+	public void testUnreadableLegacyStorage() throws IOException {
+		File legacyFile = new File(this.dataDirectory, LEGACY_STORAGE_FILE);
+		try (FileOutputStream stream = new FileOutputStream(legacyFile)) {
+			stream.write(new byte[] { 1, 2, 3, 4 });
+		}
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		assertEquals(0, storage.getSnapshot().getAllFactoryMethods().length);
+		assertFalse(legacyFile.exists());
+		storage.close();
+	}
+
+	@Test
+	public void testLegacyStorageIgnoredWithManifest() throws IOException {
+		FactoryMethod factoryMethod = new FactoryMethod("/a.php", "A", "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		batch.addFactoryMethod(factoryMethod);
+		batch.commit();
+		storage.close();
+
+		File legacyFile = new File(this.dataDirectory, LEGACY_STORAGE_FILE);
+		try (ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(legacyFile))) {
+			stream.writeObject(new FactoryMethod[] {
+					new FactoryMethod("/b.php", "B", "make", 0, FactoryMethod.TYPE_INSTANCEMETHOD) }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodSnapshot snapshot = storage.getSnapshot();
+		assertFalse(legacyFile.exists());
+		assertEquals(Arrays.asList("/a.php"), Arrays.asList(snapshot.getDefinerPaths().toArray())); //$NON-NLS-1$
+		assertNull(snapshot.getFactoryMethodsForPath("/b.php")); //$NON-NLS-1$
+		storage.close();
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		FactoryMethodStorage storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		for (int i = 0; i < 10; i++) {
+			batch.addFactoryMethod(new FactoryMethod("/file" + i + ".php", "Class" + i, "make", i, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+					FactoryMethod.TYPE_INSTANCEMETHOD));
+		}
+		batch.commit();
+		batch.resetForPath("/file3.php"); //$NON-NLS-1$
+		batch.commit();
+		storage.close();
+
+		storage = new FactoryMethodStorage(this.dataDirectory, this.sharedDirectory);
+		FactoryMethodSnapshot snapshot = storage.getSnapshot();
+		assertEquals(9, snapshot.getDefinerPaths().size());
+		assertTrue(snapshot.hasDefinerPath("/file9.php")); //$NON-NLS-1$
+		assertFalse(snapshot.hasDefinerPath("/file3.php")); //$NON-NLS-1$
+		assertEquals(5, snapshot.getFactoryMethodsForPath("/file5.php").get(0).discrimintatorIndex); //$NON-NLS-1$
+		storage.close();
+	}
+}
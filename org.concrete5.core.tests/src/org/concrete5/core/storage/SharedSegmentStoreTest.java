@@ -0,0 +1,183 @@
+package org.concrete5.core.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.concrete5.core.factory.FactoryMethod;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check how the segments are shared by the projects, and when their files are
+ * deleted.
+ */
+public class SharedSegmentStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File stateDirectory;
+	private File sharedDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		// The shared stores are kept by directory: every test uses new ones
+		this.stateDirectory = this.folder.newFolder("state"); //$NON-NLS-1$
+		this.sharedDirectory = this.folder.newFolder("shared"); //$NON-NLS-1$
+	}
+
+	private FactoryMethodStorage createStorage(String project) {
+		return new FactoryMethodStorage(new File(this.stateDirectory, project), this.sharedDirectory);
+	}
+
+	private static void addFactoryMethods(FactoryMethodStorage storage, String path, String... methodNames)
+			throws IOException {
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		for (String methodName : methodNames) {
+			Map<String, String> aliases = new HashMap<String, String>();
+			aliases.put("cache", "\\Concrete\\Core\\Cache\\Cache"); //$NON-NLS-1$ //$NON-NLS-2$
+			batch.addFactoryMethod(
+					new FactoryMethod(path, "Core", methodName, 0, FactoryMethod.TYPE_INSTANCEMETHOD, aliases, "")); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		batch.commit();
+		storage.flush();
+	}
+
+	private Set<String> getSegmentFiles() {
+		Set<String> result = new HashSet<String>();
+		String[] names = this.sharedDirectory.list();
+		if (names != null) {
+			result.addAll(Arrays.asList(names));
+		}
+		return result;
+	}
+
+	private static FactoryMethod[] createSegment(String methodName) {
+		return new FactoryMethod[] {
+				new FactoryMethod("/a.php", "Core", methodName, 0, FactoryMethod.TYPE_INSTANCEMETHOD) }; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testSharedSegments() throws IOException {
+		FactoryMethodStorage first = this.createStorage("first"); //$NON-NLS-1$
+		FactoryMethodStorage second = this.createStorage("second"); //$NON-NLS-1$
+		addFactoryMethods(first, "/first/concrete/app.php", "make", "build"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		addFactoryMethods(second, "/second/concrete/app.php", "make", "build"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		// The same factory methods defined by different paths use one file
+		assertEquals(1, this.getSegmentFiles().size());
+		assertEquals(new HashSet<Long>(first.getSnapshot().getFingerprints().values()),
+				new HashSet<Long>(second.getSnapshot().getFingerprints().values()));
+		FactoryMethod make = first.getSnapshot().getFactoryMethodsForPath("/first/concrete/app.php").get(0); //$NON-NLS-1$
+		FactoryMethod otherMake = second.getSnapshot().getFactoryMethodsForPath("/second/concrete/app.php").get(0); //$NON-NLS-1$
+		assertEquals("/second/concrete/app.php", otherMake.definerResourcePath); //$NON-NLS-1$
+		// The aliases are kept in memory only once
+		assertSame(make.aliases, otherMake.aliases);
+		Set<String> files = this.getSegmentFiles();
+
+		// The first project is closed and deleted: the segment is still used
+		first.close();
+		delete(new File(this.stateDirectory, "first")); //$NON-NLS-1$
+		FactoryMethodStorage.collectGarbage(this.stateDirectory, this.sharedDirectory);
+		assertEquals(files, this.getSegmentFiles());
+		assertEquals(2, second.getSnapshot().getAllFactoryMethods().length);
+
+		// The second project is closed: its manifest still lists the segment
+		second.close();
+		FactoryMethodStorage.collectGarbage(this.stateDirectory, this.sharedDirectory);
+		assertEquals(files, this.getSegmentFiles());
+		second = this.createStorage("second"); //$NON-NLS-1$
+		assertEquals(2, second.getSnapshot().getAllFactoryMethods().length);
+		second.close();
+
+		// No project uses the segment anymore
+		delete(new File(this.stateDirectory, "second")); //$NON-NLS-1$
+		FactoryMethodStorage.collectGarbage(this.stateDirectory, this.sharedDirectory);
+		assertTrue(this.getSegmentFiles().isEmpty());
+	}
+
+	@Test
+	public void testReplacedSegments() throws IOException {
+		FactoryMethodStorage storage = this.createStorage("project"); //$NON-NLS-1$
+		addFactoryMethods(storage, "/a.php", "make"); //$NON-NLS-1$ //$NON-NLS-2$
+		Set<String> oldFiles = this.getSegmentFiles();
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		batch.resetForPath("/a.php"); //$NON-NLS-1$
+		batch.commit();
+		addFactoryMethods(storage, "/a.php", "build"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(2, this.getSegmentFiles().size());
+		FactoryMethodStorage.collectGarbage(this.stateDirectory, this.sharedDirectory);
+		Set<String> files = this.getSegmentFiles();
+		assertEquals(1, files.size());
+		assertFalse(files.containsAll(oldFiles));
+		storage.close();
+	}
+
+	@Test
+	public void testReferencedSegmentsAreKept() throws IOException {
+		FactoryMethodStorage storage = this.createStorage("project"); //$NON-NLS-1$
+		addFactoryMethods(storage, "/a.php", "make"); //$NON-NLS-1$ //$NON-NLS-2$
+		Set<String> files = this.getSegmentFiles();
+		File tempFile = new File(this.sharedDirectory, "0000000000000001.c5fm.tmp"); //$NON-NLS-1$
+		assertTrue(tempFile.createNewFile());
+
+		// The project is deleted while it's open
+		delete(new File(this.stateDirectory, "project")); //$NON-NLS-1$
+		FactoryMethodStorage.collectGarbage(this.stateDirectory, this.sharedDirectory);
+		assertEquals(files, this.getSegmentFiles());
+
+		storage.close();
+		FactoryMethodStorage.collectGarbage(this.stateDirectory, this.sharedDirectory);
+		assertTrue(this.getSegmentFiles().isEmpty());
+	}
+
+	@Test
+	public void testFingerprintCollisions() throws IOException {
+		SharedSegmentStore store = SharedSegmentStore.get(this.sharedDirectory);
+		FactoryMethod[] first = createSegment("make"); //$NON-NLS-1$
+		FactoryMethod[] second = createSegment("build"); //$NON-NLS-1$
+		assertEquals(42L, store.store(42L, first));
+		assertEquals(43L, store.store(42L, second));
+		assertEquals(42L, store.store(42L, createSegment("make"))); //$NON-NLS-1$
+		assertSame(first, store.peek(42L, Arrays.asList(createSegment("make")))); //$NON-NLS-1$
+		assertSame(second, store.peek(42L, Arrays.asList(createSegment("build")))); //$NON-NLS-1$
+		assertNull(store.peek(42L, Arrays.asList(createSegment("get")))); //$NON-NLS-1$
+		store.release(42L);
+		store.release(42L);
+		store.release(43L);
+		assertNull(store.peek(42L, Arrays.asList(createSegment("make")))); //$NON-NLS-1$
+
+		// The keys are still assigned by content once the segments are only on
+		// disk
+		assertEquals(43L, store.store(42L, createSegment("build"))); //$NON-NLS-1$
+		FactoryMethod[] segment = store.acquire(42L);
+		assertNotNull(segment);
+		assertEquals("make", segment[0].methodName); //$NON-NLS-1$
+		assertNull(store.acquire(44L));
+		store.release(42L);
+		store.release(43L);
+	}
+}
@@ -0,0 +1,287 @@
+package org.concrete5.core.tests;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.concrete5.core.Concrete5CorePlugin;
+import org.concrete5.core.builder.Concrete5Nature;
+import org.concrete5.core.builder.ProjectDataFactory;
+import org.concrete5.core.builder.WarmUpJob;
+import org.concrete5.core.index.Concrete5IndexingVisitorExtension;
+import org.concrete5.core.index.MetaFileScanJob;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.dltk.internal.core.ModelManager;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Measure the overhead of the plugin while the PHP indexer processes a
+ * concrete5 code base, and check it against time budgets.
+ *
+ * The code base (generated by CorpusGenerator in the directory specified by
+ * the concrete5.fixture system property) is indexed a few times with
+ * Concrete5IndexingVisitorExtension disabled and enabled. The medians are
+ * printed and written in JSON format to the file specified by the
+ * concrete5.results system property.
+ *
+ * The budgets can be changed with the concrete5.budget.file (overhead per PHP
+ * file, in microseconds) and concrete5.budget.metaFile (time spent writing the
+ * factory methods of a meta file, in milliseconds) system properties.
+ */
+@SuppressWarnings("restriction")
+public class IndexingOverheadBenchmark {
+
+	private final static String PHP_NATURE = "org.eclipse.php.core.PHPNature"; //$NON-NLS-1$
+	private final static String PROJECT_NAME = "concrete5-fixture-"; //$NON-NLS-1$
+	private final static String META_FILE_NAME = ".phpstorm.meta.php"; //$NON-NLS-1$
+	private final static String PHP_EXTENSION = ".php"; //$NON-NLS-1$
+
+	/**
+	 * The number of measured rounds (after a warm-up round).
+	 */
+	private final static int ROUNDS = Integer.getInteger("concrete5.rounds", 3).intValue(); //$NON-NLS-1$
+	/**
+	 * The indexing time the plugin may add to every PHP file (in
+	 * microseconds).
+	 */
+	private final static long FILE_BUDGET = Long.getLong("concrete5.budget.file", 500L).longValue(); //$NON-NLS-1$
+	/**
+	 * The time the plugin may spend writing the factory methods of a meta file
+	 * (in milliseconds).
+	 */
+	private final static long META_FILE_BUDGET = Long.getLong("concrete5.budget.metaFile", 1000L).longValue(); //$NON-NLS-1$
+
+	private int projectCounter = 0;
+
+	/**
+	 * The measures of the indexing of the code base.
+	 */
+	private static class Round {
+		/**
+		 * The time spent waiting for the indexer (in nanoseconds).
+		 */
+		long indexTime;
+		/**
+		 * The time spent writing the pending changes of the storage after the
+		 * indexing (in nanoseconds).
+		 */
+		long flushTime;
+		/**
+		 * The bytes allocated by all the threads (-1 if not available).
+		 */
+		long allocatedBytes;
+		/**
+		 * The size of the files written by the plugin.
+		 */
+		long writtenBytes;
+	}
+
+	@After
+	public void tearDown() {
+		Concrete5IndexingVisitorExtension.setEnabled(true);
+	}
+
+	@Test
+	public void measureIndexingOverhead() throws Exception {
+		File fixture = new File(System.getProperty("concrete5.fixture", "")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue("Missing code base to be indexed: " + fixture, fixture.isDirectory()); //$NON-NLS-1$
+		int[] counts = new int[2];
+		countFiles(fixture, counts);
+		int phpFiles = counts[0];
+		int metaFiles = Math.max(1, counts[1]);
+		// Warm up
+		this.index(fixture, false);
+		this.index(fixture, true);
+		Round[] disabledRounds = new Round[ROUNDS];
+		Round[] enabledRounds = new Round[ROUNDS];
+		for (int i = 0; i < ROUNDS; i++) {
+			disabledRounds[i] = this.index(fixture, false);
+			enabledRounds[i] = this.index(fixture, true);
+		}
+		Round disabled = median(disabledRounds);
+		Round enabled = median(enabledRounds);
+		double fileOverhead = (enabled.indexTime - disabled.indexTime) / 1000.0 / phpFiles;
+		double fileAllocations = disabled.allocatedBytes < 0 ? -1
+				: (enabled.allocatedBytes - disabled.allocatedBytes) / (double) phpFiles;
+		double metaFileFlushTime = enabled.flushTime / 1000000.0 / metaFiles;
+		double metaFileWrittenBytes = enabled.writtenBytes / (double) metaFiles;
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n"); //$NON-NLS-1$
+		json.append("\t\"phpFiles\": ").append(phpFiles).append(",\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		json.append("\t\"metaFiles\": ").append(counts[1]).append(",\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		json.append("\t\"rounds\": ").append(ROUNDS).append(",\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		appendRound(json, "disabled", disabled); //$NON-NLS-1$
+		appendRound(json, "enabled", enabled); //$NON-NLS-1$
+		json.append("\t\"perFile\": {\"overheadMicros\": ").append(format(fileOverhead)) //$NON-NLS-1$
+				.append(", \"allocatedBytes\": ").append(format(fileAllocations)).append("},\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		json.append("\t\"perMetaFile\": {\"flushMillis\": ").append(format(metaFileFlushTime)) //$NON-NLS-1$
+				.append(", \"writtenBytes\": ").append(format(metaFileWrittenBytes)).append("}\n"); //$NON-NLS-1$ //$NON-NLS-2$
+		json.append("}\n"); //$NON-NLS-1$
+		System.out.print(json);
+		String resultsFile = System.getProperty("concrete5.results"); //$NON-NLS-1$
+		if (resultsFile != null && !resultsFile.isEmpty()) {
+			try (OutputStream stream = new FileOutputStream(resultsFile)) {
+				stream.write(json.toString().getBytes("UTF-8")); //$NON-NLS-1$
+			}
+		}
+
+		assertTrue("Indexing overhead per file: " + format(fileOverhead) + " us (budget: " + FILE_BUDGET + " us)", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				fileOverhead <= FILE_BUDGET);
+		assertTrue("Storage write time per meta file: " + format(metaFileFlushTime) + " ms (budget: " //$NON-NLS-1$ //$NON-NLS-2$
+				+ META_FILE_BUDGET + " ms)", metaFileFlushTime <= META_FILE_BUDGET); //$NON-NLS-1$
+	}
+
+	/**
+	 * Index the code base in a new concrete5 project (deleted afterwards).
+	 */
+	private Round index(File fixture, boolean enabled) throws CoreException, InterruptedException {
+		Concrete5IndexingVisitorExtension.setEnabled(enabled);
+		IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		// A new name for every round, so that the data of the previous rounds
+		// can be deleted in background
+		IProject project = workspace.getRoot().getProject(PROJECT_NAME + (++this.projectCounter));
+		File stateDirectory = Concrete5CorePlugin.getDefault().getStateLocation().toFile();
+		Map<String, Long> stateBefore = new HashMap<String, Long>();
+		listFiles(stateDirectory, stateBefore);
+		Round result = new Round();
+		long allocatedBytes = getAllocatedBytes();
+		long start = System.nanoTime();
+		IProjectDescription description = workspace.newProjectDescription(project.getName());
+		description.setLocation(new Path(fixture.getAbsolutePath()));
+		description.setNatureIds(new String[] { PHP_NATURE, Concrete5Nature.NATURE_ID });
+		project.create(description, null);
+		project.open(null);
+		waitForIndexer();
+		result.indexTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		FactoryMethodStorage.cancelScheduledFlushes();
+		ProjectDataFactory.get(project).getFactoryMethodStorage().flush();
+		result.flushTime = System.nanoTime() - start;
+		result.allocatedBytes = allocatedBytes < 0 ? -1 : getAllocatedBytes() - allocatedBytes;
+		Map<String, Long> stateAfter = new HashMap<String, Long>();
+		listFiles(stateDirectory, stateAfter);
+		for (Map.Entry<String, Long> file : stateAfter.entrySet()) {
+			if (!file.getValue().equals(stateBefore.get(file.getKey()))) {
+				result.writtenBytes += new File(file.getKey()).length();
+			}
+		}
+		project.delete(false, true, null);
+		return result;
+	}
+
+	private static void waitForIndexer() throws InterruptedException {
+		Job.getJobManager().join(ResourcesPlugin.FAMILY_AUTO_BUILD, null);
+		ModelManager.getModelManager().getIndexManager().waitUntilReady();
+		Job.getJobManager().join(WarmUpJob.FAMILY, null);
+		Job.getJobManager().join(MetaFileScanJob.FAMILY, null);
+	}
+
+	/**
+	 * Count the PHP files (counts[0]) and the meta files (counts[1]) of a
+	 * directory.
+	 */
+	private static void countFiles(File directory, int[] counts) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				countFiles(child, counts);
+			} else if (child.getName().endsWith(PHP_EXTENSION)) {
+				counts[0]++;
+				if (child.getName().equals(META_FILE_NAME)) {
+					counts[1]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * List the files of a directory, with a value that changes when they are
+	 * written.
+	 */
+	private static void listFiles(File directory, Map<String, Long> files) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				listFiles(child, files);
+			} else {
+				files.put(child.getPath(), Long.valueOf(child.lastModified() * 31 + child.length()));
+			}
+		}
+	}
+
+	/**
+	 * Get the number of bytes allocated so far by all the live threads.
+	 *
+	 * @return Return -1 if the JVM doesn't provide this information
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long[] allocatedBytes;
+		try {
+			Method method = Class.forName("com.sun.management.ThreadMXBean") //$NON-NLS-1$
+					.getMethod("getThreadAllocatedBytes", long[].class); //$NON-NLS-1$
+			allocatedBytes = (long[]) method.invoke(bean, bean.getAllThreadIds());
+		} catch (Exception x) {
+			return -1L;
+		}
+		long result = 0L;
+		for (long threadAllocatedBytes : allocatedBytes) {
+			if (threadAllocatedBytes > 0) {
+				result += threadAllocatedBytes;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the round with the median indexing time.
+	 */
+	private static Round median(Round[] rounds) {
+		Round[] sorted = rounds.clone();
+		Arrays.sort(sorted, new Comparator<Round>() {
+			@Override
+			public int compare(Round o1, Round o2) {
+				return Long.compare(o1.indexTime, o2.indexTime);
+			}
+		});
+		return sorted[sorted.length / 2];
+	}
+
+	private static void appendRound(StringBuilder json, String name, Round round) {
+		json.append("\t\"").append(name).append("\": {"); //$NON-NLS-1$ //$NON-NLS-2$
+		json.append("\"indexMillis\": ").append(format(round.indexTime / 1000000.0)); //$NON-NLS-1$
+		json.append(", \"flushMillis\": ").append(format(round.flushTime / 1000000.0)); //$NON-NLS-1$
+		json.append(", \"allocatedBytes\": ").append(round.allocatedBytes); //$NON-NLS-1$
+		json.append(", \"writtenBytes\": ").append(round.writtenBytes); //$NON-NLS-1$
+		json.append("},\n"); //$NON-NLS-1$
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", Double.valueOf(value)); //$NON-NLS-1$
+	}
+}
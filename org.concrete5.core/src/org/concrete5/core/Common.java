@@ -23,6 +23,20 @@ public class Common {
 		return cls.isInstance(obj) ? cls.cast(obj) : null;
 	}
 
+	/**
+	 * Get the project of a context.
+	 *
+	 * @param context
+	 *            The context
+	 * @return Return null if the context is not associated to a project
+	 */
+	public static IProject getProject(IContext context) {
+		ISourceModuleContext sourceModuleContext = as(context, ISourceModuleContext.class);
+		ISourceModule sourceModule = sourceModuleContext == null ? null : sourceModuleContext.getSourceModule();
+		IScriptProject scriptProject = sourceModule == null ? null : sourceModule.getScriptProject();
+		return scriptProject == null ? null : scriptProject.getProject();
+	}
+
 	/**
 	 * Check if a script project has the concrete5 nature.
 	 *
@@ -1,6 +1,19 @@
 package org.concrete5.core;
 
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Hashtable;
+
+import org.concrete5.core.builder.ProjectData;
 import org.concrete5.core.builder.ProjectDataFactory;
+import org.concrete5.core.builder.ResourceChangeJob;
+import org.concrete5.core.builder.ResourceChangeSet;
+import org.concrete5.core.builder.WarmUpJob;
+import org.concrete5.core.goals.EvaluationCacheInvalidator;
+import org.concrete5.core.index.MetaFileScanJob;
+import org.concrete5.core.metrics.Metrics;
+import org.concrete5.core.metrics.MetricsTracing;
+import org.concrete5.core.storage.FactoryMethodStorage;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceChangeEvent;
@@ -13,8 +26,15 @@ import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.dltk.core.DLTKCore;
+import org.eclipse.dltk.core.ElementChangedEvent;
+import org.eclipse.dltk.core.IElementChangedListener;
+import org.eclipse.osgi.service.debug.DebugOptions;
+import org.eclipse.osgi.service.debug.DebugOptionsListener;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 
 /**
  * The activator class controls the plug-in life cycle
@@ -29,81 +49,93 @@ public class Concrete5CorePlugin extends AbstractUIPlugin {
 
 	private static IResourceChangeListener resourceChangeListener = null;
 
-	private final static IResourceDeltaVisitor resourceDeltaVisitor = new IResourceDeltaVisitor() {
-		public boolean visit(IResourceDelta delta) throws CoreException {
-			IResource resource = delta == null ? null : delta.getResource();
-			if (resource == null) {
-				return false;
-			}
-			int resourceType = resource.getType();
-			if ((resourceType & IResource.ROOT) != 0) {
-				return true;
-			}
-			if ((resourceType & IResource.PROJECT) != 0) {
-				int flags = delta.getFlags();
-				if ((flags & IResourceDelta.OPEN) != 0) {
-					IProject project = (IProject) resource;
-					if (project.isOpen()) {
-						ProjectDataFactory.get(project);
-					} else {
-						releaseProject(project, false);
-					}
-					return false;
-				}
-				int kind = delta.getKind();
-				if ((kind & IResourceDelta.REMOVED) != 0) {
-					releaseProject((IProject) resource, true);
-					return false;
-				}
-				if ((flags & IResourceDelta.DESCRIPTION) != 0) {
-					projectDescriptionUpdated((IProject) resource);
+	private static IElementChangedListener elementChangedListener = null;
+
+	private ServiceRegistration<DebugOptionsListener> metricsTracingRegistration = null;
+
+	/**
+	 * Create a visitor that collects the changes of a resource delta.
+	 *
+	 * @param changes
+	 *            The set where the changes to be applied in background are
+	 *            collected
+	 */
+	private static IResourceDeltaVisitor createResourceDeltaVisitor(final ResourceChangeSet changes) {
+		return new IResourceDeltaVisitor() {
+			public boolean visit(IResourceDelta delta) throws CoreException {
+				IResource resource = delta == null ? null : delta.getResource();
+				if (resource == null) {
 					return false;
 				}
-				return true;
-			}
-			if ((resourceType & IResource.FILE) != 0) {
-				int kind = delta.getKind();
-				if ((kind & IResourceDelta.REMOVED) != 0) {
-					IPath resourcePath = resource.getFullPath();
-					if (resourcePath == null) {
-						return false;
-					}
-					String resourcePathString = resourcePath.toPortableString();
-					IProject project = (IProject) resource.getProject();
-					if (project == null) {
-						return false;
-					}
-					ProjectDataFactory.get(project).getFactoryMethodStorage().resetForPath(resourcePathString);
+				int resourceType = resource.getType();
+				if ((resourceType & IResource.ROOT) != 0) {
 					return true;
 				}
-				int flags = delta.getFlags();
-				if ((flags & IResourceDelta.MOVED_TO) != 0) {
-					IPath oldPath = resource.getFullPath();
-					if (oldPath == null) {
+				if ((resourceType & IResource.PROJECT) != 0) {
+					int flags = delta.getFlags();
+					if ((flags & IResourceDelta.OPEN) != 0) {
+						IProject project = (IProject) resource;
+						if (project.isOpen()) {
+							WarmUpJob.schedule(project);
+						} else {
+							releaseProject(project, false, changes);
+						}
 						return false;
 					}
-					IPath newPath = delta.getMovedToPath();
-					if (newPath == null) {
+					int kind = delta.getKind();
+					if ((kind & IResourceDelta.REMOVED) != 0) {
+						releaseProject((IProject) resource, true, changes);
 						return false;
 					}
-					String oldPathString = oldPath.toPortableString();
-					String newPathString = newPath.toPortableString();
-					if (oldPathString.equals(newPathString)) {
+					if ((flags & IResourceDelta.DESCRIPTION) != 0) {
+						projectDescriptionUpdated((IProject) resource);
 						return false;
 					}
-					IProject project = (IProject) resource.getProject();
-					if (project == null) {
+					return true;
+				}
+				if ((resourceType & IResource.FILE) != 0) {
+					int kind = delta.getKind();
+					if ((kind & IResourceDelta.REMOVED) != 0) {
+						IPath resourcePath = resource.getFullPath();
+						if (resourcePath == null) {
+							return false;
+						}
+						String resourcePathString = resourcePath.toPortableString();
+						IProject project = (IProject) resource.getProject();
+						if (project == null) {
+							return false;
+						}
+						changes.fileRemoved(ProjectDataFactory.get(project), resourcePathString);
+						return true;
+					}
+					int flags = delta.getFlags();
+					if ((flags & IResourceDelta.MOVED_TO) != 0) {
+						IPath oldPath = resource.getFullPath();
+						if (oldPath == null) {
+							return false;
+						}
+						IPath newPath = delta.getMovedToPath();
+						if (newPath == null) {
+							return false;
+						}
+						String oldPathString = oldPath.toPortableString();
+						String newPathString = newPath.toPortableString();
+						if (oldPathString.equals(newPathString)) {
+							return false;
+						}
+						IProject project = (IProject) resource.getProject();
+						if (project == null) {
+							return false;
+						}
+						changes.fileMoved(ProjectDataFactory.get(project), oldPathString, newPathString);
 						return false;
 					}
-					ProjectDataFactory.get(project).getFactoryMethodStorage().renameForPath(oldPathString,
-							newPathString);
 					return false;
 				}
-				return false;
+				return true;
 			}
-			return true;
-		}
-	};
+		};
+	}
 
 	/**
 	 * The constructor
@@ -124,8 +156,11 @@ public class Concrete5CorePlugin extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		this.hookMetrics(context);
 		hookResourceChanges();
+		hookModelChanges();
 		checkOpenProjects();
+		deleteObsoleteData();
 	}
 
 	/*
@@ -135,7 +170,14 @@ public class Concrete5CorePlugin extends AbstractUIPlugin {
 	 * org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		unhookModelChanges();
 		unhookResourceChanges();
+		Job.getJobManager().cancel(WarmUpJob.FAMILY);
+		Job.getJobManager().cancel(MetaFileScanJob.FAMILY);
+		ResourceChangeJob.processPending();
+		FactoryMethodStorage.cancelScheduledFlushes();
+		ProjectDataFactory.flushAll();
+		this.unhookMetrics();
 		plugin = null;
 		super.stop(context);
 	}
@@ -172,12 +214,32 @@ public class Concrete5CorePlugin extends AbstractUIPlugin {
 		}
 		for (IProject project : projects) {
 			if (project != null && project.isAccessible()) {
-				ProjectDataFactory.get(project);
+				WarmUpJob.schedule(project);
 			}
 		}
 
 	}
 
+	/**
+	 * Enable the metrics with the tracing options, and expose them with JMX.
+	 */
+	private void hookMetrics(BundleContext context) {
+		Hashtable<String, Object> properties = new Hashtable<String, Object>();
+		properties.put(DebugOptions.LISTENER_SYMBOLICNAME, PLUGIN_ID);
+		this.metricsTracingRegistration = context.registerService(DebugOptionsListener.class,
+				new MetricsTracing(PLUGIN_ID), properties);
+		Metrics.registerBean();
+	}
+
+	private void unhookMetrics() {
+		Metrics.unregisterBean();
+		Metrics.traceDump();
+		if (this.metricsTracingRegistration != null) {
+			this.metricsTracingRegistration.unregister();
+			this.metricsTracingRegistration = null;
+		}
+	}
+
 	private static void unhookResourceChanges() {
 		if (resourceChangeListener == null) {
 			return;
@@ -190,15 +252,61 @@ public class Concrete5CorePlugin extends AbstractUIPlugin {
 		resourceChangeListener = null;
 	}
 
-	private static void releaseProject(IProject project, boolean deleted) {
+	private static void hookModelChanges() {
+		if (elementChangedListener != null) {
+			return;
+		}
+		elementChangedListener = new EvaluationCacheInvalidator();
+		DLTKCore.addElementChangedListener(elementChangedListener,
+				ElementChangedEvent.POST_CHANGE | ElementChangedEvent.POST_RECONCILE);
+	}
+
+	private static void unhookModelChanges() {
+		if (elementChangedListener == null) {
+			return;
+		}
+		DLTKCore.removeElementChangedListener(elementChangedListener);
+		elementChangedListener = null;
+	}
+
+	private static void releaseProject(IProject project, boolean deleted, ResourceChangeSet changes) {
 		if (deleted) {
-			ProjectDataFactory.get(project).deleteData();
+			ProjectDataFactory.get(project).deleteData(changes);
+		}
+		ProjectDataFactory.release(project, deleted, changes);
+	}
+
+	/**
+	 * Delete the data directories of the deleted projects that couldn't be
+	 * deleted before (for instance because Eclipse has been closed meanwhile).
+	 */
+	private void deleteObsoleteData() {
+		File[] obsoleteDirectories;
+		try {
+			obsoleteDirectories = this.getStateLocation().toFile().listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File pathname) {
+					return pathname.isDirectory()
+							&& pathname.getName().contains(ProjectData.OBSOLETE_DIRECTORY_SUFFIX);
+				}
+			});
+		} catch (Throwable x) {
+			obsoleteDirectories = null;
+		}
+		if (obsoleteDirectories == null || obsoleteDirectories.length == 0) {
+			return;
+		}
+		ResourceChangeSet changes = new ResourceChangeSet();
+		for (File obsoleteDirectory : obsoleteDirectories) {
+			changes.directoryObsoleted(obsoleteDirectory);
 		}
-		ProjectDataFactory.release(project);
+		ResourceChangeJob.enqueue(changes);
 	}
 
 	private static void projectDescriptionUpdated(IProject project) {
 		ProjectDataFactory.descriptionUpdated(project);
+		// The concrete5 nature may have been added
+		WarmUpJob.schedule(project);
 	}
 
 	private static void hookResourceChanges() {
@@ -218,10 +326,14 @@ public class Concrete5CorePlugin extends AbstractUIPlugin {
 				if (delta == null) {
 					return;
 				}
+				long start = Metrics.start();
+				ResourceChangeSet changes = new ResourceChangeSet();
 				try {
-					delta.accept(resourceDeltaVisitor);
+					delta.accept(createResourceDeltaVisitor(changes));
 				} catch (CoreException x) {
 				}
+				Metrics.RESOURCE_DELTAS.recordSince(start);
+				ResourceChangeJob.enqueue(changes);
 			};
 		};
 		workspace.addResourceChangeListener(resourceChangeListener);
@@ -1,91 +1,208 @@
 package org.concrete5.core.builder;
 
 import java.io.File;
-import java.io.FileFilter;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.concrete5.core.Concrete5CorePlugin;
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.goals.EvaluationCache;
+import org.concrete5.core.storage.FactoryMethodSnapshot;
 import org.concrete5.core.storage.FactoryMethodStorage;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IProjectNature;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
-import org.eclipse.core.runtime.jobs.ILock;
-import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.dltk.ti.types.IEvaluatedType;
 
 public class ProjectData {
 
+	/**
+	 * The maximum number of factory method return types cached for every
+	 * project.
+	 */
+	private final static int RETURN_TYPE_CACHE_SIZE = 2048;
+
+	/**
+	 * The maximum number of classes whose factory methods are cached for every
+	 * project.
+	 */
+	private final static int FACTORY_CLASS_CACHE_SIZE = 4096;
+
+	/**
+	 * The values of the lower bits of natureState.
+	 */
+	private final static long NATURE_UNKNOWN = 0L;
+	private final static long NATURE_PRESENT = 1L;
+	private final static long NATURE_MISSING = 2L;
+	private final static long NATURE_MASK = 3L;
+
+	/**
+	 * The suffix of the name of the data directories that must be deleted.
+	 */
+	public final static String OBSOLETE_DIRECTORY_SUFFIX = ".deleted-"; //$NON-NLS-1$
+
+	/**
+	 * The name of the directory containing the data shared by all the
+	 * projects.
+	 */
+	private final static String SHARED_DIRECTORY_NAME = ".shared-data"; //$NON-NLS-1$
+
 	private final IProject project;
 
-	private final ILock factoryMethodStorageLock = Job.getJobManager().newLock();
-	private FactoryMethodStorage factoryMethodStorage = null;
-	private Boolean concrete5NatureFlag = null;
-	private IPath dataPath = null;
+	private final FactoryMethodStorage factoryMethodStorage;
+	/**
+	 * The state of the concrete5 nature (one of the NATURE_... values) in the
+	 * lower bits, and the number of description updates in the other bits (so
+	 * that a state computed before an update is never stored).
+	 */
+	private final AtomicLong natureState = new AtomicLong(NATURE_UNKNOWN);
+	private volatile IPath dataPath = null;
+	private final EvaluationCache<String, IEvaluatedType> returnTypeCache = new EvaluationCache<String, IEvaluatedType>(
+			RETURN_TYPE_CACHE_SIZE);
+	private final EvaluationCache<String, FactoryMethod> factoryClassCache = new EvaluationCache<String, FactoryMethod>(
+			FACTORY_CLASS_CACHE_SIZE);
 
 	public ProjectData(IProject project) {
 		this.project = project;
+		this.factoryMethodStorage = new FactoryMethodStorage(this);
+	}
+
+	public IProject getProject() {
+		return this.project;
 	}
 
 	public void descriptionUpdated() {
-		this.concrete5NatureFlag = null;
+		long state;
+		do {
+			state = this.natureState.get();
+		} while (!this.natureState.compareAndSet(state, (state | NATURE_MASK) + 1L));
 	}
 
 	public FactoryMethodStorage getFactoryMethodStorage() {
-		this.factoryMethodStorageLock.acquire();
-		try {
-			if (this.factoryMethodStorage == null) {
-				this.factoryMethodStorage = new FactoryMethodStorage(this);
-			}
-			return this.factoryMethodStorage;
-		} finally {
-			this.factoryMethodStorageLock.release();
+		return this.factoryMethodStorage;
+	}
+
+	/**
+	 * Get the current state of the factory methods, if they are loaded.
+	 *
+	 * This never blocks: if the factory methods are not loaded yet, their
+	 * loading is scheduled in background and null is returned.
+	 */
+	public FactoryMethodSnapshot getReadySnapshot() {
+		FactoryMethodSnapshot snapshot = this.factoryMethodStorage.getLoadedSnapshot();
+		if (snapshot == null) {
+			WarmUpJob.schedule(this.project);
 		}
+		return snapshot;
+	}
+
+	/**
+	 * Get the cache of the return types of the factory methods (the entries
+	 * are tied to the generation of the factory method storage).
+	 */
+	public EvaluationCache<String, IEvaluatedType> getReturnTypeCache() {
+		return this.returnTypeCache;
+	}
+
+	/**
+	 * Get the cache of the factory methods that apply to a class (defined by
+	 * the class itself or by one of its parent classes); the entries are tied
+	 * to the generation of the factory method storage.
+	 */
+	public EvaluationCache<String, FactoryMethod> getFactoryClassCache() {
+		return this.factoryClassCache;
+	}
 
+	/**
+	 * Discard the cached evaluation results (for instance because the class
+	 * hierarchies may have been changed).
+	 */
+	public void clearEvaluationCaches() {
+		this.returnTypeCache.clear();
+		this.factoryClassCache.clear();
 	}
 
-	public void deleteData() {
-		this.getFactoryMethodStorage().removeAllFactoryMethods();
+	/**
+	 * Write to disk the pending changes of the data of this project.
+	 */
+	public void flush() {
+		this.factoryMethodStorage.flush();
+	}
+
+	/**
+	 * Write to disk the pending changes of the data of this project, and
+	 * release the resources shared with other projects.
+	 */
+	public void close() {
+		this.factoryMethodStorage.close();
+	}
+
+	/**
+	 * Delete the data of this project.
+	 *
+	 * The data in memory is discarded immediately, and the data directory is
+	 * renamed, so that it's no longer used; its contents are deleted later, when
+	 * the change set is applied.
+	 */
+	public void deleteData(ResourceChangeSet changes) {
+		this.factoryMethodStorage.discard();
 		try {
 			File directory = this.getDataPath().toFile();
-			if (directory.isDirectory()) {
-				// Delete files
-				for (File file : directory.listFiles(new FileFilter() {
-					@Override
-					public boolean accept(File pathname) {
-						return pathname.isFile();
-					}
-				})) {
-					file.delete();
-				}
-				// Delete everything else
-				for (File file : directory.listFiles()) {
-					file.delete();
-				}
-				directory.delete();
+			if (!directory.isDirectory()) {
+				return;
 			}
+			File obsoleteDirectory = new File(directory.getParentFile(),
+					directory.getName() + OBSOLETE_DIRECTORY_SUFFIX + System.nanoTime());
+			if (directory.renameTo(obsoleteDirectory)) {
+				directory = obsoleteDirectory;
+			}
+			changes.directoryObsoleted(directory);
 		} catch (Throwable x) {
 		}
 	}
 
 	public boolean hasConcrete5Nature() {
-		if (this.concrete5NatureFlag == null) {
-			IProjectNature nature;
-			try {
-				nature = project.getNature(Concrete5Nature.NATURE_ID);
-			} catch (CoreException e) {
-				nature = null;
-			}
-			this.concrete5NatureFlag = new Boolean(nature != null && nature instanceof Concrete5Nature);
+		long state = this.natureState.get();
+		if ((state & NATURE_MASK) != NATURE_UNKNOWN) {
+			return (state & NATURE_MASK) == NATURE_PRESENT;
+		}
+		IProjectNature nature;
+		try {
+			nature = project.getNature(Concrete5Nature.NATURE_ID);
+		} catch (CoreException e) {
+			nature = null;
+		}
+		boolean result = nature != null && nature instanceof Concrete5Nature;
+		// If the description has been updated meanwhile, the state is not stored
+		this.natureState.compareAndSet(state, state | (result ? NATURE_PRESENT : NATURE_MISSING));
+		return result;
+	}
+
+	/**
+	 * Get the directory containing the data shared by all the projects.
+	 */
+	public static IPath getSharedDataPath() {
+		return Concrete5CorePlugin.getDefault().getStateLocation().append(SHARED_DIRECTORY_NAME);
+	}
+
+	/**
+	 * Delete the shared data no longer used by any project.
+	 */
+	public static void collectGarbage() {
+		Concrete5CorePlugin plugin = Concrete5CorePlugin.getDefault();
+		if (plugin != null) {
+			FactoryMethodStorage.collectGarbage(plugin.getStateLocation().toFile(), getSharedDataPath().toFile());
 		}
-		return this.concrete5NatureFlag.booleanValue();
 	}
 
 	public IPath getDataPath() {
-		if (this.dataPath != null) {
-			return this.dataPath;
+		IPath dataPath = this.dataPath;
+		if (dataPath == null) {
+			Concrete5CorePlugin plugin = Concrete5CorePlugin.getDefault();
+			IPath stateLocation = plugin.getStateLocation();
+			dataPath = stateLocation.append(this.project.getFullPath());
+			this.dataPath = dataPath;
 		}
-		Concrete5CorePlugin plugin = Concrete5CorePlugin.getDefault();
-		IPath stateLocation = plugin.getStateLocation();
-		this.dataPath = stateLocation.append(this.project.getFullPath());
-		return this.dataPath;
+		return dataPath;
 	}
 }
@@ -2,47 +2,137 @@ package org.concrete5.core.builder;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.eclipse.core.resources.IProject;
-import org.eclipse.core.runtime.jobs.ILock;
-import org.eclipse.core.runtime.jobs.Job;
 
+/**
+ * The registry of the data of the projects.
+ *
+ * The registry is lock-free once the data of a project is created: get() is
+ * called for every type inference goal, by any number of threads.
+ *
+ * The data of a closed project is closed (that is, written to disk) later by
+ * ResourceChangeJob, so that the workspace notifications don't wait for the
+ * storage: if the project is opened again before that, the same data is used
+ * again.
+ */
 public class ProjectDataFactory {
 
-	private final static ILock projectContainersLock = Job.getJobManager().newLock();
-	private final static Map<IProject, ProjectData> projectDatas = new HashMap<IProject, ProjectData>();
+	private final static ConcurrentMap<IProject, ProjectData> projectDatas = new ConcurrentHashMap<IProject, ProjectData>();
+
+	/**
+	 * The data of the released projects that is not yet closed (guarded by
+	 * itself, like the creation and the release of the project data).
+	 */
+	private final static Map<IProject, ProjectData> releasedProjectDatas = new HashMap<IProject, ProjectData>();
 
 	public static ProjectData get(IProject project) {
-		projectContainersLock.acquire();
-		try {
-			if (!projectDatas.containsKey(project)) {
-				projectDatas.put(project, new ProjectData(project));
+		ProjectData projectData = projectDatas.get(project);
+		if (projectData == null) {
+			projectData = create(project);
+		}
+		return projectData;
+	}
+
+	private static ProjectData create(IProject project) {
+		for (;;) {
+			ProjectData released;
+			synchronized (releasedProjectDatas) {
+				ProjectData projectData = projectDatas.get(project);
+				if (projectData != null) {
+					return projectData;
+				}
+				released = releasedProjectDatas.get(project);
+				if (released == null) {
+					projectData = new ProjectData(project);
+					projectDatas.put(project, projectData);
+					return projectData;
+				}
+			}
+			// Use the released data again, unless it's being closed: in that
+			// case wait for it to be written, and try again
+			synchronized (released) {
+				synchronized (releasedProjectDatas) {
+					if (releasedProjectDatas.remove(project) == released) {
+						projectDatas.put(project, released);
+						return released;
+					}
+				}
 			}
-			return projectDatas.get(project);
-		} finally {
-			projectContainersLock.release();
 		}
 	}
 
-	public static void release(IProject project) {
-		projectContainersLock.acquire();
-		try {
-			if (projectDatas.containsKey(project)) {
-				projectDatas.remove(project);
+	/**
+	 * Release the data of a project.
+	 *
+	 * @param deleted
+	 *            Has the project been deleted? (its data must have been
+	 *            deleted with ProjectData.deleteData(), so it's closed
+	 *            immediately since there's nothing to write)
+	 * @param changes
+	 *            The change set that will close the data of the closed
+	 *            projects
+	 */
+	public static void release(IProject project, boolean deleted, ResourceChangeSet changes) {
+		ProjectData projectData;
+		synchronized (releasedProjectDatas) {
+			projectData = projectDatas.remove(project);
+			if (projectData != null && !deleted) {
+				releasedProjectDatas.put(project, projectData);
+			}
+		}
+		if (projectData != null) {
+			if (deleted) {
+				projectData.close();
+			} else {
+				changes.projectReleased(projectData);
 			}
-		} finally {
-			projectContainersLock.release();
 		}
 	}
 
-	public static void descriptionUpdated(IProject project) {
-		projectContainersLock.acquire();
-		try {
-			if (projectDatas.containsKey(project)) {
-				projectDatas.get(project).descriptionUpdated();
+	/**
+	 * Close the data of a released project (unless the project has been
+	 * opened again meanwhile).
+	 */
+	static void closeReleased(ProjectData projectData) {
+		IProject project = projectData.getProject();
+		synchronized (projectData) {
+			synchronized (releasedProjectDatas) {
+				if (releasedProjectDatas.get(project) != projectData) {
+					return;
+				}
 			}
-		} finally {
-			projectContainersLock.release();
+			projectData.close();
+			synchronized (releasedProjectDatas) {
+				releasedProjectDatas.remove(project);
+			}
+		}
+	}
+
+	/**
+	 * Write to disk the pending changes of the data of all the projects.
+	 */
+	public static void flushAll() {
+		for (ProjectData projectData : projectDatas.values()) {
+			projectData.flush();
+		}
+	}
+
+	/**
+	 * Discard the cached evaluation results of all the projects.
+	 */
+	public static void clearEvaluationCaches() {
+		for (ProjectData projectData : projectDatas.values()) {
+			projectData.clearEvaluationCaches();
+		}
+	}
+
+	public static void descriptionUpdated(IProject project) {
+		ProjectData projectData = projectDatas.get(project);
+		if (projectData != null) {
+			projectData.descriptionUpdated();
 		}
 	}
 }
@@ -0,0 +1,128 @@
+package org.concrete5.core.builder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.concrete5.core.metrics.Metrics;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * The background job that applies the changes collected from the resource
+ * deltas.
+ *
+ * All the change sets queued when the job runs are merged, and the changes of
+ * every project are applied as a single storage batch. The removals and moves
+ * of the files that have been indexed again after they happened are skipped,
+ * so that they never wipe the newer factory methods.
+ */
+public class ResourceChangeJob extends Job {
+
+	private final static ConcurrentLinkedQueue<ResourceChangeSet> queue = new ConcurrentLinkedQueue<ResourceChangeSet>();
+	private final static Object processLock = new Object();
+	private static ResourceChangeJob instance = null;
+
+	private ResourceChangeJob() {
+		super("Updating concrete5 data"); //$NON-NLS-1$
+		this.setSystem(true);
+		this.setPriority(Job.LONG);
+	}
+
+	/**
+	 * Schedule the application of a set of changes.
+	 */
+	public static void enqueue(ResourceChangeSet changes) {
+		if (changes == null || changes.isEmpty()) {
+			return;
+		}
+		queue.add(changes);
+		getInstance().schedule();
+	}
+
+	/**
+	 * Apply the queued changes in the current thread.
+	 */
+	public static void processPending() {
+		synchronized (processLock) {
+			List<ResourceChangeSet> changeSets = new ArrayList<ResourceChangeSet>();
+			ResourceChangeSet changes;
+			while ((changes = queue.poll()) != null) {
+				changeSets.add(changes);
+			}
+			if (changeSets.isEmpty()) {
+				return;
+			}
+			long start = Metrics.start();
+			Map<ProjectData, FactoryMethodStorage.Batch> batches = new LinkedHashMap<ProjectData, FactoryMethodStorage.Batch>();
+			List<File> obsoleteDirectories = new ArrayList<File>();
+			List<ProjectData> releasedProjects = new ArrayList<ProjectData>();
+			for (ResourceChangeSet changeSet : changeSets) {
+				for (Map.Entry<ProjectData, List<ResourceChangeSet.FileChange>> entry : changeSet.getFileChanges().entrySet()) {
+					FactoryMethodStorage.Batch batch = batches.get(entry.getKey());
+					if (batch == null) {
+						batch = entry.getKey().getFactoryMethodStorage().beginBatch();
+						batches.put(entry.getKey(), batch);
+					}
+					for (ResourceChangeSet.FileChange fileChange : entry.getValue()) {
+						if (fileChange.newPath == null) {
+							batch.resetForPath(fileChange.oldPath, fileChange.since);
+						} else {
+							batch.renameForPath(fileChange.oldPath, fileChange.newPath, fileChange.since);
+						}
+					}
+				}
+				obsoleteDirectories.addAll(changeSet.getObsoleteDirectories());
+				releasedProjects.addAll(changeSet.getReleasedProjects());
+			}
+			for (FactoryMethodStorage.Batch batch : batches.values()) {
+				batch.commit();
+			}
+			for (ProjectData projectData : releasedProjects) {
+				ProjectDataFactory.closeReleased(projectData);
+			}
+			for (File directory : obsoleteDirectories) {
+				deleteDirectory(directory);
+			}
+			if (!obsoleteDirectories.isEmpty()) {
+				// The deleted projects may have been the only users of some
+				// shared data
+				ProjectData.collectGarbage();
+			}
+			Metrics.RESOURCE_CHANGES.recordSince(start);
+		}
+	}
+
+	private static synchronized ResourceChangeJob getInstance() {
+		if (instance == null) {
+			instance = new ResourceChangeJob();
+		}
+		return instance;
+	}
+
+	private static void deleteDirectory(File directory) {
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					deleteDirectory(child);
+				} else {
+					child.delete();
+				}
+			}
+		}
+		directory.delete();
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		processPending();
+		return Status.OK_STATUS;
+	}
+}
@@ -0,0 +1,111 @@
+package org.concrete5.core.builder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes to the workspace resources that affect the data of the
+ * projects.
+ *
+ * The changes are collected from a resource delta, and applied later by
+ * ResourceChangeJob, so that the workspace notifications are never slowed
+ * down by the storage.
+ */
+public class ResourceChangeSet {
+
+	/**
+	 * The removed and moved files of every project.
+	 */
+	private final Map<ProjectData, List<FileChange>> fileChanges = new LinkedHashMap<ProjectData, List<FileChange>>();
+
+	/**
+	 * The directories to be deleted.
+	 */
+	private final List<File> obsoleteDirectories = new ArrayList<File>();
+
+	/**
+	 * The data of the closed projects, to be closed once the changes are
+	 * applied.
+	 */
+	private final List<ProjectData> releasedProjects = new ArrayList<ProjectData>();
+
+	/**
+	 * Record the removal of a file.
+	 */
+	public void fileRemoved(ProjectData projectData, String path) {
+		this.getFileChanges(projectData).add(new FileChange(projectData, path, null));
+	}
+
+	/**
+	 * Record the move of a file.
+	 */
+	public void fileMoved(ProjectData projectData, String oldPath, String newPath) {
+		this.getFileChanges(projectData).add(new FileChange(projectData, oldPath, newPath));
+	}
+
+	/**
+	 * Record a directory (and all its contents) that must be deleted.
+	 */
+	public void directoryObsoleted(File directory) {
+		this.obsoleteDirectories.add(directory);
+	}
+
+	/**
+	 * Record the data of a project that has been closed (see
+	 * ProjectDataFactory.release()).
+	 */
+	public void projectReleased(ProjectData projectData) {
+		this.releasedProjects.add(projectData);
+	}
+
+	public boolean isEmpty() {
+		return this.fileChanges.isEmpty() && this.obsoleteDirectories.isEmpty() && this.releasedProjects.isEmpty();
+	}
+
+	Map<ProjectData, List<FileChange>> getFileChanges() {
+		return this.fileChanges;
+	}
+
+	List<File> getObsoleteDirectories() {
+		return this.obsoleteDirectories;
+	}
+
+	List<ProjectData> getReleasedProjects() {
+		return this.releasedProjects;
+	}
+
+	private List<FileChange> getFileChanges(ProjectData projectData) {
+		List<FileChange> result = this.fileChanges.get(projectData);
+		if (result == null) {
+			result = new ArrayList<FileChange>();
+			this.fileChanges.put(projectData, result);
+		}
+		return result;
+	}
+
+	/**
+	 * A removed or moved file.
+	 */
+	static class FileChange {
+		final String oldPath;
+		/**
+		 * The new path (null for removed files).
+		 */
+		final String newPath;
+		/**
+		 * The change count of the storage when the file was removed or moved:
+		 * the change is skipped if the file is indexed again before the change
+		 * is applied.
+		 */
+		final long since;
+
+		FileChange(ProjectData projectData, String oldPath, String newPath) {
+			this.oldPath = oldPath;
+			this.newPath = newPath;
+			this.since = projectData.getFactoryMethodStorage().getChangeCount();
+		}
+	}
+}
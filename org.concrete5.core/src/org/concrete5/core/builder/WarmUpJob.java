@@ -0,0 +1,94 @@
+package org.concrete5.core.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.concrete5.core.index.MetaFileScanJob;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * The low priority background job that loads the factory methods of the
+ * concrete5 projects, so that the type inference never waits for them.
+ *
+ * Once the factory methods of a project are loaded, the PHPSTORM_META files
+ * not yet known are scanned (see MetaFileScanJob).
+ */
+public class WarmUpJob extends Job {
+
+	/**
+	 * The family of all the jobs of this kind.
+	 */
+	public final static Object FAMILY = WarmUpJob.class;
+
+	private final static Set<IProject> pending = Collections
+			.newSetFromMap(new ConcurrentHashMap<IProject, Boolean>());
+	private static WarmUpJob instance = null;
+	private static boolean garbageCollected = false;
+
+	private WarmUpJob() {
+		super("Loading concrete5 factory methods"); //$NON-NLS-1$
+		this.setPriority(Job.DECORATE);
+	}
+
+	/**
+	 * Schedule the loading of the data of a project (projects without the
+	 * concrete5 nature are skipped).
+	 */
+	public static void schedule(IProject project) {
+		if (project != null && pending.add(project)) {
+			getInstance().schedule();
+		}
+	}
+
+	private static synchronized WarmUpJob getInstance() {
+		if (instance == null) {
+			instance = new WarmUpJob();
+		}
+		return instance;
+	}
+
+	@Override
+	public boolean belongsTo(Object family) {
+		return family == FAMILY;
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		while (!pending.isEmpty()) {
+			List<IProject> projects = new ArrayList<IProject>(pending);
+			monitor.beginTask(this.getName(), projects.size());
+			for (IProject project : projects) {
+				if (monitor.isCanceled()) {
+					// Let the next requests for the data of the projects not
+					// loaded schedule them again
+					pending.clear();
+					return Status.CANCEL_STATUS;
+				}
+				pending.remove(project);
+				monitor.subTask(project.getName());
+				if (project.isAccessible()) {
+					ProjectData projectData = ProjectDataFactory.get(project);
+					if (projectData.hasConcrete5Nature()) {
+						projectData.getFactoryMethodStorage().getSnapshot();
+						MetaFileScanJob.schedule(project);
+					}
+				}
+				monitor.worked(1);
+			}
+			monitor.done();
+		}
+		if (!garbageCollected) {
+			// Once per session, after the projects are loaded
+			garbageCollected = true;
+			ProjectData.collectGarbage();
+		}
+		return Status.OK_STATUS;
+	}
+}
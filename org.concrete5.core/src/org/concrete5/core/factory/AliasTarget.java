@@ -0,0 +1,144 @@
+package org.concrete5.core.factory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.dltk.evaluation.types.AmbiguousType;
+import org.eclipse.dltk.evaluation.types.MultiTypeType;
+import org.eclipse.dltk.ti.types.IEvaluatedType;
+import org.eclipse.php.core.compiler.ast.nodes.NamespaceReference;
+import org.eclipse.php.internal.core.typeinference.PHPClassType;
+import org.eclipse.php.internal.core.typeinference.PHPSimpleTypes;
+
+/**
+ * The types described by an alias value (for example
+ * <code>Foo\Bar|Foo\Baz[]|@</code>).
+ *
+ * Alias values are compiled when their factory method is indexed or loaded
+ * (see FactoryMethod.compileAliases()), and only the parts that refer to the
+ * method argument (<code>@</code>) need to be resolved for every call. The
+ * compiled types are immutable and shared by all the evaluations.
+ */
+@SuppressWarnings("restriction")
+public final class AliasTarget {
+
+	private final static String PASSTHROUGH = "@"; //$NON-NLS-1$
+	private final static String ARRAY_SUFFIX = "[]"; //$NON-NLS-1$
+
+	/**
+	 * The target of the empty aliases (it doesn't describe any type).
+	 */
+	private final static AliasTarget NONE = new AliasTarget(""); //$NON-NLS-1$
+
+	/**
+	 * The types of every part of the alias (null for the passthrough parts).
+	 */
+	private final IEvaluatedType[] types;
+	/**
+	 * For the passthrough parts, tells if the argument type is an array.
+	 */
+	private final boolean[] passthroughArrays;
+	/**
+	 * The resulting type, when the alias has no passthrough parts.
+	 */
+	private final IEvaluatedType fixedType;
+
+	private AliasTarget(String alias) {
+		String[] parts = alias.split("\\|"); //$NON-NLS-1$
+		List<IEvaluatedType> types = new ArrayList<IEvaluatedType>(parts.length);
+		List<Boolean> passthroughArrays = new ArrayList<Boolean>(parts.length);
+		boolean hasPassthrough = false;
+		for (String part : parts) {
+			boolean isArray = part.length() >= 2 && part.endsWith(ARRAY_SUFFIX);
+			if (isArray) {
+				part = part.substring(0, part.length() - 2);
+			}
+			if (part.isEmpty()) {
+				continue;
+			}
+			if (part.equals(PASSTHROUGH)) {
+				types.add(null);
+				hasPassthrough = true;
+			} else {
+				types.add(createType(part, isArray));
+			}
+			passthroughArrays.add(Boolean.valueOf(isArray));
+		}
+		this.types = types.toArray(new IEvaluatedType[types.size()]);
+		this.passthroughArrays = new boolean[this.types.length];
+		for (int i = 0; i < this.passthroughArrays.length; i++) {
+			this.passthroughArrays[i] = passthroughArrays.get(i).booleanValue();
+		}
+		this.fixedType = hasPassthrough ? null : combine(this.types, this.types.length);
+	}
+
+	/**
+	 * Parse an alias value.
+	 *
+	 * @return Return a target without types if the alias is empty
+	 */
+	public static AliasTarget compile(String alias) {
+		if (alias == null || alias.isEmpty()) {
+			return NONE;
+		}
+		return new AliasTarget(alias);
+	}
+
+	/**
+	 * Get the type described by this alias.
+	 *
+	 * @param methodArgument
+	 *            The value of the discriminator argument (used by the
+	 *            passthrough parts)
+	 *
+	 * @return Return null if the alias doesn't describe any type (the
+	 *         returned type may be shared, so it must not be modified)
+	 */
+	public IEvaluatedType resolve(String methodArgument) {
+		if (this.fixedType != null || this.types.length == 0) {
+			return this.fixedType;
+		}
+		IEvaluatedType[] types = new IEvaluatedType[this.types.length];
+		int numTypes = 0;
+		for (int i = 0; i < this.types.length; i++) {
+			IEvaluatedType type = this.types[i];
+			if (type == null) {
+				if (methodArgument == null || methodArgument.isEmpty()) {
+					continue;
+				}
+				type = createType(methodArgument, this.passthroughArrays[i]);
+			}
+			types[numTypes++] = type;
+		}
+		return combine(types, numTypes);
+	}
+
+	private static IEvaluatedType combine(IEvaluatedType[] types, int numTypes) {
+		switch (numTypes) {
+		case 0:
+			return null;
+		case 1:
+			return types[0];
+		default:
+			IEvaluatedType[] typeArray = new IEvaluatedType[numTypes];
+			System.arraycopy(types, 0, typeArray, 0, numTypes);
+			return new AmbiguousType(typeArray);
+		}
+	}
+
+	private static IEvaluatedType createType(String typeName, boolean isArray) {
+		IEvaluatedType type = PHPSimpleTypes.fromString(typeName);
+		if (type == null) {
+			if (typeName.charAt(0) != NamespaceReference.NAMESPACE_SEPARATOR) {
+				typeName = NamespaceReference.NAMESPACE_DELIMITER.concat(typeName);
+			}
+			type = new PHPClassType(typeName);
+		}
+		if (!isArray) {
+			return type;
+		}
+		MultiTypeType arrayType = new MultiTypeType();
+		arrayType.addType(type);
+		return arrayType;
+	}
+}
@@ -0,0 +1,17 @@
+package org.concrete5.core.factory;
+
+import java.util.Map;
+
+/**
+ * An alias map that keeps the compiled version of its values (see
+ * AliasTarget).
+ */
+public interface CompiledAliasMap extends Map<String, String> {
+
+	/**
+	 * Get the compiled value of a key.
+	 *
+	 * @return Return null if the key is not in the map
+	 */
+	AliasTarget getAliasTarget(String key);
+}
@@ -7,22 +7,74 @@ import java.util.Map;
 public class FactoryMethod implements Serializable {
 	private static final long serialVersionUID = 2L;
 	public final static int TYPE_INSTANCEMETHOD = 0x001;
-	public String definerResourcePath;
+	public final String definerResourcePath;
 	public final String className;
 	public final String methodName;
 	public final int discrimintatorIndex;
 	public final int type;
 	public final Map<String, String> aliases;
 	public String fallbackAlias;
+	/**
+	 * The compiled version of fallbackAlias (see compileAliases()).
+	 */
+	private transient AliasTarget fallbackTarget;
 
 	public FactoryMethod(String definerResourcePath, String className, String methodName, int discrimintatorIndex,
 			int type) {
+		this(definerResourcePath, className, methodName, discrimintatorIndex, type, new HashMap<String, String>(), "");
+	}
+
+	public FactoryMethod(String definerResourcePath, String className, String methodName, int discrimintatorIndex,
+			int type, Map<String, String> aliases, String fallbackAlias) {
 		this.definerResourcePath = definerResourcePath;
 		this.className = className;
 		this.methodName = methodName;
 		this.discrimintatorIndex = discrimintatorIndex;
 		this.type = type;
-		this.aliases = new HashMap<String, String>();
-		this.fallbackAlias = "";
+		this.aliases = aliases;
+		this.fallbackAlias = fallbackAlias;
+	}
+
+	/**
+	 * Create a copy of this factory method defined in another resource (the
+	 * aliases are shared with this instance).
+	 */
+	public FactoryMethod withDefinerResourcePath(String definerResourcePath) {
+		FactoryMethod result = new FactoryMethod(definerResourcePath, this.className, this.methodName,
+				this.discrimintatorIndex, this.type, this.aliases, this.fallbackAlias);
+		result.fallbackTarget = this.fallbackTarget;
+		return result;
+	}
+
+	/**
+	 * Compile the fallback alias, once this factory method is complete (the
+	 * storage calls it when the factory method is indexed or loaded, and
+	 * compiles the values of the alias maps it shares).
+	 */
+	public void compileAliases() {
+		this.fallbackTarget = AliasTarget.compile(this.fallbackAlias);
+	}
+
+	/**
+	 * Get the alias of a value of the discriminator argument.
+	 *
+	 * @param methodArgument
+	 *            The value of the discriminator argument (if known)
+	 *
+	 * @return Return the fallback alias if the argument is not in the aliases
+	 */
+	public AliasTarget getAliasTarget(String methodArgument) {
+		if (methodArgument != null && !methodArgument.isEmpty()) {
+			if (this.aliases instanceof CompiledAliasMap) {
+				AliasTarget result = ((CompiledAliasMap) this.aliases).getAliasTarget(methodArgument);
+				if (result != null) {
+					return result;
+				}
+			} else if (this.aliases.containsKey(methodArgument)) {
+				return AliasTarget.compile(this.aliases.get(methodArgument));
+			}
+		}
+		AliasTarget result = this.fallbackTarget;
+		return result == null ? AliasTarget.compile(this.fallbackAlias) : result;
 	}
 }
@@ -0,0 +1,171 @@
+package org.concrete5.core.goals;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of evaluation results, with LRU eviction.
+ *
+ * Entries are tied to a generation (for instance the generation of the
+ * factory method storage): when a newer generation is used, all the entries
+ * are discarded. Concurrent requests for the same missing key are coalesced
+ * into a single computation.
+ *
+ * @param <K>
+ *            The type of the keys
+ * @param <V>
+ *            The type of the values (null values are cached too)
+ */
+public class EvaluationCache<K, V> {
+
+	/**
+	 * Compute the value of a missing entry.
+	 */
+	public interface Loader<V> {
+		V load();
+	}
+
+	/**
+	 * The maximum number of milliseconds to wait for the computation of
+	 * another thread (after that, the value is computed by the waiting thread).
+	 * The callers are code assist and hover requests, often started from the
+	 * UI, so this is kept to about the duration of a single evaluation.
+	 */
+	private final static long AWAIT_TIMEOUT = 50L;
+
+	private final int maxSize;
+	private final long awaitTimeout;
+	private final Map<K, V> entries;
+	private final Map<K, Pending<V>> pending = new HashMap<K, Pending<V>>();
+	private long generation = 0L;
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of entries
+	 */
+	public EvaluationCache(int maxSize) {
+		this(maxSize, AWAIT_TIMEOUT);
+	}
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of entries
+	 * @param awaitTimeout
+	 *            The maximum number of milliseconds to wait for the computation
+	 *            of another thread
+	 */
+	EvaluationCache(int maxSize, long awaitTimeout) {
+		this.maxSize = maxSize;
+		this.awaitTimeout = awaitTimeout;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return this.size() > EvaluationCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get a value, computing it if it's not cached.
+	 *
+	 * @param generation
+	 *            The generation of the data used to compute the value
+	 * @param key
+	 *            The key of the value
+	 * @param loader
+	 *            The object that computes the value (called without holding any
+	 *            lock)
+	 */
+	public V get(long generation, K key, Loader<V> loader) {
+		Pending<V> pending;
+		boolean owner = false;
+		synchronized (this) {
+			if (generation < this.generation) {
+				// Computed with outdated data: don't cache it
+				pending = null;
+			} else {
+				if (generation > this.generation) {
+					this.clear();
+					this.generation = generation;
+				}
+				if (this.entries.containsKey(key)) {
+					return this.entries.get(key);
+				}
+				pending = this.pending.get(key);
+				if (pending == null) {
+					pending = new Pending<V>();
+					this.pending.put(key, pending);
+					owner = true;
+				} else if (pending.thread == Thread.currentThread()) {
+					// Recursive request for the same key
+					pending = null;
+				}
+			}
+		}
+		if (pending == null) {
+			return loader.load();
+		}
+		if (!owner) {
+			return pending.await(loader, this.awaitTimeout);
+		}
+		V value = null;
+		boolean loaded = false;
+		try {
+			value = loader.load();
+			loaded = true;
+		} finally {
+			synchronized (this) {
+				if (this.pending.get(key) == pending) {
+					this.pending.remove(key);
+					if (loaded && generation == this.generation) {
+						this.entries.put(key, value);
+					}
+				}
+			}
+			pending.done(value, loaded);
+		}
+		return value;
+	}
+
+	/**
+	 * Discard all the cached entries.
+	 */
+	public synchronized void clear() {
+		this.entries.clear();
+		this.pending.clear();
+	}
+
+	private static class Pending<V> {
+		final Thread thread = Thread.currentThread();
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private V value = null;
+		private boolean loaded = false;
+
+		void done(V value, boolean loaded) {
+			this.value = value;
+			this.loaded = loaded;
+			this.latch.countDown();
+		}
+
+		/**
+		 * Wait for the value computed by another thread (if that computation
+		 * fails or takes too long, the value is computed by the current thread).
+		 */
+		V await(Loader<V> loader, long timeout) {
+			try {
+				if (!this.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+					return loader.load();
+				}
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				return loader.load();
+			}
+			return this.loaded ? this.value : loader.load();
+		}
+	}
+}
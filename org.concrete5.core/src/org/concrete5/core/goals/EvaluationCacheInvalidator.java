@@ -0,0 +1,63 @@
+package org.concrete5.core.goals;
+
+import org.concrete5.core.builder.ProjectDataFactory;
+import org.eclipse.dltk.core.ElementChangedEvent;
+import org.eclipse.dltk.core.IElementChangedListener;
+import org.eclipse.dltk.core.IModelElement;
+import org.eclipse.dltk.core.IModelElementDelta;
+
+/**
+ * Discard the cached evaluation results when the PHP model changes in a way
+ * that may affect the class hierarchies.
+ *
+ * Changes to the members of the classes (methods and fields) don't affect the
+ * hierarchies, so they don't invalidate the caches.
+ */
+public class EvaluationCacheInvalidator implements IElementChangedListener {
+
+	@Override
+	public void elementChanged(ElementChangedEvent event) {
+		IModelElementDelta delta = event == null ? null : event.getDelta();
+		if (delta != null && affectsHierarchies(delta)) {
+			ProjectDataFactory.clearEvaluationCaches();
+		}
+	}
+
+	private static boolean affectsHierarchies(IModelElementDelta delta) {
+		IModelElement element = delta.getElement();
+		int elementType = element == null ? 0 : element.getElementType();
+		int kind = delta.getKind();
+		int flags = delta.getFlags();
+		switch (elementType) {
+		case IModelElement.FIELD:
+		case IModelElement.METHOD:
+			return false;
+		case IModelElement.SOURCE_MODULE:
+			if (kind != IModelElementDelta.CHANGED) {
+				return true;
+			}
+			if ((flags & IModelElementDelta.F_CONTENT) != 0 && (flags & IModelElementDelta.F_FINE_GRAINED) == 0) {
+				// We don't know what changed
+				return true;
+			}
+			break;
+		default:
+			if (kind != IModelElementDelta.CHANGED) {
+				return true;
+			}
+			if (elementType != IModelElement.SCRIPT_MODEL && (flags & ~IModelElementDelta.F_CHILDREN) != 0) {
+				return true;
+			}
+			break;
+		}
+		IModelElementDelta[] children = delta.getAffectedChildren();
+		if (children != null) {
+			for (IModelElementDelta child : children) {
+				if (child != null && affectsHierarchies(child)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
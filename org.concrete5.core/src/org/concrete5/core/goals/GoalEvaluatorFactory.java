@@ -1,10 +1,16 @@
 package org.concrete5.core.goals;
 
 import org.concrete5.core.Common;
+import org.concrete5.core.builder.ProjectData;
+import org.concrete5.core.builder.ProjectDataFactory;
 import org.concrete5.core.goals.evaluator.FactoryMethodMethodReturnTypeEvaluator;
+import org.concrete5.core.metrics.Metrics;
+import org.concrete5.core.storage.FactoryMethodSnapshot;
+import org.eclipse.core.resources.IProject;
 import org.eclipse.dltk.ti.IGoalEvaluatorFactory;
 import org.eclipse.dltk.ti.goals.GoalEvaluator;
 import org.eclipse.dltk.ti.goals.IGoal;
+import org.eclipse.php.core.compiler.ast.nodes.NamespaceReference;
 import org.eclipse.php.internal.core.typeinference.goals.FactoryMethodMethodReturnTypeGoal;
 
 @SuppressWarnings("restriction")
@@ -12,9 +18,35 @@ public class GoalEvaluatorFactory implements IGoalEvaluatorFactory {
 
 	@Override
 	public GoalEvaluator createEvaluator(IGoal goal) {
-		if (goal instanceof FactoryMethodMethodReturnTypeGoal && Common.hasConcrete5Nature(goal.getContext())) {
-			return new FactoryMethodMethodReturnTypeEvaluator((FactoryMethodMethodReturnTypeGoal) goal);
+		if (!(goal instanceof FactoryMethodMethodReturnTypeGoal)) {
+			return null;
 		}
-		return null;
+		Metrics.GOALS_REQUESTED.increment();
+		FactoryMethodMethodReturnTypeGoal typedGoal = (FactoryMethodMethodReturnTypeGoal) goal;
+		IProject project = Common.getProject(goal.getContext());
+		if (project == null) {
+			return null;
+		}
+		ProjectData projectData = ProjectDataFactory.get(project);
+		if (!projectData.hasConcrete5Nature() || !mightBeFactoryMethod(projectData, typedGoal.getMethodName())) {
+			return null;
+		}
+		Metrics.GOALS_CREATED.increment();
+		return new FactoryMethodMethodReturnTypeEvaluator(typedGoal);
+	}
+
+	/**
+	 * Quickly reject the methods that are surely not factory methods (and all
+	 * the methods, if the factory methods are not loaded yet).
+	 */
+	private static boolean mightBeFactoryMethod(ProjectData projectData, String methodName) {
+		if (methodName == null || methodName.isEmpty()) {
+			return false;
+		}
+		if (methodName.charAt(0) == NamespaceReference.NAMESPACE_SEPARATOR) {
+			methodName = methodName.substring(1);
+		}
+		FactoryMethodSnapshot snapshot = projectData.getReadySnapshot();
+		return snapshot != null && snapshot.mightHaveFactoryMethods(methodName);
 	}
 }
@@ -1,18 +1,19 @@
 package org.concrete5.core.goals.evaluator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Locale;
 
+import org.concrete5.core.builder.ProjectData;
 import org.concrete5.core.builder.ProjectDataFactory;
 import org.concrete5.core.factory.FactoryMethod;
-import org.concrete5.core.storage.FactoryMethodStorage;
+import org.concrete5.core.goals.EvaluationCache;
+import org.concrete5.core.metrics.FlightEvents;
+import org.concrete5.core.metrics.Metrics;
+import org.concrete5.core.storage.FactoryMethodSnapshot;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.dltk.core.IScriptProject;
 import org.eclipse.dltk.core.IType;
 import org.eclipse.dltk.core.ITypeHierarchy;
 import org.eclipse.dltk.core.ModelException;
-import org.eclipse.dltk.evaluation.types.AmbiguousType;
-import org.eclipse.dltk.evaluation.types.MultiTypeType;
 import org.eclipse.dltk.ti.GoalState;
 import org.eclipse.dltk.ti.IContext;
 import org.eclipse.dltk.ti.ISourceModuleContext;
@@ -23,7 +24,6 @@ import org.eclipse.php.core.compiler.ast.nodes.NamespaceReference;
 import org.eclipse.php.internal.core.typeinference.IModelAccessCache;
 import org.eclipse.php.internal.core.typeinference.PHPClassType;
 import org.eclipse.php.internal.core.typeinference.PHPModelUtils;
-import org.eclipse.php.internal.core.typeinference.PHPSimpleTypes;
 import org.eclipse.php.internal.core.typeinference.PHPTypeInferenceUtils;
 import org.eclipse.php.internal.core.typeinference.context.IModelCacheContext;
 import org.eclipse.php.internal.core.typeinference.goals.FactoryMethodMethodReturnTypeGoal;
@@ -34,9 +34,24 @@ public class FactoryMethodMethodReturnTypeEvaluator extends GoalEvaluator {
 	private boolean resultCalculated = false;
 	private IEvaluatedType result = null;
 	private FactoryMethodMethodReturnTypeGoal typedGoal;
-	private List<FactoryMethod> prospectiveFactoryMethods;
+	private ProjectData projectData;
+	private FactoryMethodSnapshot factoryMethodSnapshot;
+	/**
+	 * The name of the called method, lower-cased (method names are case
+	 * insensitive).
+	 */
+	private String factoryMethodName;
 	private ISourceModuleContext sourceModuleContext;
 	private IModelAccessCache contextCache;
+	/**
+	 * Was the result read from the return type cache?
+	 */
+	private boolean cacheHit = false;
+	/**
+	 * The number of parent class levels walked so far (and the maximum one).
+	 */
+	private int hierarchyDepth = 0;
+	private int maxHierarchyDepth = 0;
 
 	public FactoryMethodMethodReturnTypeEvaluator(FactoryMethodMethodReturnTypeGoal goal) {
 		super(goal);
@@ -57,9 +72,22 @@ public class FactoryMethodMethodReturnTypeEvaluator extends GoalEvaluator {
 	@Override
 	public Object produceResult() {
 		if (this.resultCalculated == false) {
+			long start = Metrics.start();
+			Object event = FlightEvents.beginEvaluation();
 			this.result = this.calculateReult();
 			this.resultCalculated = true;
+			if (this.result == null) {
+				Metrics.EVALUATOR_MISSES.recordSince(start);
+			} else {
+				Metrics.EVALUATOR_HITS.recordSince(start);
+			}
+			if (event != null) {
+				FlightEvents.commitEvaluation(event, this.typedGoal.getMethodName(), getReceiverName(this.typedGoal),
+						this.maxHierarchyDepth, this.cacheHit);
+			}
 		}
+		// The result may be shared with other evaluations (by the return type
+		// cache and by the compiled aliases): PDT only reads it
 		return this.result;
 	}
 
@@ -68,10 +96,82 @@ public class FactoryMethodMethodReturnTypeEvaluator extends GoalEvaluator {
 		IContext context = goal.getContext();
 		this.sourceModuleContext = (context instanceof ISourceModuleContext) ? (ISourceModuleContext) context : null;
 		this.contextCache = (context instanceof IModelCacheContext) ? ((IModelCacheContext) context).getCache() : null;
-		this.prospectiveFactoryMethods = this.getProspectiveFactoryMethods();
-		if (prospectiveFactoryMethods == null) {
+		if (!this.initFactoryMethodSnapshot()) {
+			return null;
+		}
+		String cacheKey = this.getCacheKey();
+		if (cacheKey == null) {
+			return this.evaluate();
+		}
+		this.cacheHit = true;
+		return this.projectData.getReturnTypeCache().get(this.factoryMethodSnapshot.getGeneration(), cacheKey,
+				new EvaluationCache.Loader<IEvaluatedType>() {
+					@Override
+					public IEvaluatedType load() {
+						FactoryMethodMethodReturnTypeEvaluator.this.cacheHit = false;
+						return FactoryMethodMethodReturnTypeEvaluator.this.evaluate();
+					}
+				});
+	}
+
+	/**
+	 * Get the name of the type the method is called on (for diagnostic
+	 * purposes).
+	 */
+	private static String getReceiverName(FactoryMethodMethodReturnTypeGoal goal) {
+		IEvaluatedType evaluatedType = goal.getEvaluatedType();
+		if (evaluatedType != null) {
+			return evaluatedType.getTypeName();
+		}
+		IType[] types = goal.getTypes();
+		if (types != null && types.length > 0 && types[0] != null) {
+			return types[0].getTypeQualifiedName(NamespaceReference.NAMESPACE_DELIMITER);
+		}
+		return null;
+	}
+
+	/**
+	 * Build the key of the return type cache: the receiver type, the method
+	 * name and the method arguments.
+	 *
+	 * @return Return null if the result can't be cached
+	 */
+	private String getCacheKey() {
+		IEvaluatedType evaluatedType = this.typedGoal.getEvaluatedType();
+		IType[] types = this.typedGoal.getTypes();
+		String[] methodArguments = this.typedGoal.getArgNames();
+		int capacity = 64 + this.factoryMethodName.length();
+		if (methodArguments != null) {
+			for (String methodArgument : methodArguments) {
+				capacity += 1 + (methodArgument == null ? 4 : methodArgument.length());
+			}
+		}
+		StringBuilder key = new StringBuilder(capacity);
+		if (evaluatedType instanceof PHPClassType) {
+			key.append('C').append(((PHPClassType) evaluatedType).getTypeName());
+		} else if (types != null) {
+			key.append('T');
+			for (IType type : types) {
+				if (type == null) {
+					return null;
+				}
+				key.append(type.getTypeQualifiedName(NamespaceReference.NAMESPACE_DELIMITER)).append('|');
+			}
+		} else if (evaluatedType == null) {
+			key.append('F');
+		} else {
 			return null;
 		}
+		key.append('\0').append(this.factoryMethodName);
+		if (methodArguments != null) {
+			for (String methodArgument : methodArguments) {
+				key.append('\0').append(methodArgument);
+			}
+		}
+		return key.toString();
+	}
+
+	private IEvaluatedType evaluate() {
 		FactoryMethod factoryMethod = null;
 		IEvaluatedType evaluatedType = this.typedGoal.getEvaluatedType();
 		if (evaluatedType instanceof PHPClassType) {
@@ -100,66 +200,50 @@ public class FactoryMethodMethodReturnTypeEvaluator extends GoalEvaluator {
 				methodArgument = methodArguments[factoryMethod.discrimintatorIndex];
 			}
 		}
-		String alias;
-		if (methodArgument == null || methodArgument.length() == 0
-				|| !factoryMethod.aliases.containsKey(methodArgument)) {
-			alias = factoryMethod.fallbackAlias;
-		} else {
-			alias = factoryMethod.aliases.get(methodArgument);
-		}
-		if (alias == null || alias.isEmpty()) {
-			return null;
-		}
-		String[] aliases = alias.split("\\|");
-		return this.resolveAlias(aliases, methodArgument);
+		return factoryMethod.getAliasTarget(methodArgument).resolve(methodArgument);
 	}
 
 	/**
-	 * Get the prospective behavior of a factory method call.
+	 * Resolve the storage of the current project, and check if it contains
+	 * factory methods with the name of the method being called (if the storage
+	 * is not loaded yet, we don't wait for it).
 	 */
-	private List<FactoryMethod> getProspectiveFactoryMethods() {
+	private boolean initFactoryMethodSnapshot() {
 		String methodName = this.typedGoal.getMethodName();
 		if (methodName == null || methodName.isEmpty()) {
-			return null;
+			return false;
 		}
 		if (methodName.charAt(0) == NamespaceReference.NAMESPACE_SEPARATOR) {
 			methodName = methodName.substring(1);
 			if (methodName.isEmpty()) {
-				return null;
+				return false;
 			}
 		}
 		if (this.sourceModuleContext == null) {
-			return null;
+			return false;
 		}
 		IScriptProject scriptProject = this.sourceModuleContext.getSourceModule().getScriptProject();
 		if (scriptProject == null) {
-			return null;
+			return false;
 		}
 		IProject project = scriptProject.getProject();
 		if (project == null) {
-			return null;
+			return false;
 		}
-		FactoryMethodStorage fmStorage = ProjectDataFactory.get(project).getFactoryMethodStorage();
-		List<FactoryMethod> result = fmStorage.getFactoryMethodsByMethodName(methodName,
-				FactoryMethod.TYPE_INSTANCEMETHOD);
-		return result.size() == 0 ? null : result;
+		ProjectData projectData = ProjectDataFactory.get(project);
+		FactoryMethodSnapshot snapshot = projectData.getReadySnapshot();
+		if (snapshot == null || !snapshot.hasFactoryMethods(methodName, FactoryMethod.TYPE_INSTANCEMETHOD)) {
+			return false;
+		}
+		this.projectData = projectData;
+		this.factoryMethodSnapshot = snapshot;
+		this.factoryMethodName = methodName.toLowerCase(Locale.ENGLISH);
+		return true;
 	}
 
 	private FactoryMethod getFactoryMethod(String className) {
-		if (className == null || className.isEmpty()) {
-			for (FactoryMethod fm : this.prospectiveFactoryMethods) {
-				if (fm.className.isEmpty()) {
-					return fm;
-				}
-			}
-		} else {
-			for (FactoryMethod fm : this.prospectiveFactoryMethods) {
-				if (fm.className.equalsIgnoreCase(className)) {
-					return fm;
-				}
-			}
-		}
-		return null;
+		return this.factoryMethodSnapshot.getFactoryMethod(this.factoryMethodName, className == null ? "" : className, //$NON-NLS-1$
+				FactoryMethod.TYPE_INSTANCEMETHOD);
 	}
 
 	private FactoryMethod getFactoryMethod(PHPClassType classType) {
@@ -190,14 +274,29 @@ public class FactoryMethodMethodReturnTypeEvaluator extends GoalEvaluator {
 		return null;
 	}
 
-	private FactoryMethod getFactoryMethod(IType classType) {
+	/**
+	 * Get the factory method that applies to a class: the one defined for the
+	 * class itself, or for one of its parent classes.
+	 */
+	private FactoryMethod getFactoryMethod(final IType classType) {
 		if (classType == null) {
 			return null;
 		}
-		String className = classType.getTypeQualifiedName(NamespaceReference.NAMESPACE_DELIMITER);
+		final String className = classType.getTypeQualifiedName(NamespaceReference.NAMESPACE_DELIMITER);
 		if (className == null || className.isEmpty()) {
 			return null;
 		}
+		String cacheKey = className.toLowerCase(Locale.ENGLISH) + '\0' + this.factoryMethodName;
+		return this.projectData.getFactoryClassCache().get(this.factoryMethodSnapshot.getGeneration(), cacheKey,
+				new EvaluationCache.Loader<FactoryMethod>() {
+					@Override
+					public FactoryMethod load() {
+						return FactoryMethodMethodReturnTypeEvaluator.this.findFactoryMethod(classType, className);
+					}
+				});
+	}
+
+	private FactoryMethod findFactoryMethod(IType classType, String className) {
 		FactoryMethod factoryMethod = this.getFactoryMethod(className);
 		if (factoryMethod != null) {
 			return factoryMethod;
@@ -217,77 +316,22 @@ public class FactoryMethodMethodReturnTypeEvaluator extends GoalEvaluator {
 			superClasses = null;
 		}
 		if (superClasses != null) {
-			for (IType superClass : superClasses) {
-				factoryMethod = this.getFactoryMethod(superClass);
-				if (factoryMethod != null) {
-					return factoryMethod;
+			this.hierarchyDepth++;
+			if (this.hierarchyDepth > this.maxHierarchyDepth) {
+				this.maxHierarchyDepth = this.hierarchyDepth;
+			}
+			try {
+				for (IType superClass : superClasses) {
+					factoryMethod = this.getFactoryMethod(superClass);
+					if (factoryMethod != null) {
+						return factoryMethod;
+					}
 				}
+			} finally {
+				this.hierarchyDepth--;
 			}
 		}
 
 		return null;
 	}
-
-	private IEvaluatedType resolveAlias(String[] aliases, String methodArgument) {
-		if (aliases == null || aliases.length == 0) {
-			return null;
-		}
-		ArrayList<IEvaluatedType> types = new ArrayList<IEvaluatedType>(aliases.length);
-		for (String alias : aliases) {
-			IEvaluatedType type = this.resolveAlias(alias, methodArgument);
-			if (type != null) {
-				types.add(type);
-			}
-		}
-		int numTypes = types.size();
-		switch (numTypes) {
-		case 0:
-			return null;
-		case 1:
-			return types.get(0);
-		default:
-			IEvaluatedType[] typeArray = new IEvaluatedType[numTypes];
-			for (int typeIndex = 0; typeIndex < numTypes; typeIndex++) {
-				typeArray[typeIndex] = types.get(typeIndex);
-			}
-			return new AmbiguousType(typeArray);
-		}
-	}
-
-	private IEvaluatedType resolveAlias(String alias, String methodArgument) {
-		int len = alias.length();
-		if (alias.isEmpty()) {
-			return null;
-		}
-		boolean isArray = len >= 2 && alias.endsWith("[]");
-		if (isArray) {
-			alias = alias.substring(0, len - 2);
-			if (alias.isEmpty()) {
-				return null;
-			}
-		}
-		String resultingClass = null;
-		if (alias.equals("@")) {
-			if (methodArgument == null || methodArgument.isEmpty()) {
-				return null;
-			}
-			resultingClass = methodArgument;
-		} else {
-			resultingClass = alias;
-		}
-		IEvaluatedType type = PHPSimpleTypes.fromString(resultingClass);
-		if (type == null) {
-			if (resultingClass.charAt(0) != NamespaceReference.NAMESPACE_SEPARATOR) {
-				resultingClass = NamespaceReference.NAMESPACE_DELIMITER.concat(resultingClass);
-			}
-			type = new PHPClassType(resultingClass);
-		}
-		if (!isArray) {
-			return type;
-		}
-		MultiTypeType arrayType = new MultiTypeType();
-		arrayType.addType(type);
-
-		return arrayType;
-	}
 }
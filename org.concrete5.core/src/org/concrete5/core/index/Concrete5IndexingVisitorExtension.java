@@ -1,14 +1,20 @@
 package org.concrete5.core.index;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.concrete5.core.builder.ProjectData;
 import org.concrete5.core.builder.ProjectDataFactory;
 import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.metrics.FlightEvents;
+import org.concrete5.core.storage.FactoryMethodStorage;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.dltk.ast.ASTNode;
+import org.eclipse.dltk.ast.ASTVisitor;
+import org.eclipse.dltk.ast.declarations.ModuleDeclaration;
 import org.eclipse.dltk.ast.declarations.TypeDeclaration;
 import org.eclipse.dltk.ast.expressions.CallArgumentsList;
 import org.eclipse.dltk.ast.expressions.Expression;
@@ -34,24 +40,86 @@ public class Concrete5IndexingVisitorExtension extends PHPIndexingVisitorExtensi
 	private final static String OVERRIDE_FUNCTION = "override"; //$NON-NLS-1$
 	private final static String MAP_FUNCTION = "map"; //$NON-NLS-1$
 
+	/**
+	 * The name of the system property that disables the extraction of the
+	 * factory methods while indexing (for instance to measure its overhead).
+	 */
+	public final static String DISABLE_PROPERTY = "org.concrete5.core.disableIndexing"; //$NON-NLS-1$
+
+	private static volatile boolean enabled = !Boolean.getBoolean(DISABLE_PROPERTY);
+
 	private SourceModuleData sourceModuleData = null;
 	private boolean isInMetaNamespace = false;
 
 	private class SourceModuleData {
+		/**
+		 * The data of the project (null when the factory methods are extracted
+		 * outside of the indexer, see extractFactoryMethods()).
+		 */
 		public final ProjectData projectData;
 		public final String sourceModulePath;
+		/**
+		 * The flight recorder event of the module (null if not recorded).
+		 */
+		private final Object flightEvent = FlightEvents.beginIndexing();
+		/**
+		 * The factory methods found in the module (null if none).
+		 */
+		private List<FactoryMethod> factoryMethods = null;
 
-		public SourceModuleData(IProject project, String sourceModulePath) {
-			this.projectData = ProjectDataFactory.get(project);
+		public SourceModuleData(ProjectData projectData, String sourceModulePath) {
+			this.projectData = projectData;
 			this.sourceModulePath = sourceModulePath;
 		}
+
+		public void addFactoryMethod(FactoryMethod factoryMethod) {
+			if (this.factoryMethods == null) {
+				this.factoryMethods = new ArrayList<FactoryMethod>();
+			}
+			this.factoryMethods.add(factoryMethod);
+		}
+
+		/**
+		 * Replace the factory methods previously defined by the module with the
+		 * ones found (modules without factory methods don't touch the storage).
+		 */
+		public void commit() {
+			if (this.sourceModulePath == null) {
+				return;
+			}
+			FactoryMethodStorage storage = this.projectData.getFactoryMethodStorage();
+			if (this.factoryMethods != null) {
+				storage.replaceForPath(this.sourceModulePath, this.factoryMethods);
+			} else if (storage.getSnapshot().hasDefinerPath(this.sourceModulePath)) {
+				storage.replaceForPath(this.sourceModulePath, Collections.<FactoryMethod>emptyList());
+			}
+			FlightEvents.commitIndexing(this.flightEvent, this.sourceModulePath,
+					this.factoryMethods == null ? 0 : this.factoryMethods.size());
+			this.factoryMethods = null;
+		}
+	}
+
+	/**
+	 * Check if the factory methods are extracted while indexing.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
 	}
 
+	/**
+	 * Enable or disable the extraction of the factory methods while indexing
+	 * (when disabled, the indexed modules are ignored).
+	 */
+	public static void setEnabled(boolean value) {
+		enabled = value;
+	}
+
+	@Override
 	public void setSourceModule(ISourceModule module) {
 		super.setSourceModule(module);
+		this.commitSourceModule();
 		String sourceModulePath = null;
-		this.sourceModuleData = null;
-		if (module != null) {
+		if (module != null && enabled) {
 			IScriptProject scriptProject = module.getScriptProject();
 			if (scriptProject != null) {
 				IProject project = scriptProject.getProject();
@@ -63,27 +131,85 @@ public class Concrete5IndexingVisitorExtension extends PHPIndexingVisitorExtensi
 							sourceModulePath = null;
 						}
 					}
-					this.sourceModuleData = new SourceModuleData(project, sourceModulePath);
-					if (sourceModulePath != null) {
-						this.sourceModuleData.projectData.getFactoryMethodStorage().resetForPath(sourceModulePath);
-					}
+					this.sourceModuleData = new SourceModuleData(ProjectDataFactory.get(project), sourceModulePath);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Extract the factory methods defined in the AST of a module, the same way
+	 * they are extracted while indexing, without storing them (for instance to
+	 * compare them with the ones found by MetaFileScanner).
+	 *
+	 * @param sourceModulePath
+	 *            The path of the module
+	 * @param module
+	 *            The AST of the module
+	 *
+	 * @return The factory methods found (in the order they are defined)
+	 */
+	static List<FactoryMethod> extractFactoryMethods(String sourceModulePath, ModuleDeclaration module)
+			throws Exception {
+		final Concrete5IndexingVisitorExtension extension = new Concrete5IndexingVisitorExtension();
+		SourceModuleData sourceModuleData = extension.new SourceModuleData(null, sourceModulePath);
+		extension.sourceModuleData = sourceModuleData;
+		module.traverse(new ASTVisitor() {
+			@Override
+			public boolean visit(TypeDeclaration type) throws Exception {
+				return extension.visit(type);
+			}
+
+			@Override
+			public boolean endvisit(TypeDeclaration type) throws Exception {
+				return extension.endvisit(type);
+			}
+
+			@Override
+			public boolean visit(Expression expression) throws Exception {
+				// Like PHPIndexingVisitor, that passes the calls to
+				// modifyReference()
+				extension.modifyReference(expression, null);
+				return true;
+			}
+		});
+		List<FactoryMethod> result = sourceModuleData.factoryMethods;
+		return result == null ? Collections.<FactoryMethod>emptyList() : result;
+	}
+
+	@Override
+	public boolean endvisit(ModuleDeclaration declaration) throws Exception {
+		this.commitSourceModule();
+		return true;
+	}
+
+	/**
+	 * Publish the factory methods collected for the current source module.
+	 */
+	private void commitSourceModule() {
+		SourceModuleData sourceModuleData = this.sourceModuleData;
+		this.sourceModuleData = null;
+		this.isInMetaNamespace = false;
+		if (sourceModuleData != null) {
+			sourceModuleData.commit();
+		}
+	}
+
+	@Override
 	public boolean visit(TypeDeclaration type) throws Exception {
 		if (type instanceof NamespaceDeclaration) {
 			String namespaceName = type.getName();
 			if (namespaceName != null && namespaceName.equals(NAMESPACE_NAME) && this.sourceModuleData != null
 					&& this.sourceModuleData.sourceModulePath != null
-					&& this.sourceModuleData.projectData.hasConcrete5Nature()) {
+					&& (this.sourceModuleData.projectData == null
+							|| this.sourceModuleData.projectData.hasConcrete5Nature())) {
 				this.isInMetaNamespace = true;
 			}
 		}
 		return true;
 	}
 
+	@Override
 	public boolean endvisit(TypeDeclaration type) throws Exception {
 		if (this.isInMetaNamespace && type instanceof NamespaceDeclaration) {
 			this.isInMetaNamespace = false;
@@ -91,6 +217,7 @@ public class Concrete5IndexingVisitorExtension extends PHPIndexingVisitorExtensi
 		return true;
 	}
 
+	@Override
 	public void modifyReference(ASTNode node, ReferenceInfo info) {
 		if (!this.isInMetaNamespace || !(node instanceof PHPCallExpression)) {
 			return;
@@ -99,7 +226,7 @@ public class Concrete5IndexingVisitorExtension extends PHPIndexingVisitorExtensi
 		if (factoryMethod == null) {
 			return;
 		}
-		this.sourceModuleData.projectData.getFactoryMethodStorage().addFactoryMethod(factoryMethod);
+		this.sourceModuleData.addFactoryMethod(factoryMethod);
 	}
 
 	private FactoryMethod extractFactoryMethod(PHPCallExpression call) {
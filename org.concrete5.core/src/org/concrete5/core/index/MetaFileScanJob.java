@@ -0,0 +1,252 @@
+package org.concrete5.core.index;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.concrete5.core.builder.ProjectData;
+import org.concrete5.core.builder.ProjectDataFactory;
+import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.storage.FactoryMethodSnapshot;
+import org.concrete5.core.storage.FactoryMethodStorage;
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * The background job that reads the factory methods of the PHPSTORM_META
+ * files of a project with MetaFileScanner, so that they are available before
+ * the PHP indexer processes the whole project.
+ *
+ * Only the files whose factory methods are not yet known are scanned: the
+ * others are kept up to date by Concrete5IndexingVisitorExtension. There is a
+ * single job per project, and the files of all the projects are read by the
+ * same pool of threads.
+ */
+public class MetaFileScanJob extends Job {
+
+	/**
+	 * The family of all the jobs of this kind.
+	 */
+	public final static Object FAMILY = MetaFileScanJob.class;
+
+	/**
+	 * The name of the PHPSTORM_META files (or of the directories containing
+	 * them).
+	 */
+	private final static String META_NAME = ".phpstorm.meta.php"; //$NON-NLS-1$
+	private final static String PHP_EXTENSION = ".php"; //$NON-NLS-1$
+
+	/**
+	 * The number of seconds an idle scanner thread is kept alive.
+	 */
+	private final static long THREAD_KEEP_ALIVE = 30L;
+
+	private final static ConcurrentMap<IProject, MetaFileScanJob> jobs =
+			new ConcurrentHashMap<IProject, MetaFileScanJob>();
+
+	private final static ThreadPoolExecutor executor = createExecutor();
+
+	private final IProject project;
+
+	private MetaFileScanJob(IProject project) {
+		super("Reading concrete5 factory methods"); //$NON-NLS-1$
+		this.project = project;
+		this.setSystem(true);
+		this.setPriority(Job.SHORT);
+	}
+
+	/**
+	 * Schedule the scan of the PHPSTORM_META files of a project.
+	 */
+	public static void schedule(IProject project) {
+		if (project == null) {
+			return;
+		}
+		MetaFileScanJob job = jobs.get(project);
+		if (job == null) {
+			job = new MetaFileScanJob(project);
+			MetaFileScanJob existing = jobs.putIfAbsent(project, job);
+			if (existing != null) {
+				job = existing;
+			}
+		}
+		// No-op if the job is already waiting; if it's running, it will run
+		// once more when done
+		job.schedule();
+	}
+
+	private static ThreadPoolExecutor createExecutor() {
+		int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ThreadPoolExecutor result = new ThreadPoolExecutor(numThreads, numThreads, THREAD_KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "concrete5 PHPSTORM_META scanner"); //$NON-NLS-1$
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		result.allowCoreThreadTimeOut(true);
+		return result;
+	}
+
+	@Override
+	public boolean belongsTo(Object family) {
+		return family == FAMILY;
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		if (!this.project.isAccessible()) {
+			jobs.remove(this.project, this);
+			return Status.OK_STATUS;
+		}
+		ProjectData projectData = ProjectDataFactory.get(this.project);
+		if (!projectData.hasConcrete5Nature()) {
+			return Status.OK_STATUS;
+		}
+		FactoryMethodStorage storage = projectData.getFactoryMethodStorage();
+		List<IFile> files = this.findMetaFiles(storage.getSnapshot());
+		if (files.isEmpty() || monitor.isCanceled()) {
+			return Status.OK_STATUS;
+		}
+		List<List<FactoryMethod>> results = scan(files, monitor);
+		if (results == null) {
+			return Status.CANCEL_STATUS;
+		}
+		FactoryMethodStorage.Batch batch = storage.beginBatch();
+		for (int i = 0; i < files.size(); i++) {
+			// Don't overwrite what the PHP indexer found meanwhile (checked when
+			// the batch is committed)
+			if (results.get(i) != null && !results.get(i).isEmpty()) {
+				batch.initializeForPath(getPath(files.get(i)), results.get(i));
+			}
+		}
+		batch.commit();
+		return Status.OK_STATUS;
+	}
+
+	/**
+	 * Find the PHPSTORM_META files whose factory methods are not yet known.
+	 */
+	private List<IFile> findMetaFiles(final FactoryMethodSnapshot snapshot) {
+		final List<IFile> result = new ArrayList<IFile>();
+		final List<IContainer> metaDirectories = new ArrayList<IContainer>();
+		try {
+			this.project.accept(new IResourceProxyVisitor() {
+				@Override
+				public boolean visit(IResourceProxy proxy) throws CoreException {
+					if (proxy.isDerived() || !META_NAME.equals(proxy.getName())) {
+						return proxy.getType() != IResource.FILE && !proxy.isDerived();
+					}
+					IResource resource = proxy.requestResource();
+					if (resource instanceof IFile) {
+						addMetaFile(result, (IFile) resource, snapshot);
+					} else if (resource instanceof IContainer) {
+						metaDirectories.add((IContainer) resource);
+					}
+					return false;
+				}
+			}, IResource.NONE);
+			for (IContainer metaDirectory : metaDirectories) {
+				for (IResource member : metaDirectory.members()) {
+					if (member instanceof IFile && member.getName().endsWith(PHP_EXTENSION)) {
+						addMetaFile(result, (IFile) member, snapshot);
+					}
+				}
+			}
+		} catch (CoreException x) {
+		}
+		return result;
+	}
+
+	private static void addMetaFile(List<IFile> files, IFile file, FactoryMethodSnapshot snapshot) {
+		String path = getPath(file);
+		if (path != null && !snapshot.hasDefinerPath(path)) {
+			files.add(file);
+		}
+	}
+
+	/**
+	 * Get the path of a file, as used by the PHP indexer.
+	 */
+	private static String getPath(IFile file) {
+		return file.getFullPath().toPortableString();
+	}
+
+	/**
+	 * Scan some files in parallel.
+	 *
+	 * @return The factory methods of every file (null for the files that can't
+	 *         be read), or null if the operation has been canceled
+	 */
+	private static List<List<FactoryMethod>> scan(List<IFile> files, IProgressMonitor monitor) {
+		List<Future<List<FactoryMethod>>> futures = new ArrayList<Future<List<FactoryMethod>>>(files.size());
+		try {
+			for (final IFile file : files) {
+				futures.add(executor.submit(new Callable<List<FactoryMethod>>() {
+					@Override
+					public List<FactoryMethod> call() throws Exception {
+						return MetaFileScanner.scan(getPath(file), readContents(file));
+					}
+				}));
+			}
+			List<List<FactoryMethod>> result = new ArrayList<List<FactoryMethod>>(files.size());
+			for (Future<List<FactoryMethod>> future : futures) {
+				if (monitor.isCanceled()) {
+					return null;
+				}
+				List<FactoryMethod> factoryMethods;
+				try {
+					factoryMethods = future.get();
+				} catch (ExecutionException x) {
+					factoryMethods = null;
+				}
+				result.add(factoryMethods);
+			}
+			return result;
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			// Stop the scans still queued if canceled
+			for (Future<List<FactoryMethod>> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static String readContents(IFile file) throws CoreException, IOException {
+		StringBuilder result = new StringBuilder();
+		char[] buffer = new char[8192];
+		try (InputStream stream = file.getContents(true);
+				Reader reader = new InputStreamReader(stream, file.getCharset())) {
+			int read;
+			while ((read = reader.read(buffer)) > 0) {
+				result.append(buffer, 0, read);
+			}
+		}
+		return result.toString();
+	}
+}
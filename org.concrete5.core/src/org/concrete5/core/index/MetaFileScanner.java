@@ -0,0 +1,567 @@
+package org.concrete5.core.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * Extract the factory methods of a PHPSTORM_META file without building its
+ * AST.
+ *
+ * The source is read with a streaming tokenizer, and only the
+ * <code>override(...)</code> calls in the PHPSTORM_META namespace are parsed;
+ * the accepted syntax is the same as the one of
+ * Concrete5IndexingVisitorExtension. This class doesn't depend on Eclipse, so
+ * it can be used from any thread.
+ */
+public final class MetaFileScanner {
+
+	private final static String NAMESPACE_NAME = "PHPSTORM_META"; //$NON-NLS-1$
+	private final static String OVERRIDE_FUNCTION = "override"; //$NON-NLS-1$
+	private final static String MAP_FUNCTION = "map"; //$NON-NLS-1$
+
+	private final static int T_EOF = 0;
+	private final static int T_NAME = 1;
+	private final static int T_STRING = 2;
+	private final static int T_NUMBER = 3;
+	private final static int T_SYMBOL = 4;
+	/**
+	 * Strings with interpolated variables, and everything else we don't care
+	 * about.
+	 */
+	private final static int T_OTHER = 5;
+
+	private final String definerResourcePath;
+	private final CharSequence source;
+	private final int length;
+	private int position = 0;
+	private boolean inPHP = false;
+
+	private int tokenType;
+	private String tokenText;
+	private boolean hasPeeked = false;
+	private int peekedType;
+	private String peekedText;
+
+	private MetaFileScanner(String definerResourcePath, CharSequence source) {
+		this.definerResourcePath = definerResourcePath;
+		this.source = source;
+		this.length = source.length();
+	}
+
+	/**
+	 * Extract the factory methods defined in a PHP source.
+	 *
+	 * @param definerResourcePath
+	 *            The path of the resource containing the source
+	 * @param source
+	 *            The PHP source
+	 *
+	 * @return The factory methods found (in the order they are defined)
+	 */
+	public static List<FactoryMethod> scan(String definerResourcePath, CharSequence source) {
+		return new MetaFileScanner(definerResourcePath, source).scan();
+	}
+
+	private List<FactoryMethod> scan() {
+		List<FactoryMethod> result = new ArrayList<FactoryMethod>();
+		int depth = 0;
+		// The brace depth of the PHPSTORM_META namespace: -1 if we are not in
+		// it, 0 if the namespace is not enclosed in braces
+		int metaDepth = -1;
+		int previousType = T_EOF;
+		String previousText = null;
+		for (;;) {
+			this.next();
+			if (this.tokenType == T_EOF) {
+				break;
+			}
+			if (this.tokenType == T_SYMBOL) {
+				if (this.tokenText.equals("{")) { //$NON-NLS-1$
+					depth++;
+				} else if (this.tokenText.equals("}")) { //$NON-NLS-1$
+					depth--;
+					if (metaDepth > 0 && depth < metaDepth) {
+						metaDepth = -1;
+					}
+				}
+			} else if (this.tokenType == T_NAME && this.tokenText.equalsIgnoreCase("namespace") //$NON-NLS-1$
+					&& !isMemberAccess(previousType, previousText)) {
+				metaDepth = -1;
+				if (this.peek() == T_NAME && this.peekedText.equals(NAMESPACE_NAME)) {
+					this.next();
+					if (this.peek() == T_SYMBOL && this.peekedText.equals("{")) { //$NON-NLS-1$
+						this.next();
+						depth++;
+						metaDepth = depth;
+					} else if (this.peekedType == T_SYMBOL && this.peekedText.equals(";")) { //$NON-NLS-1$
+						metaDepth = 0;
+					}
+				}
+			} else if (metaDepth >= 0 && this.tokenType == T_NAME && isName(this.tokenText, OVERRIDE_FUNCTION)
+					&& !isMemberAccess(previousType, previousText)) {
+				if (this.peek() == T_SYMBOL && this.peekedText.equals("(")) { //$NON-NLS-1$
+					this.next();
+					FactoryMethod factoryMethod = this.parseOverride();
+					if (factoryMethod != null) {
+						result.add(factoryMethod);
+					}
+				}
+			}
+			previousType = this.tokenType;
+			previousText = this.tokenText;
+		}
+		return result;
+	}
+
+	/**
+	 * Parse the arguments of an override call (after the opening parenthesis).
+	 *
+	 * @return Return null if the arguments don't define a factory method
+	 */
+	private FactoryMethod parseOverride() {
+		if (this.peek() != T_NAME) {
+			return null;
+		}
+		this.next();
+		String factoryName = this.tokenText;
+		String className;
+		String methodName;
+		if (this.isNextSymbol("::")) { //$NON-NLS-1$
+			if (factoryName.length() < 2 || factoryName.charAt(0) != '\\' || this.peek() != T_NAME) {
+				return null;
+			}
+			this.next();
+			className = factoryName.substring(1);
+			methodName = this.tokenText;
+			if (methodName.indexOf('\\') >= 0) {
+				return null;
+			}
+		} else {
+			className = ""; //$NON-NLS-1$
+			methodName = factoryName.substring(factoryName.lastIndexOf('\\') + 1);
+		}
+		if (methodName.isEmpty() || !this.isNextSymbol("(") || this.peek() != T_NUMBER) { //$NON-NLS-1$
+			return null;
+		}
+		this.next();
+		int discrimintatorIndex;
+		try {
+			discrimintatorIndex = Integer.parseInt(this.tokenText);
+		} catch (NumberFormatException x) {
+			return null;
+		}
+		if (!this.isNextSymbol(")") || !this.isNextSymbol(",") || this.peek() != T_NAME //$NON-NLS-1$ //$NON-NLS-2$
+				|| !isName(this.peekedText, MAP_FUNCTION)) {
+			return null;
+		}
+		this.next();
+		if (!this.isNextSymbol("(")) { //$NON-NLS-1$
+			return null;
+		}
+		String closeArray;
+		if (this.isNextSymbol("[")) { //$NON-NLS-1$
+			closeArray = "]"; //$NON-NLS-1$
+		} else if (this.peek() == T_NAME && this.peekedText.equalsIgnoreCase("array")) { //$NON-NLS-1$
+			this.next();
+			if (!this.isNextSymbol("(")) { //$NON-NLS-1$
+				return null;
+			}
+			closeArray = ")"; //$NON-NLS-1$
+		} else {
+			return null;
+		}
+		FactoryMethod factoryMethod = new FactoryMethod(this.definerResourcePath, className, methodName,
+				discrimintatorIndex, FactoryMethod.TYPE_INSTANCEMETHOD);
+		boolean somethingFound = false;
+		for (;;) {
+			int end = this.parseArrayElement(factoryMethod, closeArray);
+			if (end < 0) {
+				return null;
+			}
+			if (end > 0) {
+				somethingFound = true;
+			}
+			if (this.isNextSymbol(closeArray)) {
+				break;
+			}
+			if (!this.isNextSymbol(",")) { //$NON-NLS-1$
+				return null;
+			}
+			if (this.isNextSymbol(closeArray)) {
+				// Trailing comma
+				break;
+			}
+		}
+		if (!this.isNextSymbol(")") || !this.isNextSymbol(")")) { //$NON-NLS-1$ //$NON-NLS-2$
+			return null;
+		}
+		return somethingFound ? factoryMethod : null;
+	}
+
+	/**
+	 * Parse an element of the array of the map call, stopping before the comma
+	 * or the closing bracket that follows it.
+	 *
+	 * @return Return 1 if an alias has been found, 0 if the element has been
+	 *         skipped, -1 in case of syntax errors
+	 */
+	private int parseArrayElement(FactoryMethod factoryMethod, String closeArray) {
+		if (this.peek() == T_STRING) {
+			this.next();
+			String key = this.tokenText;
+			if (this.isNextSymbol("=>")) { //$NON-NLS-1$
+				String value = null;
+				if (this.peek() == T_STRING) {
+					this.next();
+					value = this.tokenText;
+				} else if (this.peekedType == T_NAME) {
+					this.next();
+					String className = this.tokenText;
+					if (className.length() > 1 && className.charAt(0) == '\\' && this.isNextSymbol("::") //$NON-NLS-1$
+							&& this.peek() == T_NAME && this.peekedText.equalsIgnoreCase("class")) { //$NON-NLS-1$
+						this.next();
+						value = className.substring(1);
+					}
+				}
+				if (value != null && !value.isEmpty() && this.isElementEnd(closeArray)) {
+					if (key.isEmpty()) {
+						factoryMethod.fallbackAlias = value;
+					} else {
+						factoryMethod.aliases.put(key, value);
+					}
+					return 1;
+				}
+			}
+		}
+		return this.skipArrayElement(closeArray) ? 0 : -1;
+	}
+
+	private boolean isElementEnd(String closeArray) {
+		return this.peek() == T_SYMBOL && (this.peekedText.equals(",") || this.peekedText.equals(closeArray)); //$NON-NLS-1$
+	}
+
+	/**
+	 * Skip the tokens up to the end of the current array element (the
+	 * elements may contain nested brackets and braces, for instance in
+	 * closures).
+	 *
+	 * @return Return false in case of unbalanced brackets (the unbalanced
+	 *         closing bracket is not consumed)
+	 */
+	private boolean skipArrayElement(String closeArray) {
+		int nesting = 0;
+		for (;;) {
+			int type = this.peek();
+			if (type == T_EOF) {
+				return false;
+			}
+			if (type == T_SYMBOL) {
+				String symbol = this.peekedText;
+				if (nesting == 0 && (symbol.equals(",") || symbol.equals(closeArray))) { //$NON-NLS-1$
+					return true;
+				}
+				if (symbol.equals("(") || symbol.equals("[") || symbol.equals("{")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					nesting++;
+				} else if (symbol.equals(")") || symbol.equals("]") || symbol.equals("}")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					if (nesting == 0) {
+						return false;
+					}
+					nesting--;
+				}
+			}
+			this.next();
+		}
+	}
+
+	private boolean isNextSymbol(String symbol) {
+		if (this.peek() == T_SYMBOL && this.peekedText.equals(symbol)) {
+			this.next();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a name refers to a global function (optionally prefixed by a
+	 * backslash).
+	 */
+	private static boolean isName(String name, String functionName) {
+		int start = name.length() > 0 && name.charAt(0) == '\\' ? 1 : 0;
+		return name.length() - start == functionName.length()
+				&& name.regionMatches(true, start, functionName, 0, functionName.length());
+	}
+
+	/**
+	 * Check if a name follows a token that makes it a member or a declaration
+	 * instead of a call.
+	 */
+	private static boolean isMemberAccess(int previousType, String previousText) {
+		if (previousType == T_SYMBOL) {
+			return previousText.equals("->") || previousText.equals("::"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		if (previousType == T_NAME) {
+			return previousText.equalsIgnoreCase("function") || previousText.equalsIgnoreCase("new"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		return false;
+	}
+
+	private int peek() {
+		if (!this.hasPeeked) {
+			this.read();
+			this.peekedType = this.tokenType;
+			this.peekedText = this.tokenText;
+			this.hasPeeked = true;
+		}
+		return this.peekedType;
+	}
+
+	private void next() {
+		if (this.hasPeeked) {
+			this.hasPeeked = false;
+			this.tokenType = this.peekedType;
+			this.tokenText = this.peekedText;
+		} else {
+			this.read();
+		}
+	}
+
+	/**
+	 * Read the next token into tokenType and tokenText.
+	 */
+	private void read() {
+		this.tokenText = null;
+		for (;;) {
+			if (!this.inPHP && !this.skipInlineHTML()) {
+				this.tokenType = T_EOF;
+				return;
+			}
+			this.skipWhitespacesAndComments();
+			if (this.position >= this.length) {
+				this.tokenType = T_EOF;
+				return;
+			}
+			if (this.startsWith("?>")) { //$NON-NLS-1$
+				this.position += 2;
+				this.inPHP = false;
+				continue;
+			}
+			break;
+		}
+		char c = this.source.charAt(this.position);
+		if (c == '\'' || c == '"') {
+			this.readString(c);
+		} else if (c == '\\' || isNameStart(c)) {
+			this.readName();
+		} else if (c >= '0' && c <= '9') {
+			int start = this.position;
+			while (this.position < this.length && isNamePart(this.source.charAt(this.position))) {
+				this.position++;
+			}
+			String number = this.source.subSequence(start, this.position).toString();
+			this.tokenType = isDigits(number) ? T_NUMBER : T_OTHER;
+			this.tokenText = number;
+		} else if (c == '$') {
+			this.position++;
+			while (this.position < this.length && isNamePart(this.source.charAt(this.position))) {
+				this.position++;
+			}
+			this.tokenType = T_OTHER;
+		} else if (this.startsWith("<<<")) { //$NON-NLS-1$
+			this.skipHeredoc();
+			this.tokenType = T_OTHER;
+		} else if (this.startsWith("::") || this.startsWith("=>") || this.startsWith("->")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			this.tokenType = T_SYMBOL;
+			this.tokenText = this.source.subSequence(this.position, this.position + 2).toString();
+			this.position += 2;
+		} else {
+			this.tokenType = T_SYMBOL;
+			this.tokenText = String.valueOf(c);
+			this.position++;
+		}
+	}
+
+	/**
+	 * Skip the contents outside the PHP tags.
+	 *
+	 * @return Return false if there are no more PHP tags
+	 */
+	private boolean skipInlineHTML() {
+		while (this.position < this.length) {
+			if (this.startsWith("<?")) { //$NON-NLS-1$
+				this.position += 2;
+				if (this.startsWithIgnoreCase("php")) { //$NON-NLS-1$
+					this.position += 3;
+				} else if (this.startsWith("=")) { //$NON-NLS-1$
+					this.position++;
+				}
+				this.inPHP = true;
+				return true;
+			}
+			this.position++;
+		}
+		return false;
+	}
+
+	private void skipWhitespacesAndComments() {
+		while (this.position < this.length) {
+			char c = this.source.charAt(this.position);
+			if (Character.isWhitespace(c)) {
+				this.position++;
+			} else if (c == '#' || this.startsWith("//")) { //$NON-NLS-1$
+				// Single line comments end at the end of the line or before ?>
+				while (this.position < this.length) {
+					c = this.source.charAt(this.position);
+					if (c == '\n' || c == '\r' || this.startsWith("?>")) { //$NON-NLS-1$
+						break;
+					}
+					this.position++;
+				}
+			} else if (this.startsWith("/*")) { //$NON-NLS-1$
+				int end = this.indexOf("*/", this.position + 2); //$NON-NLS-1$
+				this.position = end < 0 ? this.length : end + 2;
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read a quoted string: the token text is the raw content between the
+	 * quotes (like ASTUtils.stripQuotes()).
+	 */
+	private void readString(char quote) {
+		int start = ++this.position;
+		boolean interpolated = false;
+		while (this.position < this.length) {
+			char c = this.source.charAt(this.position);
+			if (c == quote) {
+				break;
+			}
+			if (c == '\\') {
+				this.position++;
+			} else if (c == '$' && quote == '"') {
+				interpolated = true;
+			}
+			this.position++;
+		}
+		int end = Math.min(this.position, this.length);
+		this.position = end + 1;
+		if (interpolated) {
+			this.tokenType = T_OTHER;
+		} else {
+			this.tokenType = T_STRING;
+			this.tokenText = this.source.subSequence(start, end).toString();
+		}
+	}
+
+	/**
+	 * Read a (possibly qualified) name, like <code>\Foo\Bar</code>.
+	 */
+	private void readName() {
+		int start = this.position;
+		for (;;) {
+			if (this.position < this.length && this.source.charAt(this.position) == '\\') {
+				this.position++;
+			}
+			if (this.position >= this.length || !isNameStart(this.source.charAt(this.position))) {
+				break;
+			}
+			while (this.position < this.length && isNamePart(this.source.charAt(this.position))) {
+				this.position++;
+			}
+			if (this.position >= this.length || this.source.charAt(this.position) != '\\') {
+				break;
+			}
+		}
+		this.tokenType = T_NAME;
+		this.tokenText = this.source.subSequence(start, this.position).toString();
+		if (this.tokenText.equals("\\")) { //$NON-NLS-1$
+			this.tokenType = T_SYMBOL;
+		}
+	}
+
+	private void skipHeredoc() {
+		this.position += 3;
+		while (this.position < this.length && (this.source.charAt(this.position) == ' '
+				|| this.source.charAt(this.position) == '\t' || this.source.charAt(this.position) == '"'
+				|| this.source.charAt(this.position) == '\'')) {
+			this.position++;
+		}
+		int start = this.position;
+		while (this.position < this.length && isNamePart(this.source.charAt(this.position))) {
+			this.position++;
+		}
+		String marker = this.source.subSequence(start, this.position).toString();
+		if (marker.isEmpty()) {
+			return;
+		}
+		// The content ends at the first line that starts (after optional
+		// indentation) with the marker
+		while (this.position < this.length) {
+			char c = this.source.charAt(this.position++);
+			if (c != '\n') {
+				continue;
+			}
+			while (this.position < this.length
+					&& (this.source.charAt(this.position) == ' ' || this.source.charAt(this.position) == '\t')) {
+				this.position++;
+			}
+			if (this.startsWith(marker) && (this.position + marker.length() >= this.length
+					|| !isNamePart(this.source.charAt(this.position + marker.length())))) {
+				this.position += marker.length();
+				return;
+			}
+		}
+	}
+
+	private boolean startsWith(String prefix) {
+		return this.regionMatches(this.position, false, prefix);
+	}
+
+	private boolean startsWithIgnoreCase(String prefix) {
+		return this.regionMatches(this.position, true, prefix);
+	}
+
+	private boolean regionMatches(int offset, boolean ignoreCase, String s) {
+		if (offset + s.length() > this.length) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = this.source.charAt(offset + i);
+			char p = s.charAt(i);
+			if (c != p && (!ignoreCase || Character.toLowerCase(c) != Character.toLowerCase(p))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(String s, int from) {
+		for (int i = from; i + s.length() <= this.length; i++) {
+			if (this.regionMatches(i, false, s)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isNameStart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c >= 0x80;
+	}
+
+	private static boolean isNamePart(char c) {
+		return isNameStart(c) || (c >= '0' && c <= '9');
+	}
+
+	private static boolean isDigits(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
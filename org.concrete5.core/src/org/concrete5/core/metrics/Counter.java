@@ -0,0 +1,45 @@
+package org.concrete5.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter that is updated only while the metrics are enabled.
+ */
+public class Counter {
+
+	private final String name;
+	private final AtomicLong value = new AtomicLong();
+
+	Counter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public long get() {
+		return this.value.get();
+	}
+
+	public void increment() {
+		if (Metrics.isEnabled()) {
+			this.value.incrementAndGet();
+		}
+	}
+
+	public void add(long delta) {
+		if (Metrics.isEnabled()) {
+			this.value.addAndGet(delta);
+		}
+	}
+
+	void reset() {
+		this.value.set(0L);
+	}
+
+	@Override
+	public String toString() {
+		return this.name + ": " + this.value.get(); //$NON-NLS-1$
+	}
+}
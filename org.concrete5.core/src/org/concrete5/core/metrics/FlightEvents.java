@@ -0,0 +1,134 @@
+package org.concrete5.core.metrics;
+
+/**
+ * The custom Java Flight Recorder events of the plugin.
+ *
+ * The events are defined by the org.concrete5.core.jfr fragment, since they
+ * require Java 11: when the fragment is not installed every method is a
+ * no-op. The begin methods return null if the event is not enabled in any
+ * recording, and the commit methods ignore null events (so the callers can
+ * skip collecting the event fields in that case).
+ */
+public abstract class FlightEvents {
+
+	/**
+	 * The implementation provided by the org.concrete5.core.jfr fragment.
+	 */
+	private final static String IMPLEMENTATION = "org.concrete5.core.jfr.JfrFlightEvents"; //$NON-NLS-1$
+
+	private final static FlightEvents INSTANCE = load();
+
+	private static FlightEvents load() {
+		try {
+			return (FlightEvents) Class.forName(IMPLEMENTATION, true, FlightEvents.class.getClassLoader())
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | ClassCastException x) {
+			// Fragment not installed, or JVM without Flight Recorder
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the events can be recorded.
+	 */
+	public static boolean isAvailable() {
+		return INSTANCE != null;
+	}
+
+	/**
+	 * Start timing the indexing of a source module.
+	 */
+	public static Object beginIndexing() {
+		return INSTANCE == null ? null : INSTANCE.newIndexingEvent();
+	}
+
+	/**
+	 * @param path
+	 *            The path of the source module
+	 * @param factoryMethods
+	 *            The number of factory methods found in the source module
+	 */
+	public static void commitIndexing(Object event, String path, int factoryMethods) {
+		if (event != null) {
+			INSTANCE.commitIndexingEvent(event, path, factoryMethods);
+		}
+	}
+
+	/**
+	 * Start timing the load of the factory methods from disk.
+	 */
+	public static Object beginStorageRead() {
+		return INSTANCE == null ? null : INSTANCE.newStorageReadEvent();
+	}
+
+	/**
+	 * Start timing the write of the pending changes to disk.
+	 */
+	public static Object beginStorageWrite() {
+		return INSTANCE == null ? null : INSTANCE.newStorageWriteEvent();
+	}
+
+	/**
+	 * @param bytes
+	 *            The number of bytes read or written
+	 * @param entries
+	 *            The number of factory methods read or written
+	 */
+	public static void commitStorage(Object event, long bytes, int entries) {
+		if (event != null) {
+			INSTANCE.commitStorageEvent(event, bytes, entries);
+		}
+	}
+
+	/**
+	 * Start timing the evaluation of a factory method goal.
+	 */
+	public static Object beginEvaluation() {
+		return INSTANCE == null ? null : INSTANCE.newEvaluationEvent();
+	}
+
+	/**
+	 * @param methodName
+	 *            The name of the called method
+	 * @param className
+	 *            The class the method is called on (if known)
+	 * @param hierarchyDepth
+	 *            The number of parent class levels walked to find the factory
+	 *            method
+	 * @param cacheHit
+	 *            Was the result in the return type cache?
+	 */
+	public static void commitEvaluation(Object event, String methodName, String className, int hierarchyDepth,
+			boolean cacheHit) {
+		if (event != null) {
+			INSTANCE.commitEvaluationEvent(event, methodName, className, hierarchyDepth, cacheHit);
+		}
+	}
+
+	/**
+	 * @return Return a started event, or null if it's not enabled
+	 */
+	protected abstract Object newIndexingEvent();
+
+	protected abstract void commitIndexingEvent(Object event, String path, int factoryMethods);
+
+	/**
+	 * @return Return a started event, or null if it's not enabled
+	 */
+	protected abstract Object newStorageReadEvent();
+
+	/**
+	 * @return Return a started event, or null if it's not enabled
+	 */
+	protected abstract Object newStorageWriteEvent();
+
+	protected abstract void commitStorageEvent(Object event, long bytes, int entries);
+
+	/**
+	 * @return Return a started event, or null if it's not enabled
+	 */
+	protected abstract Object newEvaluationEvent();
+
+	protected abstract void commitEvaluationEvent(Object event, String methodName, String className,
+			int hierarchyDepth, boolean cacheHit);
+}
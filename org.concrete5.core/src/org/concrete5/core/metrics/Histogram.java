@@ -0,0 +1,121 @@
+package org.concrete5.core.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram that is updated only while the metrics are enabled.
+ *
+ * The durations are collected in power-of-two buckets (so the percentiles are
+ * approximated by the upper bound of their bucket), together with their exact
+ * count, sum and maximum.
+ */
+public class Histogram {
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Record the time elapsed since a value returned by Metrics.start().
+	 *
+	 * @param start
+	 *            The value returned by Metrics.start() (nothing is recorded
+	 *            if it's zero, that is if the metrics were disabled)
+	 */
+	public void recordSince(long start) {
+		if (start != 0L) {
+			long nanos = System.nanoTime() - start;
+			this.record(nanos);
+			Metrics.trace(this.name, nanos);
+		}
+	}
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param nanos
+	 *            The duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0L) {
+			nanos = 0L;
+		}
+		this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0L ? 0 : 1));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(nanos);
+		long currentMax;
+		while (nanos > (currentMax = this.max.get())) {
+			if (this.max.compareAndSet(currentMax, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the approximate value below which a percentage of the durations
+	 * fall.
+	 *
+	 * @param percentile
+	 *            The percentage (from 0 to 100)
+	 *
+	 * @return The duration, in nanoseconds
+	 */
+	public long getPercentile(double percentile) {
+		long total = this.count.get();
+		if (total == 0L) {
+			return 0L;
+		}
+		long threshold = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0L;
+		for (int i = 0; i < 64; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= threshold) {
+				return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L, this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	void reset() {
+		for (int i = 0; i < 64; i++) {
+			this.buckets.set(i, 0L);
+		}
+		this.count.set(0L);
+		this.sum.set(0L);
+		this.max.set(0L);
+	}
+
+	/**
+	 * Describe the recorded durations (in milliseconds).
+	 */
+	public String getSummary() {
+		long total = this.count.get();
+		if (total == 0L) {
+			return "count=0"; //$NON-NLS-1$
+		}
+		return String.format(Locale.ENGLISH, "count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms", //$NON-NLS-1$
+				total, this.sum.get() / (double) total / 1e6, this.getPercentile(50) / 1e6,
+				this.getPercentile(90) / 1e6, this.getPercentile(99) / 1e6, this.max.get() / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return this.name + ": " + this.getSummary(); //$NON-NLS-1$
+	}
+}
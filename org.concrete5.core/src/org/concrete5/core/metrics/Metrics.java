@@ -0,0 +1,211 @@
+package org.concrete5.core.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.eclipse.osgi.service.debug.DebugTrace;
+
+/**
+ * The counters and the latency histograms of the plugin.
+ *
+ * The metrics are disabled by default: while they are disabled the
+ * instrumented code only reads a volatile flag. They can be enabled with the
+ * org.concrete5.core/debug/metrics tracing option (see MetricsTracing), or
+ * with the org.concrete5.core:type=Metrics JMX bean.
+ *
+ * Timing a piece of code:
+ *
+ * <pre>
+ * long start = Metrics.start();
+ * // ...
+ * Metrics.STORAGE_LOADS.recordSince(start);
+ * </pre>
+ */
+public final class Metrics {
+
+	/**
+	 * The name of the JMX bean.
+	 */
+	public final static String OBJECT_NAME = "org.concrete5.core:type=Metrics"; //$NON-NLS-1$
+
+	/**
+	 * The tracing option that writes every timed operation to the trace file.
+	 */
+	public final static String TRACE_OPTION = "/debug/metrics/trace"; //$NON-NLS-1$
+
+	/**
+	 * The factory method goals received by GoalEvaluatorFactory.
+	 */
+	public final static Counter GOALS_REQUESTED = new Counter("goalsRequested"); //$NON-NLS-1$
+	/**
+	 * The goals for which GoalEvaluatorFactory created an evaluator.
+	 */
+	public final static Counter GOALS_CREATED = new Counter("goalsCreated"); //$NON-NLS-1$
+	/**
+	 * The evaluations that resolved a type.
+	 */
+	public final static Histogram EVALUATOR_HITS = new Histogram("evaluatorHits"); //$NON-NLS-1$
+	/**
+	 * The evaluations that didn't resolve any type.
+	 */
+	public final static Histogram EVALUATOR_MISSES = new Histogram("evaluatorMisses"); //$NON-NLS-1$
+	/**
+	 * The loads of the factory methods from disk.
+	 */
+	public final static Histogram STORAGE_LOADS = new Histogram("storageLoads"); //$NON-NLS-1$
+	/**
+	 * The writes of the pending changes to disk.
+	 */
+	public final static Histogram STORAGE_SAVES = new Histogram("storageSaves"); //$NON-NLS-1$
+	/**
+	 * The bytes read from the factory method files and the manifests.
+	 */
+	public final static Counter STORAGE_BYTES_READ = new Counter("storageBytesRead"); //$NON-NLS-1$
+	/**
+	 * The bytes written to the factory method files and the manifests.
+	 */
+	public final static Counter STORAGE_BYTES_WRITTEN = new Counter("storageBytesWritten"); //$NON-NLS-1$
+	/**
+	 * The calls to resetForPath (including the ones for resources that don't
+	 * define factory methods).
+	 */
+	public final static Counter RESET_FOR_PATH_CALLS = new Counter("resetForPathCalls"); //$NON-NLS-1$
+	/**
+	 * The resource deltas visited by the resource change listener.
+	 */
+	public final static Histogram RESOURCE_DELTAS = new Histogram("resourceDeltas"); //$NON-NLS-1$
+	/**
+	 * The background processing of the collected resource changes.
+	 */
+	public final static Histogram RESOURCE_CHANGES = new Histogram("resourceChanges"); //$NON-NLS-1$
+
+	private final static Counter[] COUNTERS = { GOALS_REQUESTED, GOALS_CREATED, STORAGE_BYTES_READ,
+			STORAGE_BYTES_WRITTEN, RESET_FOR_PATH_CALLS };
+	private final static Histogram[] HISTOGRAMS = { EVALUATOR_HITS, EVALUATOR_MISSES, STORAGE_LOADS, STORAGE_SAVES,
+			RESOURCE_DELTAS, RESOURCE_CHANGES };
+
+	private static volatile boolean enabled = false;
+	private static volatile DebugTrace trace = null;
+
+	private Metrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean value) {
+		enabled = value;
+	}
+
+	/**
+	 * Set the trace where every timed operation is written.
+	 *
+	 * @param value
+	 *            null to stop tracing
+	 */
+	public static void setTrace(DebugTrace value) {
+		trace = value;
+	}
+
+	/**
+	 * Start timing an operation.
+	 *
+	 * @return Return 0 if the metrics are disabled
+	 */
+	public static long start() {
+		if (!enabled) {
+			return 0L;
+		}
+		long result = System.nanoTime();
+		return result == 0L ? 1L : result;
+	}
+
+	static void trace(String name, long nanos) {
+		DebugTrace currentTrace = trace;
+		if (currentTrace != null) {
+			currentTrace.trace(TRACE_OPTION,
+					String.format(Locale.ENGLISH, "%s: %.3fms", name, nanos / 1e6)); //$NON-NLS-1$
+		}
+	}
+
+	public static Counter[] getCounters() {
+		return COUNTERS.clone();
+	}
+
+	public static Histogram[] getHistograms() {
+		return HISTOGRAMS.clone();
+	}
+
+	/**
+	 * Reset all the counters and the histograms.
+	 */
+	public static void reset() {
+		for (Counter counter : COUNTERS) {
+			counter.reset();
+		}
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Describe the current values of all the metrics (one per line).
+	 */
+	public static String dump() {
+		StringBuilder result = new StringBuilder();
+		for (Counter counter : COUNTERS) {
+			result.append(counter).append('\n');
+		}
+		for (Histogram histogram : HISTOGRAMS) {
+			result.append(histogram).append('\n');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Write the current values of all the metrics to the trace (if any).
+	 */
+	public static void traceDump() {
+		DebugTrace currentTrace = trace;
+		if (currentTrace != null) {
+			currentTrace.trace(TRACE_OPTION, dump());
+		}
+	}
+
+	/**
+	 * Register the JMX bean in the platform MBean server.
+	 *
+	 * @return Return false if the bean couldn't be registered
+	 */
+	public static boolean registerBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new StandardMBean(new MetricsBean(), MetricsMBean.class), name);
+			}
+			return true;
+		} catch (Exception x) {
+			return false;
+		}
+	}
+
+	/**
+	 * Unregister the JMX bean from the platform MBean server.
+	 */
+	public static void unregisterBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (Exception x) {
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package org.concrete5.core.metrics;
+
+/**
+ * The implementation of the JMX view of the metrics.
+ */
+class MetricsBean implements MetricsMBean {
+
+	@Override
+	public boolean isEnabled() {
+		return Metrics.isEnabled();
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		Metrics.setEnabled(enabled);
+	}
+
+	@Override
+	public long getGoalsRequested() {
+		return Metrics.GOALS_REQUESTED.get();
+	}
+
+	@Override
+	public long getGoalsCreated() {
+		return Metrics.GOALS_CREATED.get();
+	}
+
+	@Override
+	public String getEvaluatorHits() {
+		return Metrics.EVALUATOR_HITS.getSummary();
+	}
+
+	@Override
+	public String getEvaluatorMisses() {
+		return Metrics.EVALUATOR_MISSES.getSummary();
+	}
+
+	@Override
+	public String getStorageLoads() {
+		return Metrics.STORAGE_LOADS.getSummary();
+	}
+
+	@Override
+	public String getStorageSaves() {
+		return Metrics.STORAGE_SAVES.getSummary();
+	}
+
+	@Override
+	public long getStorageBytesRead() {
+		return Metrics.STORAGE_BYTES_READ.get();
+	}
+
+	@Override
+	public long getStorageBytesWritten() {
+		return Metrics.STORAGE_BYTES_WRITTEN.get();
+	}
+
+	@Override
+	public long getResetForPathCalls() {
+		return Metrics.RESET_FOR_PATH_CALLS.get();
+	}
+
+	@Override
+	public String getResourceDeltas() {
+		return Metrics.RESOURCE_DELTAS.getSummary();
+	}
+
+	@Override
+	public String getResourceChanges() {
+		return Metrics.RESOURCE_CHANGES.getSummary();
+	}
+
+	@Override
+	public void reset() {
+		Metrics.reset();
+	}
+
+	@Override
+	public String dump() {
+		return Metrics.dump();
+	}
+}
@@ -0,0 +1,46 @@
+package org.concrete5.core.metrics;
+
+/**
+ * The JMX view of the metrics (registered as org.concrete5.core:type=Metrics).
+ *
+ * The histograms are described as strings, with their count, mean, p50, p90,
+ * p99 and maximum (in milliseconds).
+ */
+public interface MetricsMBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getGoalsRequested();
+
+	long getGoalsCreated();
+
+	String getEvaluatorHits();
+
+	String getEvaluatorMisses();
+
+	String getStorageLoads();
+
+	String getStorageSaves();
+
+	long getStorageBytesRead();
+
+	long getStorageBytesWritten();
+
+	long getResetForPathCalls();
+
+	String getResourceDeltas();
+
+	String getResourceChanges();
+
+	/**
+	 * Reset all the counters and the histograms.
+	 */
+	void reset();
+
+	/**
+	 * Describe all the metrics (one per line).
+	 */
+	String dump();
+}
@@ -0,0 +1,38 @@
+package org.concrete5.core.metrics;
+
+import org.eclipse.osgi.service.debug.DebugOptions;
+import org.eclipse.osgi.service.debug.DebugOptionsListener;
+
+/**
+ * Enable the metrics according to the tracing options of the plugin:
+ * <ul>
+ * <li>org.concrete5.core/debug/metrics: collect the metrics</li>
+ * <li>org.concrete5.core/debug/metrics/trace: also write every timed operation
+ * to the trace file</li>
+ * </ul>
+ */
+public class MetricsTracing implements DebugOptionsListener {
+
+	private final String pluginId;
+
+	/**
+	 * @param pluginId
+	 *            The symbolic name of the plugin that owns the options
+	 */
+	public MetricsTracing(String pluginId) {
+		this.pluginId = pluginId;
+	}
+
+	@Override
+	public void optionsChanged(DebugOptions options) {
+		boolean debug = options.getBooleanOption(this.pluginId + "/debug", false); //$NON-NLS-1$
+		boolean collect = debug && options.getBooleanOption(this.pluginId + "/debug/metrics", false); //$NON-NLS-1$
+		if (collect && options.getBooleanOption(this.pluginId + Metrics.TRACE_OPTION, false)) {
+			Metrics.setTrace(options.newDebugTrace(this.pluginId));
+		} else {
+			Metrics.traceDump();
+			Metrics.setTrace(null);
+		}
+		Metrics.setEnabled(collect);
+	}
+}
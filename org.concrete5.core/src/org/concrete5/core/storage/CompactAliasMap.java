@@ -0,0 +1,154 @@
+package org.concrete5.core.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.concrete5.core.factory.AliasTarget;
+import org.concrete5.core.factory.CompiledAliasMap;
+
+/**
+ * An immutable alias map stored as two arrays (the sorted keys and their
+ * values).
+ *
+ * Instances can be shared by any number of factory methods (see
+ * FactoryMethodInterner).
+ */
+final class CompactAliasMap extends AbstractMap<String, String> implements CompiledAliasMap {
+
+	private final String[] keys;
+	private final String[] values;
+	/**
+	 * The compiled values (null until compileValues() is called).
+	 */
+	private AliasTarget[] targets = null;
+	private int hashCode = 0;
+
+	/**
+	 * @param map
+	 *            The map to be copied
+	 */
+	CompactAliasMap(Map<String, String> map) {
+		int size = map.size();
+		this.keys = map.keySet().toArray(new String[size]);
+		Arrays.sort(this.keys);
+		this.values = new String[size];
+		for (int i = 0; i < size; i++) {
+			this.values[i] = map.get(this.keys[i]);
+		}
+	}
+
+	/**
+	 * Replace every key and value with its interned instance.
+	 */
+	void internStrings() {
+		for (int i = 0; i < this.keys.length; i++) {
+			this.keys[i] = FactoryMethodInterner.intern(this.keys[i]);
+			this.values[i] = FactoryMethodInterner.intern(this.values[i]);
+		}
+	}
+
+	/**
+	 * Compile every value (when the map becomes shared).
+	 */
+	void compileValues() {
+		AliasTarget[] targets = new AliasTarget[this.values.length];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = AliasTarget.compile(this.values[i]);
+		}
+		this.targets = targets;
+	}
+
+	@Override
+	public AliasTarget getAliasTarget(String key) {
+		int index = Arrays.binarySearch(this.keys, key);
+		if (index < 0) {
+			return null;
+		}
+		AliasTarget[] targets = this.targets;
+		return targets == null ? AliasTarget.compile(this.values[index]) : targets[index];
+	}
+
+	@Override
+	public int size() {
+		return this.keys.length;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && Arrays.binarySearch(this.keys, key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int index = Arrays.binarySearch(this.keys, key);
+		return index < 0 ? null : this.values[index];
+	}
+
+	@Override
+	public int hashCode() {
+		int result = this.hashCode;
+		if (result == 0) {
+			result = super.hashCode();
+			this.hashCode = result;
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (o instanceof CompactAliasMap) {
+			CompactAliasMap other = (CompactAliasMap) o;
+			return this.hashCode() == other.hashCode() && Arrays.equals(this.keys, other.keys)
+					&& Arrays.equals(this.values, other.values);
+		}
+		return super.equals(o);
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return this.index < CompactAliasMap.this.keys.length;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (this.index >= CompactAliasMap.this.keys.length) {
+							throw new NoSuchElementException();
+						}
+						int i = this.index++;
+						return new SimpleImmutableEntry<String, String>(CompactAliasMap.this.keys[i],
+								CompactAliasMap.this.values[i]);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return CompactAliasMap.this.keys.length;
+			}
+		};
+	}
+}
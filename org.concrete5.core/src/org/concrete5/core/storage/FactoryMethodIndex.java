@@ -0,0 +1,268 @@
+package org.concrete5.core.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * Immutable lookup table of factory methods, keyed by the case-folded method
+ * name and then by the case-folded class name.
+ *
+ * When more than one factory method has the same method and class names, they
+ * are sorted by definer resource path and then by their order in the resource:
+ * the first one has precedence, whatever the order of the changes.
+ */
+public class FactoryMethodIndex {
+
+	/**
+	 * An index without factory methods.
+	 */
+	public final static FactoryMethodIndex EMPTY = new FactoryMethodIndex(
+			Collections.<String, Map<String, FactoryMethod[]>>emptyMap());
+
+	private final Map<String, Map<String, FactoryMethod[]>> byMethodName;
+
+	private FactoryMethodIndex(Map<String, Map<String, FactoryMethod[]>> byMethodName) {
+		this.byMethodName = byMethodName;
+	}
+
+	/**
+	 * Create a new index by removing and adding factory methods to this index
+	 * (which is not modified).
+	 * The parts of this index that are not affected by the changes are shared
+	 * with the new index.
+	 *
+	 * @param removed
+	 *            The factory methods to be removed (compared by identity)
+	 * @param added
+	 *            The factory methods to be added
+	 * @param segments
+	 *            The factory methods of every definer resource path, after the
+	 *            changes (used to sort the factory methods with the same names)
+	 */
+	public FactoryMethodIndex withChanges(Collection<FactoryMethod> removed, Collection<FactoryMethod> added,
+			Map<String, FactoryMethod[]> segments) {
+		if (removed.isEmpty() && added.isEmpty()) {
+			return this;
+		}
+		Map<String, Map<String, FactoryMethod[]>> result = new HashMap<String, Map<String, FactoryMethod[]>>(
+				this.byMethodName);
+		Set<String> copiedMethodKeys = new HashSet<String>();
+		for (FactoryMethod factoryMethod : removed) {
+			String methodKey = foldCase(factoryMethod.methodName);
+			if (!result.containsKey(methodKey)) {
+				continue;
+			}
+			Map<String, FactoryMethod[]> byClassName = getWritable(result, copiedMethodKeys, methodKey);
+			String classKey = foldCase(factoryMethod.className);
+			FactoryMethod[] list = byClassName.get(classKey);
+			if (list == null) {
+				continue;
+			}
+			List<FactoryMethod> newList = new ArrayList<FactoryMethod>(list.length);
+			for (FactoryMethod item : list) {
+				if (item != factoryMethod) {
+					newList.add(item);
+				}
+			}
+			if (newList.isEmpty()) {
+				byClassName.remove(classKey);
+				if (byClassName.isEmpty()) {
+					result.remove(methodKey);
+				}
+			} else if (newList.size() != list.length) {
+				byClassName.put(classKey, newList.toArray(new FactoryMethod[newList.size()]));
+			}
+		}
+		// The class names of every method name that received more than one
+		// factory method
+		Map<String, Set<String>> unsorted = null;
+		for (FactoryMethod factoryMethod : added) {
+			String methodKey = foldCase(factoryMethod.methodName);
+			Map<String, FactoryMethod[]> byClassName = getWritable(result, copiedMethodKeys, methodKey);
+			String classKey = foldCase(factoryMethod.className);
+			FactoryMethod[] list = byClassName.get(classKey);
+			if (list == null) {
+				list = new FactoryMethod[] { factoryMethod };
+			} else {
+				list = Arrays.copyOf(list, list.length + 1);
+				list[list.length - 1] = factoryMethod;
+				if (unsorted == null) {
+					unsorted = new HashMap<String, Set<String>>();
+				}
+				Set<String> classKeys = unsorted.get(methodKey);
+				if (classKeys == null) {
+					classKeys = new HashSet<String>();
+					unsorted.put(methodKey, classKeys);
+				}
+				classKeys.add(classKey);
+			}
+			byClassName.put(classKey, list);
+		}
+		if (unsorted != null) {
+			Comparator<FactoryMethod> comparator = new DefinerOrder(segments);
+			for (Map.Entry<String, Set<String>> entry : unsorted.entrySet()) {
+				Map<String, FactoryMethod[]> byClassName = result.get(entry.getKey());
+				for (String classKey : entry.getValue()) {
+					// The lists that received more factory methods are new
+					// copies, not shared with this index
+					Arrays.sort(byClassName.get(classKey), comparator);
+				}
+			}
+		}
+		return new FactoryMethodIndex(result);
+	}
+
+	/**
+	 * Sort the factory methods by definer resource path, and then by their
+	 * position in the segment of the resource.
+	 */
+	private static class DefinerOrder implements Comparator<FactoryMethod> {
+		private final Map<String, FactoryMethod[]> segments;
+
+		DefinerOrder(Map<String, FactoryMethod[]> segments) {
+			this.segments = segments;
+		}
+
+		@Override
+		public int compare(FactoryMethod a, FactoryMethod b) {
+			int result = a.definerResourcePath.compareTo(b.definerResourcePath);
+			if (result == 0 && a != b) {
+				FactoryMethod[] segment = this.segments.get(a.definerResourcePath);
+				if (segment != null) {
+					int indexA = indexOf(segment, a);
+					int indexB = indexOf(segment, b);
+					result = indexA < indexB ? -1 : (indexA == indexB ? 0 : 1);
+				}
+			}
+			return result;
+		}
+
+		private static int indexOf(FactoryMethod[] segment, FactoryMethod factoryMethod) {
+			for (int i = 0; i < segment.length; i++) {
+				if (segment[i] == factoryMethod) {
+					return i;
+				}
+			}
+			return segment.length;
+		}
+	}
+
+	/**
+	 * Get the map of a method name that can be modified (that is, not shared
+	 * with the other indexes).
+	 */
+	private static Map<String, FactoryMethod[]> getWritable(Map<String, Map<String, FactoryMethod[]>> byMethodName,
+			Set<String> copiedMethodKeys, String methodKey) {
+		Map<String, FactoryMethod[]> byClassName = byMethodName.get(methodKey);
+		if (copiedMethodKeys.add(methodKey) || byClassName == null) {
+			byClassName = byClassName == null ? new HashMap<String, FactoryMethod[]>()
+					: new HashMap<String, FactoryMethod[]>(byClassName);
+			byMethodName.put(methodKey, byClassName);
+		}
+		return byClassName;
+	}
+
+	/**
+	 * Get the case-folded names of the indexed methods.
+	 */
+	Set<String> getMethodKeys() {
+		return Collections.unmodifiableSet(this.byMethodName.keySet());
+	}
+
+	/**
+	 * Check if there's at least one factory method with a specific name.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 */
+	public boolean hasMethodName(String methodName, int typeFlags) {
+		Map<String, FactoryMethod[]> byClassName = this.byMethodName.get(foldCase(methodName));
+		if (byClassName == null) {
+			return false;
+		}
+		for (FactoryMethod[] list : byClassName.values()) {
+			if (findByType(list, typeFlags) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the factory method for a specific method name and class name.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param className
+	 *            The fully qualified name of the class, without the leading
+	 *            backslash (case insensitive); use an empty string for functions
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 *
+	 * @return Return null if not found
+	 */
+	public FactoryMethod get(String methodName, String className, int typeFlags) {
+		Map<String, FactoryMethod[]> byClassName = this.byMethodName.get(foldCase(methodName));
+		if (byClassName == null) {
+			return null;
+		}
+		FactoryMethod[] list = byClassName.get(foldCase(className));
+		return list == null ? null : findByType(list, typeFlags);
+	}
+
+	/**
+	 * Get all the factory methods with a specific method name.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 */
+	public List<FactoryMethod> getByMethodName(String methodName, int typeFlags) {
+		Map<String, FactoryMethod[]> byClassName = this.byMethodName.get(foldCase(methodName));
+		if (byClassName == null) {
+			return Collections.emptyList();
+		}
+		List<FactoryMethod> result = null;
+		for (FactoryMethod[] list : byClassName.values()) {
+			for (FactoryMethod factoryMethod : list) {
+				if ((factoryMethod.type & typeFlags) != 0) {
+					if (result == null) {
+						result = new ArrayList<FactoryMethod>();
+					}
+					result.add(factoryMethod);
+				}
+			}
+		}
+		if (result == null) {
+			return Collections.emptyList();
+		}
+		return result;
+	}
+
+	private static FactoryMethod findByType(FactoryMethod[] list, int typeFlags) {
+		for (FactoryMethod factoryMethod : list) {
+			if ((factoryMethod.type & typeFlags) != 0) {
+				return factoryMethod;
+			}
+		}
+		return null;
+	}
+
+	private static String foldCase(String name) {
+		return name == null ? "" : name.toLowerCase(Locale.ENGLISH); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,66 @@
+package org.concrete5.core.storage;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * Share the data that is repeated across factory methods.
+ *
+ * Meta files define the same alias maps for many methods (make, build, get,
+ * offsetGet, ...), and the same class names appear in many of them: names are
+ * interned, and identical alias maps are replaced by a single CompactAliasMap
+ * instance (shared by all the projects, and released when no longer used).
+ * The alias values are compiled here, so that the evaluations don't have to
+ * parse them (see AliasTarget).
+ */
+final class FactoryMethodInterner {
+
+	private final static Map<CompactAliasMap, WeakReference<CompactAliasMap>> aliasMaps = new WeakHashMap<CompactAliasMap, WeakReference<CompactAliasMap>>();
+
+	private FactoryMethodInterner() {
+	}
+
+	static String intern(String string) {
+		return string == null ? null : string.intern();
+	}
+
+	/**
+	 * Get the shared instance of an alias map.
+	 *
+	 * Alias maps read from mapped files are returned as is, since their
+	 * entries are not stored in the heap.
+	 */
+	static Map<String, String> intern(Map<String, String> aliases) {
+		if (aliases instanceof MappedAliasMap) {
+			return aliases;
+		}
+		CompactAliasMap candidate = aliases instanceof CompactAliasMap ? (CompactAliasMap) aliases
+				: new CompactAliasMap(aliases);
+		synchronized (aliasMaps) {
+			WeakReference<CompactAliasMap> reference = aliasMaps.get(candidate);
+			CompactAliasMap shared = reference == null ? null : reference.get();
+			if (shared != null) {
+				return shared;
+			}
+			candidate.internStrings();
+			candidate.compileValues();
+			aliasMaps.put(candidate, new WeakReference<CompactAliasMap>(candidate));
+		}
+		return candidate;
+	}
+
+	/**
+	 * Get a copy of a factory method that uses shared names and alias maps,
+	 * with its aliases compiled.
+	 */
+	static FactoryMethod intern(FactoryMethod factoryMethod) {
+		FactoryMethod result = new FactoryMethod(intern(factoryMethod.definerResourcePath),
+				intern(factoryMethod.className), intern(factoryMethod.methodName), factoryMethod.discrimintatorIndex,
+				factoryMethod.type, intern(factoryMethod.aliases), intern(factoryMethod.fallbackAlias));
+		result.compileAliases();
+		return result;
+	}
+}
@@ -0,0 +1,344 @@
+package org.concrete5.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * Read and write lists of factory methods using a compact binary format.
+ *
+ * All the numbers are stored as big-endian 32-bit integers; the file contains:
+ * <ul>
+ * <li>the header: the MAGIC bytes, the format version, the number of strings
+ * and the number of records</li>
+ * <li>the offset tables: the position in the file of every string, followed by
+ * the position in the file of every record</li>
+ * <li>the string table: every string as its UTF-8 byte length and bytes</li>
+ * <li>the records: every record as its byte length and data; strings are
+ * stored as indexes in the string table, and the aliases are sorted by the
+ * UTF-8 bytes of their keys</li>
+ * </ul>
+ * Files are read by mapping them in memory: the alias maps are not decoded,
+ * but their keys are looked for directly in the mapped file.
+ */
+public class FactoryMethodSerializer {
+
+	/**
+	 * The bytes at the beginning of every file.
+	 */
+	public final static byte[] MAGIC = new byte[] { 'C', '5', 'F', 'M' };
+
+	/**
+	 * The current version of the format.
+	 */
+	public final static int VERSION = 2;
+
+	final static Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private final static int BUFFER_SIZE = 0x10000;
+
+	private final static int HEADER_SIZE = MAGIC.length + 3 * 4;
+
+	final static int RECORD_FIXED_SIZE = 7 * 4;
+
+	/**
+	 * Write a list of factory methods to a file.
+	 *
+	 * @param file
+	 *            The file to be written (it will be overwritten, so it must not
+	 *            be a file currently mapped in memory)
+	 * @param factoryMethods
+	 *            The factory methods to be saved
+	 *
+	 * @throws IOException
+	 */
+	public static void write(File file, FactoryMethod[] factoryMethods) throws IOException {
+		List<byte[]> strings = new ArrayList<byte[]>();
+		Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		int[][] records = new int[factoryMethods.length][];
+		for (int i = 0; i < factoryMethods.length; i++) {
+			FactoryMethod factoryMethod = factoryMethods[i];
+			int numAliases = factoryMethod.aliases.size();
+			int[] record = new int[7 + 2 * numAliases];
+			record[0] = getStringIndex(factoryMethod.definerResourcePath, strings, stringIndexes);
+			record[1] = getStringIndex(factoryMethod.className, strings, stringIndexes);
+			record[2] = getStringIndex(factoryMethod.methodName, strings, stringIndexes);
+			record[3] = factoryMethod.discrimintatorIndex;
+			record[4] = factoryMethod.type;
+			record[5] = getStringIndex(factoryMethod.fallbackAlias, strings, stringIndexes);
+			record[6] = numAliases;
+			final int[][] aliases = new int[numAliases][];
+			int j = 0;
+			for (Map.Entry<String, String> alias : factoryMethod.aliases.entrySet()) {
+				aliases[j++] = new int[] { getStringIndex(alias.getKey(), strings, stringIndexes),
+						getStringIndex(alias.getValue(), strings, stringIndexes) };
+			}
+			final List<byte[]> sortStrings = strings;
+			Arrays.sort(aliases, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] o1, int[] o2) {
+					return compareBytes(sortStrings.get(o1[0]), sortStrings.get(o2[0]));
+				}
+			});
+			j = 7;
+			for (int[] alias : aliases) {
+				record[j++] = alias[0];
+				record[j++] = alias[1];
+			}
+			records[i] = record;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+				FileChannel channel = raf.getChannel()) {
+			channel.truncate(0);
+			Writer writer = new Writer(channel);
+			writer.putBytes(MAGIC);
+			writer.putInt(VERSION);
+			writer.putInt(strings.size());
+			writer.putInt(records.length);
+			int offset = HEADER_SIZE + 4 * (strings.size() + records.length);
+			for (byte[] string : strings) {
+				writer.putInt(offset);
+				offset += 4 + string.length;
+			}
+			for (int[] record : records) {
+				writer.putInt(offset);
+				offset += 4 + 4 * record.length;
+			}
+			for (byte[] string : strings) {
+				writer.putInt(string.length);
+				writer.putBytes(string);
+			}
+			for (int[] record : records) {
+				writer.putInt(record.length * 4);
+				for (int value : record) {
+					writer.putInt(value);
+				}
+			}
+			writer.flush();
+			channel.force(true);
+			StorageIO.written(channel.size());
+		}
+	}
+
+	/**
+	 * Read a list of factory methods from a file.
+	 *
+	 * The file is mapped in memory, so it must not be modified until the
+	 * returned factory methods are in use.
+	 *
+	 * @param file
+	 *            The file to be read
+	 *
+	 * @return Return null if the file is not in this format (or it's in an
+	 *         unsupported version), the list of factory methods otherwise
+	 *
+	 * @throws IOException
+	 */
+	public static FactoryMethod[] read(File file) throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+				FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				return null;
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Factory method file too big"); //$NON-NLS-1$
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			StorageIO.read(size);
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buffer.get(i) != MAGIC[i]) {
+				return null;
+			}
+		}
+		if (buffer.getInt(MAGIC.length) != VERSION) {
+			return null;
+		}
+		try {
+			return new MappedFactoryMethodFile(buffer).getFactoryMethods();
+		} catch (RuntimeException x) {
+			throw new IOException("Corrupted factory method file", x); //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * Compare two arrays of bytes (considered as unsigned values).
+	 */
+	static int compareBytes(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int delta = (a[i] & 0xff) - (b[i] & 0xff);
+			if (delta != 0) {
+				return delta;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	private static int getStringIndex(String string, List<byte[]> strings, Map<String, Integer> stringIndexes) {
+		if (string == null) {
+			string = ""; //$NON-NLS-1$
+		}
+		Integer index = stringIndexes.get(string);
+		if (index == null) {
+			index = Integer.valueOf(strings.size());
+			strings.add(string.getBytes(UTF8));
+			stringIndexes.put(string, index);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * A factory method file mapped in memory.
+	 */
+	static class MappedFactoryMethodFile {
+		private final ByteBuffer buffer;
+		private final int numStrings;
+		private final int numRecords;
+		private final String[] decodedStrings;
+
+		MappedFactoryMethodFile(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.numStrings = buffer.getInt(MAGIC.length + 4);
+			this.numRecords = buffer.getInt(MAGIC.length + 8);
+			if (this.numStrings < 0 || this.numRecords < 0
+					|| HEADER_SIZE + 4L * ((long) this.numStrings + this.numRecords) > buffer.limit()) {
+				throw new IllegalArgumentException();
+			}
+			this.decodedStrings = new String[this.numStrings];
+		}
+
+		FactoryMethod[] getFactoryMethods() {
+			FactoryMethod[] result = new FactoryMethod[this.numRecords];
+			int recordOffsetTable = HEADER_SIZE + 4 * this.numStrings;
+			// Records with the same aliases share the same map (the aliases are
+			// sorted, so identical maps are stored with the same bytes)
+			Map<ByteBuffer, MappedAliasMap> aliasMaps = new HashMap<ByteBuffer, MappedAliasMap>();
+			for (int i = 0; i < this.numRecords; i++) {
+				int offset = this.buffer.getInt(recordOffsetTable + 4 * i);
+				int recordLength = this.buffer.getInt(offset);
+				int numAliases = this.buffer.getInt(offset + 4 + 6 * 4);
+				if (numAliases < 0 || recordLength != RECORD_FIXED_SIZE + numAliases * 8
+						|| offset + 4 + recordLength > this.buffer.limit()) {
+					throw new IllegalArgumentException();
+				}
+				int aliasesOffset = offset + 4 + RECORD_FIXED_SIZE;
+				ByteBuffer aliasesBytes = this.buffer.duplicate();
+				aliasesBytes.limit(aliasesOffset + numAliases * 8);
+				aliasesBytes.position(aliasesOffset);
+				MappedAliasMap aliases = aliasMaps.get(aliasesBytes);
+				if (aliases == null) {
+					aliases = new MappedAliasMap(this, aliasesOffset, numAliases);
+					aliasMaps.put(aliasesBytes, aliases);
+				}
+				result[i] = new FactoryMethod(this.getString(this.buffer.getInt(offset + 4)),
+						this.getString(this.buffer.getInt(offset + 8)), this.getString(this.buffer.getInt(offset + 12)),
+						this.buffer.getInt(offset + 16), this.buffer.getInt(offset + 20), aliases,
+						this.getString(this.buffer.getInt(offset + 24)));
+			}
+			return result;
+		}
+
+		int getInt(int offset) {
+			return this.buffer.getInt(offset);
+		}
+
+		String getString(int index) {
+			String result = this.decodedStrings[index];
+			if (result == null) {
+				int offset = this.getStringOffset(index);
+				byte[] bytes = new byte[this.buffer.getInt(offset)];
+				ByteBuffer view = this.buffer.duplicate();
+				view.position(offset + 4);
+				view.get(bytes);
+				result = new String(bytes, UTF8);
+				this.decodedStrings[index] = result;
+			}
+			return result;
+		}
+
+		/**
+		 * Compare a string of the string table with the UTF-8 bytes of another
+		 * string.
+		 */
+		int compareString(int index, byte[] other) {
+			int offset = this.getStringOffset(index);
+			int length = this.buffer.getInt(offset);
+			offset += 4;
+			int commonLength = Math.min(length, other.length);
+			for (int i = 0; i < commonLength; i++) {
+				int delta = (this.buffer.get(offset + i) & 0xff) - (other[i] & 0xff);
+				if (delta != 0) {
+					return delta;
+				}
+			}
+			return length - other.length;
+		}
+
+		/**
+		 * Hash a string of the string table without decoding it (see
+		 * SegmentFingerprint).
+		 */
+		long hashString(int index) {
+			int offset = this.getStringOffset(index);
+			return SegmentFingerprint.hash(this.buffer, offset + 4, this.buffer.getInt(offset));
+		}
+
+		private int getStringOffset(int index) {
+			if (index < 0 || index >= this.numStrings) {
+				throw new IndexOutOfBoundsException();
+			}
+			return this.buffer.getInt(HEADER_SIZE + 4 * index);
+		}
+	}
+
+	private static class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		public Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public void putInt(int value) throws IOException {
+			if (this.buffer.remaining() < 4) {
+				this.flush();
+			}
+			this.buffer.putInt(value);
+		}
+
+		public void putBytes(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (!this.buffer.hasRemaining()) {
+					this.flush();
+				}
+				int length = Math.min(this.buffer.remaining(), bytes.length - offset);
+				this.buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		public void flush() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package org.concrete5.core.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * An immutable state of the factory methods of a project.
+ *
+ * Snapshots are never modified: changes are published by creating new
+ * snapshots, so they can be read by any thread without locking.
+ */
+public class FactoryMethodSnapshot {
+
+	/**
+	 * A snapshot without factory methods.
+	 */
+	public final static FactoryMethodSnapshot EMPTY = new FactoryMethodSnapshot(
+			Collections.<String, FactoryMethod[]>emptyMap(), Collections.<String, Long>emptyMap(),
+			FactoryMethodIndex.EMPTY, 0L);
+
+	private final Map<String, FactoryMethod[]> segments;
+	private final Map<String, Long> fingerprints;
+	private final FactoryMethodIndex index;
+	private final long generation;
+	private final MethodNameFilter methodNameFilter;
+	private volatile FactoryMethod[] allFactoryMethods = null;
+
+	/**
+	 * @param segments
+	 *            The factory methods of every definer resource path (the map and
+	 *            the arrays must not be modified afterwards)
+	 * @param fingerprints
+	 *            The fingerprint of every segment (the map must not be modified
+	 *            afterwards)
+	 * @param index
+	 *            The index of all the factory methods
+	 * @param generation
+	 *            The generation of this snapshot
+	 */
+	FactoryMethodSnapshot(Map<String, FactoryMethod[]> segments, Map<String, Long> fingerprints,
+			FactoryMethodIndex index, long generation) {
+		this.segments = Collections.unmodifiableMap(segments);
+		this.fingerprints = fingerprints;
+		this.index = index;
+		this.generation = generation;
+		this.methodNameFilter = MethodNameFilter.create(index.getMethodKeys());
+	}
+
+	/**
+	 * Get the generation of this snapshot: every change of the storage
+	 * publishes a snapshot with a higher generation.
+	 */
+	public long getGeneration() {
+		return this.generation;
+	}
+
+	/**
+	 * Get the factory methods of every definer resource path.
+	 */
+	Map<String, FactoryMethod[]> getSegments() {
+		return this.segments;
+	}
+
+	/**
+	 * Get the fingerprint of the factory methods defined by a resource.
+	 *
+	 * @return Return null if the resource doesn't define factory methods
+	 */
+	Long getFingerprint(String path) {
+		Long result = this.fingerprints.get(path);
+		if (result == null) {
+			FactoryMethod[] segment = this.segments.get(path);
+			if (segment != null) {
+				result = Long.valueOf(SegmentFingerprint.compute(segment));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the fingerprint of every segment.
+	 */
+	Map<String, Long> getFingerprints() {
+		return this.fingerprints;
+	}
+
+	FactoryMethodIndex getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * Get the paths of the resources that define factory methods.
+	 */
+	public Set<String> getDefinerPaths() {
+		return this.segments.keySet();
+	}
+
+	/**
+	 * Check if a resource defines factory methods.
+	 */
+	public boolean hasDefinerPath(String path) {
+		return this.segments.containsKey(path);
+	}
+
+	/**
+	 * Get the factory methods defined by a resource.
+	 *
+	 * @return Return null if the resource doesn't define factory methods
+	 */
+	public List<FactoryMethod> getFactoryMethodsForPath(String path) {
+		FactoryMethod[] segment = this.segments.get(path);
+		return segment == null ? null : Collections.unmodifiableList(Arrays.asList(segment));
+	}
+
+	public FactoryMethod[] getAllFactoryMethods() {
+		FactoryMethod[] result = this.allFactoryMethods;
+		if (result == null) {
+			List<FactoryMethod> list = new ArrayList<FactoryMethod>();
+			for (FactoryMethod[] segment : this.segments.values()) {
+				list.addAll(Arrays.asList(segment));
+			}
+			result = list.toArray(new FactoryMethod[list.size()]);
+			this.allFactoryMethods = result;
+		}
+		return result.clone();
+	}
+
+	public List<FactoryMethod> getFactoryMethodsByMethodName(String methodName, int typeFlags) {
+		return this.index.getByMethodName(methodName, typeFlags);
+	}
+
+	/**
+	 * Quickly check if there may be factory methods with a specific name.
+	 *
+	 * This never accesses the factory methods: it may return true even if
+	 * there are no such factory methods, but it never returns false if there
+	 * are.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 */
+	public boolean mightHaveFactoryMethods(String methodName) {
+		return this.methodNameFilter.mightContain(methodName);
+	}
+
+	/**
+	 * Check if there's at least one factory method with a specific name.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 */
+	public boolean hasFactoryMethods(String methodName, int typeFlags) {
+		return this.index.hasMethodName(methodName, typeFlags);
+	}
+
+	/**
+	 * Get the factory method defined for a method of a specific class.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param className
+	 *            The fully qualified name of the class, without the leading
+	 *            backslash (case insensitive); use an empty string for functions
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 *
+	 * @return Return null if not found
+	 */
+	public FactoryMethod getFactoryMethod(String methodName, String className, int typeFlags) {
+		return this.index.get(methodName, className, typeFlags);
+	}
+}
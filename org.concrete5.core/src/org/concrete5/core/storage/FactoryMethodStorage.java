@@ -1,201 +1,748 @@
 package org.concrete5.core.storage;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.concrete5.core.Concrete5CorePlugin;
 import org.concrete5.core.builder.ProjectData;
 import org.concrete5.core.factory.FactoryMethod;
+import org.concrete5.core.metrics.FlightEvents;
+import org.concrete5.core.metrics.Metrics;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 
+/**
+ * The factory methods defined in a project.
+ *
+ * The factory methods are read from immutable snapshots (see getSnapshot()), so
+ * readers never wait for writers. Changes are collected in batches, and every
+ * committed batch publishes a new snapshot; the changes are then written to
+ * disk by a background job (see flush()). The disk I/O is serialized by
+ * ioLock: when both locks are needed, ioLock must be acquired before the lock
+ * on this instance.
+ */
 public class FactoryMethodStorage {
 
 	private final static FactoryMethod[] emptyList = new FactoryMethod[0];
 	private ProjectData projectData = null;
-	private FactoryMethod[] factoryMethods;
+	private final Object ioLock = new Object();
+	private SegmentStore segmentStore = null;
+	private FlushJob flushJob = null;
+	/**
+	 * Write the changes to disk in a background job (otherwise they are written
+	 * only by flush()).
+	 */
+	private final boolean autoFlush;
+	/**
+	 * The currently published state (null if not yet loaded).
+	 */
+	private volatile FactoryMethodSnapshot snapshot = null;
+	/**
+	 * The generation of the last published snapshot.
+	 */
+	private long generation = 0L;
+	/**
+	 * The number of batches applied so far (see getChangeCount()).
+	 */
+	private volatile long changeCount = 0L;
+	/**
+	 * The value of changeCount when every resource has been last changed by a
+	 * batch (even if its factory methods were the same), used to detect the
+	 * stale removals and renames.
+	 */
+	private final Map<String, Long> pathChanges = new HashMap<String, Long>();
+	/**
+	 * Set when the data of the project has been discarded: the changes are no
+	 * longer written to disk.
+	 */
+	private boolean discarded = false;
+	/**
+	 * The definer resource paths whose segments must be written to disk.
+	 */
+	private final Set<String> dirtyPaths = new LinkedHashSet<String>();
+	/**
+	 * The segments to be renamed on disk (pairs of old and new paths).
+	 */
+	private final List<String[]> pendingRenames = new ArrayList<String[]>();
 
 	public FactoryMethodStorage(ProjectData projectData) {
 		this.projectData = projectData;
+		this.autoFlush = true;
 	}
 
-	public FactoryMethod[] getAllFactoryMethods() {
-		if (this.factoryMethods != null) {
-			return this.factoryMethods;
-		}
-		ObjectInputStream stream = this.getStorageInput();
-		if (stream == null) {
-			this.factoryMethods = FactoryMethodStorage.emptyList;
-		} else {
-			try {
-				this.factoryMethods = (FactoryMethod[]) stream.readObject();
-			} catch (ClassNotFoundException | IOException e) {
-				this.factoryMethods = FactoryMethodStorage.emptyList;
-			} finally {
-				try {
-					stream.close();
-				} catch (Throwable foo) {
+	/**
+	 * Create a storage that uses specific directories, outside of a running
+	 * workspace (for instance in the benchmarks): the changes are written to
+	 * disk only when flush() is called.
+	 *
+	 * @param dataDirectory
+	 *            The directory containing the manifest of the storage
+	 * @param sharedDirectory
+	 *            The directory containing the shared segments
+	 */
+	public FactoryMethodStorage(File dataDirectory, File sharedDirectory) {
+		this.segmentStore = new SegmentStore(dataDirectory, sharedDirectory);
+		this.autoFlush = false;
+	}
+
+	/**
+	 * Get the current state of the factory methods.
+	 *
+	 * The returned snapshot is never modified: callers that perform more than
+	 * one lookup should use the same snapshot to get consistent results.
+	 */
+	public FactoryMethodSnapshot getSnapshot() {
+		FactoryMethodSnapshot result = this.snapshot;
+		if (result == null) {
+			synchronized (this.ioLock) {
+				synchronized (this) {
+					result = this.snapshot;
+					if (result == null) {
+						long start = Metrics.start();
+						Object event = FlightEvents.beginStorageRead();
+						long bytesRead = StorageIO.getBytesRead();
+						SegmentStore segmentStore = this.getSegmentStore();
+						Map<String, FactoryMethod[]> segments = segmentStore.load();
+						List<FactoryMethod> factoryMethods = new ArrayList<FactoryMethod>();
+						for (FactoryMethod[] segment : segments.values()) {
+							factoryMethods.addAll(Arrays.asList(segment));
+						}
+						result = new FactoryMethodSnapshot(segments, segmentStore.getFingerprints(),
+								FactoryMethodIndex.EMPTY.withChanges(Collections.<FactoryMethod>emptyList(),
+										factoryMethods, segments),
+								++this.generation);
+						this.snapshot = result;
+						Metrics.STORAGE_LOADS.recordSince(start);
+						FlightEvents.commitStorage(event, StorageIO.getBytesRead() - bytesRead, factoryMethods.size());
+					}
 				}
 			}
-			if (this.factoryMethods == null) {
-				this.factoryMethods = FactoryMethodStorage.emptyList;
-			}
 		}
+		return result;
+	}
 
-		return this.factoryMethods;
+	/**
+	 * Get the current state of the factory methods, without loading them.
+	 *
+	 * @return Return null if the factory methods have not been loaded yet
+	 */
+	public FactoryMethodSnapshot getLoadedSnapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * Get the number of batches applied so far: pass it to
+	 * Batch.resetForPath() and Batch.renameForPath() when a change is applied
+	 * later than when it happened.
+	 */
+	public long getChangeCount() {
+		return this.changeCount;
+	}
+
+	/**
+	 * Start collecting changes: they will be published at once when the
+	 * commit() method of the returned batch is called.
+	 */
+	public Batch beginBatch() {
+		return new Batch();
+	}
+
+	private synchronized SegmentStore getSegmentStore() {
+		if (this.segmentStore == null) {
+			this.segmentStore = new SegmentStore(this.projectData.getDataPath().toFile(),
+					ProjectData.getSharedDataPath().toFile());
+		}
+		return this.segmentStore;
+	}
+
+	public FactoryMethod[] getAllFactoryMethods() {
+		return this.getSnapshot().getAllFactoryMethods();
 	}
 
 	public void addFactoryMethod(FactoryMethod factoryMethod) {
-		FactoryMethod[] currentList = this.getAllFactoryMethods();
-		FactoryMethod[] newList = Arrays.copyOf(currentList, currentList.length + 1);
-		newList[currentList.length] = factoryMethod;
-		this.setFactoryMethods(newList);
+		Batch batch = this.beginBatch();
+		batch.addFactoryMethod(factoryMethod);
+		batch.commit();
 	}
 
-	public void removeAllFactoryMethods() {
-		this.setFactoryMethods(new FactoryMethod[0]);
-		this.factoryMethods = null;
+	public void resetForPath(String path) {
+		Batch batch = this.beginBatch();
+		batch.resetForPath(path);
+		batch.commit();
 	}
 
-	private void setFactoryMethods(FactoryMethod[] newList) {
-		ObjectOutputStream stream = null;
-		try {
-			if (newList.length == 0) {
-				File file = this.getStorageFile();
-				if (file.isFile()) {
-					file.delete();
+	/**
+	 * Replace the factory methods defined in a resource (see
+	 * Batch.replaceForPath()).
+	 */
+	public void replaceForPath(String path, Collection<FactoryMethod> factoryMethods) {
+		Batch batch = this.beginBatch();
+		batch.replaceForPath(path, factoryMethods);
+		batch.commit();
+	}
+
+	public void renameForPath(String oldFilename, String newFilename) {
+		Batch batch = this.beginBatch();
+		batch.renameForPath(oldFilename, newFilename);
+		batch.commit();
+	}
+
+	/**
+	 * Discard all the factory methods, without touching the files on disk
+	 * (which must be deleted by the caller): from now on, the changes are kept
+	 * in memory only.
+	 */
+	public void discard() {
+		synchronized (this.ioLock) {
+			synchronized (this) {
+				if (this.flushJob != null) {
+					this.flushJob.cancel();
 				}
-			} else {
-				stream = this.getStorageOutput();
-				stream.writeObject(newList);
-			}
-		} catch (Throwable e) {
-			try {
-				Concrete5CorePlugin plugin = Concrete5CorePlugin.getDefault();
-				Platform.getLog(plugin.getBundle())
-						.log(new Status(Status.ERROR, Concrete5CorePlugin.PLUGIN_ID, e.getMessage(), e));
-			} catch (Throwable foo) {
-			}
-		} finally {
-			if (stream != null) {
-				try {
-					stream.close();
-				} catch (Throwable foo) {
+				this.discarded = true;
+				if (this.segmentStore != null) {
+					this.segmentStore.releaseReferences();
 				}
+				this.dirtyPaths.clear();
+				this.pendingRenames.clear();
+				this.pathChanges.clear();
+				this.snapshot = new FactoryMethodSnapshot(Collections.<String, FactoryMethod[]>emptyMap(),
+						Collections.<String, Long>emptyMap(), FactoryMethodIndex.EMPTY, ++this.generation);
 			}
 		}
-		this.factoryMethods = newList;
 	}
 
-	public void resetForPath(String path) {
-		if (path == null) {
-			return;
+	/**
+	 * Write the pending changes to disk, and release the shared segments used by
+	 * this storage (for instance because the project has been closed).
+	 */
+	public void close() {
+		synchronized (this.ioLock) {
+			this.flush();
+			SegmentStore segmentStore;
+			synchronized (this) {
+				segmentStore = this.segmentStore;
+			}
+			if (segmentStore != null) {
+				segmentStore.releaseReferences();
+			}
 		}
-		FactoryMethod[] currentList = this.getAllFactoryMethods();
-		if (currentList.length == 0) {
-			return;
+	}
+
+	/**
+	 * Delete the shared segment files that are not used by any project.
+	 *
+	 * @param stateDirectory
+	 *            The directory containing the data directories of all the
+	 *            projects
+	 * @param sharedDirectory
+	 *            The directory containing the shared segments
+	 */
+	public static void collectGarbage(File stateDirectory, File sharedDirectory) {
+		try {
+			SegmentStore.collectGarbage(stateDirectory, sharedDirectory);
+		} catch (Throwable e) {
+			log(e);
 		}
-		List<FactoryMethod> newList = new ArrayList<FactoryMethod>(currentList.length);
-		for (FactoryMethod factoryMethod : currentList) {
-			if (!factoryMethod.definerResourcePath.equals(path)) {
-				newList.add(factoryMethod);
+	}
+
+	/**
+	 * Publish a new snapshot containing the changes of a batch.
+	 *
+	 * The resources whose factory methods are the same as the published ones
+	 * (same fingerprint) are left untouched: if no resource actually changed,
+	 * no snapshot is published and nothing is written to disk. For the other
+	 * resources, only the factory methods that actually changed are removed
+	 * from and added to the index.
+	 */
+	private void apply(List<Change> changes) {
+		FactoryMethodSnapshot current = this.getSnapshot();
+		synchronized (this) {
+			current = this.snapshot;
+			long changeCount = ++this.changeCount;
+			Map<String, FactoryMethod[]> segments = current.getSegments();
+			// The new contents of the changed paths
+			Map<String, List<FactoryMethod>> changed = new LinkedHashMap<String, List<FactoryMethod>>();
+			Set<String> dirty = new LinkedHashSet<String>();
+			List<String[]> renames = new ArrayList<String[]>();
+			// The paths initialized by this batch
+			Set<String> initialized = new HashSet<String>();
+			for (Change change : changes) {
+				switch (change.kind) {
+					case Change.RESET:
+						if (this.isStale(change.path, change.since)) {
+							break;
+						}
+						changed.put(change.path, new ArrayList<FactoryMethod>());
+						dirty.add(change.path);
+						break;
+					case Change.ADD:
+						getChangedSegment(change.path, segments, changed).add(change.factoryMethod);
+						dirty.add(change.path);
+						break;
+					case Change.INITIALIZE:
+						List<FactoryMethod> known = changed.get(change.path);
+						if (initialized.contains(change.path)
+								|| (known == null ? !segments.containsKey(change.path) : known.isEmpty())) {
+							initialized.add(change.path);
+							getChangedSegment(change.path, segments, changed).add(change.factoryMethod);
+							dirty.add(change.path);
+						}
+						break;
+					case Change.RENAME:
+						if (this.isStale(change.path, change.since)) {
+							// The old path has been indexed again meanwhile
+							break;
+						}
+						if (this.isStale(change.newPath, change.since)) {
+							// The new path has already been indexed: only
+							// remove the old factory methods
+							changed.put(change.path, new ArrayList<FactoryMethod>());
+							dirty.add(change.path);
+							break;
+						}
+						List<FactoryMethod> moving = getChangedSegment(change.path, segments, changed);
+						if (moving.isEmpty()) {
+							break;
+						}
+						List<FactoryMethod> moved = new ArrayList<FactoryMethod>(moving.size());
+						for (FactoryMethod factoryMethod : moving) {
+							moved.add(factoryMethod.withDefinerResourcePath(change.newPath));
+						}
+						changed.put(change.path, new ArrayList<FactoryMethod>());
+						changed.put(change.newPath, moved);
+						if (dirty.contains(change.path) || dirty.contains(change.newPath)
+								|| this.dirtyPaths.contains(change.path) || this.dirtyPaths.contains(change.newPath)) {
+							// Not yet saved: save it with the new path
+							dirty.add(change.path);
+							dirty.add(change.newPath);
+						} else {
+							renames.add(new String[] { change.path, change.newPath });
+						}
+						break;
+				}
 			}
+			List<FactoryMethod> removed = new ArrayList<FactoryMethod>();
+			List<FactoryMethod> added = new ArrayList<FactoryMethod>();
+			Map<String, FactoryMethod[]> newSegments = null;
+			Map<String, Long> newFingerprints = null;
+			for (Map.Entry<String, List<FactoryMethod>> entry : changed.entrySet()) {
+				String path = entry.getKey();
+				FactoryMethod[] oldSegment = segments.get(path);
+				List<FactoryMethod> newSegment = entry.getValue();
+				if (oldSegment == null && newSegment.isEmpty()) {
+					dirty.remove(path);
+					continue;
+				}
+				this.pathChanges.put(path, Long.valueOf(changeCount));
+				Long newFingerprint = null;
+				if (!newSegment.isEmpty()) {
+					newFingerprint = Long.valueOf(SegmentFingerprint.compute(newSegment));
+					if (oldSegment != null && newFingerprint.equals(current.getFingerprint(path))
+							&& SegmentFingerprint.sameFactoryMethods(oldSegment, newSegment)) {
+						// Same factory methods: keep the published ones
+						dirty.remove(path);
+						continue;
+					}
+					newSegment = this.shareSegment(newFingerprint.longValue(), path, newSegment);
+				}
+				if (newSegments == null) {
+					newSegments = new LinkedHashMap<String, FactoryMethod[]>(segments);
+					newFingerprints = new HashMap<String, Long>(current.getFingerprints());
+				}
+				if (newSegment.isEmpty()) {
+					removed.addAll(Arrays.asList(oldSegment));
+					newSegments.remove(path);
+					newFingerprints.remove(path);
+				} else {
+					newSegments.put(path, diffSegment(oldSegment, newSegment, removed, added));
+					newFingerprints.put(path, newFingerprint);
+				}
+			}
+			if (newSegments == null) {
+				return;
+			}
+			this.snapshot = new FactoryMethodSnapshot(newSegments, newFingerprints,
+					current.getIndex().withChanges(removed, added, newSegments), ++this.generation);
+			this.pendingRenames.addAll(renames);
+			this.dirtyPaths.addAll(dirty);
+			this.scheduleFlush();
 		}
-		int newSize = newList.size();
-		if (newSize == currentList.length) {
-			return;
+	}
+
+	/**
+	 * Check if a resource has been changed after a change that is being
+	 * applied.
+	 *
+	 * @param since
+	 *            The value of changeCount when the change happened
+	 */
+	private boolean isStale(String path, long since) {
+		Long lastChange = this.pathChanges.get(path);
+		return lastChange != null && lastChange.longValue() > since;
+	}
+
+	/**
+	 * Use the factory methods of an identical segment already loaded (for
+	 * instance by another project), so that their aliases are kept in memory
+	 * only once.
+	 */
+	private List<FactoryMethod> shareSegment(long fingerprint, String path, List<FactoryMethod> segment) {
+		FactoryMethod[] sharedSegment = this.getSegmentStore().getSharedStore().peek(fingerprint, segment);
+		if (sharedSegment == null) {
+			return segment;
 		}
-		FactoryMethod[] newArray = new FactoryMethod[newSize];
-		this.setFactoryMethods(newList.toArray(newArray));
+		return Arrays.asList(SegmentStore.forPath(sharedSegment, path));
 	}
 
-	public void renameForPath(String oldFilename, String newFilename) {
-		FactoryMethod[] currentList = this.getAllFactoryMethods();
-		if (currentList.length == 0) {
-			return;
+	/**
+	 * Compare the old and the new factory methods of a resource.
+	 *
+	 * @param oldSegment
+	 *            The published factory methods (may be null)
+	 * @param newSegment
+	 *            The new factory methods
+	 * @param removed
+	 *            Receives the old factory methods not present in the new ones
+	 * @param added
+	 *            Receives the new factory methods not present in the old ones
+	 *
+	 * @return The new segment (the unchanged factory methods are the old
+	 *         instances)
+	 */
+	private static FactoryMethod[] diffSegment(FactoryMethod[] oldSegment, List<FactoryMethod> newSegment,
+			List<FactoryMethod> removed, List<FactoryMethod> added) {
+		FactoryMethod[] result = newSegment.toArray(new FactoryMethod[newSegment.size()]);
+		if (oldSegment == null) {
+			added.addAll(newSegment);
+			return result;
 		}
-		boolean changed = false;
-		for (int i = currentList.length - 1; i >= 0; i--) {
-			if (currentList[i].definerResourcePath.equals(oldFilename)) {
-				changed = true;
-				currentList[i].definerResourcePath = newFilename;
+		Map<Long, List<FactoryMethod>> unmatched = new HashMap<Long, List<FactoryMethod>>();
+		for (FactoryMethod factoryMethod : oldSegment) {
+			Long fingerprint = Long.valueOf(SegmentFingerprint.compute(factoryMethod));
+			List<FactoryMethod> list = unmatched.get(fingerprint);
+			if (list == null) {
+				list = new ArrayList<FactoryMethod>(1);
+				unmatched.put(fingerprint, list);
 			}
+			list.add(factoryMethod);
 		}
-		if (!changed) {
-			return;
+		for (int i = 0; i < result.length; i++) {
+			List<FactoryMethod> list = unmatched.get(Long.valueOf(SegmentFingerprint.compute(result[i])));
+			if (list == null || list.isEmpty()) {
+				added.add(result[i]);
+			} else {
+				result[i] = list.remove(0);
+			}
 		}
-		this.setFactoryMethods(currentList);
-
+		for (List<FactoryMethod> list : unmatched.values()) {
+			removed.addAll(list);
+		}
+		return result;
 	}
 
-	private File getStorageFile() {
-		File file = this.projectData.getDataPath().append("factoryMethods").toFile();
-		return file;
+	private static List<FactoryMethod> getChangedSegment(String path, Map<String, FactoryMethod[]> segments,
+			Map<String, List<FactoryMethod>> changed) {
+		List<FactoryMethod> result = changed.get(path);
+		if (result == null) {
+			FactoryMethod[] segment = segments.get(path);
+			result = new ArrayList<FactoryMethod>(Arrays.asList(segment == null ? emptyList : segment));
+			changed.put(path, result);
+		}
+		return result;
 	}
 
-	private ObjectInputStream getStorageInput() {
-		File file = this.getStorageFile();
-		if (file == null || !file.isFile()) {
-			return null;
+	/**
+	 * Write the pending changes to disk in a background job, after a short
+	 * delay so that bursts of changes are written at once.
+	 */
+	private void scheduleFlush() {
+		if (!this.autoFlush || this.discarded || (this.dirtyPaths.isEmpty() && this.pendingRenames.isEmpty())) {
+			return;
 		}
-		FileInputStream inputStream;
-		try {
-			inputStream = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
-			return null;
+		if (this.flushJob == null) {
+			this.flushJob = new FlushJob(this);
 		}
-		try {
-			return new ObjectInputStream(inputStream);
-		} catch (IOException e) {
+		this.flushJob.schedule(FlushJob.DELAY);
+	}
+
+	/**
+	 * Write the pending changes to disk.
+	 *
+	 * Every file is written to a temporary file and then renamed, so that a
+	 * crash never leaves a partially written file.
+	 */
+	public void flush() {
+		synchronized (this.ioLock) {
+			Map<String, FactoryMethod[]> segments;
+			Map<String, Long> fingerprints;
+			List<String> dirtyPaths;
+			List<String[]> renames;
+			synchronized (this) {
+				if (this.discarded || (this.dirtyPaths.isEmpty() && this.pendingRenames.isEmpty())) {
+					return;
+				}
+				segments = this.snapshot.getSegments();
+				fingerprints = this.snapshot.getFingerprints();
+				dirtyPaths = new ArrayList<String>(this.dirtyPaths);
+				renames = new ArrayList<String[]>(this.pendingRenames);
+				this.dirtyPaths.clear();
+				this.pendingRenames.clear();
+			}
+			long start = Metrics.start();
+			Object event = FlightEvents.beginStorageWrite();
+			long bytesWritten = StorageIO.getBytesWritten();
+			SegmentStore segmentStore = this.getSegmentStore();
 			try {
-				inputStream.close();
-			} catch (Throwable foo) {
+				for (String[] rename : renames) {
+					segmentStore.rename(rename[0], rename[1]);
+				}
+				segmentStore.save(segments, fingerprints, dirtyPaths);
+			} catch (Throwable e) {
+				log(e);
+			}
+			Metrics.STORAGE_SAVES.recordSince(start);
+			if (event != null) {
+				int entries = 0;
+				for (String path : dirtyPaths) {
+					FactoryMethod[] segment = segments.get(path);
+					if (segment != null) {
+						entries += segment.length;
+					}
+				}
+				FlightEvents.commitStorage(event, StorageIO.getBytesWritten() - bytesWritten, entries);
 			}
-			return null;
 		}
 	}
 
+	/**
+	 * Cancel the scheduled background writes of all the storages.
+	 */
+	public static void cancelScheduledFlushes() {
+		Job.getJobManager().cancel(FlushJob.FAMILY);
+	}
+
 	public List<FactoryMethod> getFactoryMethodsByMethodName(String methodName, int typeFlags) {
-		FactoryMethod[] factoryMethods = this.getAllFactoryMethods();
-		List<FactoryMethod> result = new ArrayList<FactoryMethod>(factoryMethods.length);
-		for (FactoryMethod factoryMethod : factoryMethods) {
-			if ((factoryMethod.type & typeFlags) != 0) {
-				if (methodName.equalsIgnoreCase(factoryMethod.methodName)) {
-					result.add(factoryMethod);
+		return this.getSnapshot().getFactoryMethodsByMethodName(methodName, typeFlags);
+	}
+
+	/**
+	 * Check if there's at least one factory method with a specific name.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 */
+	public boolean hasFactoryMethods(String methodName, int typeFlags) {
+		return this.getSnapshot().hasFactoryMethods(methodName, typeFlags);
+	}
+
+	/**
+	 * Get the factory method defined for a method of a specific class.
+	 *
+	 * @param methodName
+	 *            The name of the method (case insensitive)
+	 * @param className
+	 *            The fully qualified name of the class, without the leading
+	 *            backslash (case insensitive); use an empty string for functions
+	 * @param typeFlags
+	 *            The allowed FactoryMethod.TYPE_... flags
+	 *
+	 * @return Return null if not found
+	 */
+	public FactoryMethod getFactoryMethod(String methodName, String className, int typeFlags) {
+		return this.getSnapshot().getFactoryMethod(methodName, className, typeFlags);
+	}
+
+	private static void log(Throwable e) {
+		try {
+			Concrete5CorePlugin plugin = Concrete5CorePlugin.getDefault();
+			Platform.getLog(plugin.getBundle())
+					.log(new Status(Status.ERROR, Concrete5CorePlugin.PLUGIN_ID, e.getMessage(), e));
+		} catch (Throwable foo) {
+		}
+	}
+
+	/**
+	 * A set of changes to be published at once.
+	 *
+	 * A batch is not thread-safe: it should be used by a single thread.
+	 */
+	public class Batch {
+		private final List<Change> changes = new ArrayList<Change>();
+		/**
+		 * The paths that may receive factory methods because of the changes of
+		 * this batch.
+		 */
+		private final Set<String> touchedPaths = new HashSet<String>();
+
+		private Batch() {
+		}
+
+		/**
+		 * Remove the factory methods defined in a resource.
+		 *
+		 * This is a constant-time no-op for the resources that don't define
+		 * factory methods.
+		 */
+		public void resetForPath(String path) {
+			this.resetForPath(path, Change.CURRENT);
+		}
+
+		/**
+		 * Remove the factory methods defined in a resource, unless it has been
+		 * changed after the removal happened (for instance because a deleted
+		 * file has been created again and indexed meanwhile).
+		 *
+		 * @param since
+		 *            The value of getChangeCount() when the resource was
+		 *            removed
+		 */
+		public void resetForPath(String path, long since) {
+			Metrics.RESET_FOR_PATH_CALLS.increment();
+			if (path != null && this.mayHaveFactoryMethods(path)) {
+				this.changes.add(new Change(Change.RESET, path, null, null, since));
+			}
+		}
+
+		public void addFactoryMethod(FactoryMethod factoryMethod) {
+			this.touchedPaths.add(factoryMethod.definerResourcePath);
+			this.changes.add(new Change(Change.ADD, factoryMethod.definerResourcePath, null,
+					FactoryMethodInterner.intern(factoryMethod)));
+		}
+
+		/**
+		 * Replace all the factory methods defined in a resource.
+		 *
+		 * When the batch is committed, only the differences with the published
+		 * factory methods are applied, and readers see either all the old
+		 * factory methods of the resource or all the new ones.
+		 *
+		 * @param factoryMethods
+		 *            The new factory methods of the resource (their definer
+		 *            resource path is set to path)
+		 */
+		public void replaceForPath(String path, Collection<FactoryMethod> factoryMethods) {
+			if (path == null) {
+				return;
+			}
+			this.resetForPath(path);
+			for (FactoryMethod factoryMethod : factoryMethods) {
+				if (!path.equals(factoryMethod.definerResourcePath)) {
+					factoryMethod = factoryMethod.withDefinerResourcePath(path);
 				}
+				this.addFactoryMethod(factoryMethod);
+			}
+		}
+
+		/**
+		 * Set the factory methods of a resource, unless it already defines
+		 * some when the batch is committed (for instance because the PHP
+		 * indexer found them meanwhile).
+		 *
+		 * @param factoryMethods
+		 *            The factory methods of the resource (their definer
+		 *            resource path is set to path)
+		 */
+		public void initializeForPath(String path, Collection<FactoryMethod> factoryMethods) {
+			if (path == null) {
+				return;
+			}
+			for (FactoryMethod factoryMethod : factoryMethods) {
+				if (!path.equals(factoryMethod.definerResourcePath)) {
+					factoryMethod = factoryMethod.withDefinerResourcePath(path);
+				}
+				this.touchedPaths.add(path);
+				this.changes.add(
+						new Change(Change.INITIALIZE, path, null, FactoryMethodInterner.intern(factoryMethod)));
 			}
 		}
-		return result;
-	}
 
-	private ObjectOutputStream getStorageOutput() throws IOException {
-		File file = this.getStorageFile();
-		if (file == null) {
-			return null;
+		/**
+		 * Move the factory methods defined in a resource to another resource.
+		 */
+		public void renameForPath(String oldFilename, String newFilename) {
+			this.renameForPath(oldFilename, newFilename, Change.CURRENT);
 		}
-		if (!file.getParentFile().exists()) {
-			file.getParentFile().mkdirs();
+
+		/**
+		 * Move the factory methods defined in a resource to another resource,
+		 * unless they have been changed after the move happened: if the new
+		 * resource has been indexed meanwhile, the old factory methods are
+		 * only removed; if the old resource has been indexed again, nothing
+		 * is changed.
+		 *
+		 * @param since
+		 *            The value of getChangeCount() when the resource was moved
+		 */
+		public void renameForPath(String oldFilename, String newFilename, long since) {
+			if (oldFilename != null && newFilename != null && !oldFilename.equals(newFilename)
+					&& this.mayHaveFactoryMethods(oldFilename)) {
+				this.touchedPaths.add(newFilename);
+				this.changes.add(new Change(Change.RENAME, oldFilename, newFilename, null, since));
+			}
 		}
-		if (!file.isFile()) {
-			file.createNewFile();
+
+		private boolean mayHaveFactoryMethods(String path) {
+			return FactoryMethodStorage.this.getSnapshot().hasDefinerPath(path)
+					|| (!this.touchedPaths.isEmpty() && this.touchedPaths.contains(path));
 		}
-		FileOutputStream outputStream = new FileOutputStream(file, false);
-		try {
-			return new ObjectOutputStream(outputStream);
-		} catch (IOException x) {
-			try {
-				outputStream.close();
-			} catch (Throwable foo) {
+
+		/**
+		 * Publish the changes collected so far (in the order they have been
+		 * collected) and schedule their writing to disk.
+		 */
+		public void commit() {
+			if (this.changes.isEmpty()) {
+				return;
 			}
-			throw x;
+			List<Change> changes = new ArrayList<Change>(this.changes);
+			this.changes.clear();
+			this.touchedPaths.clear();
+			FactoryMethodStorage.this.apply(changes);
+		}
+	}
+
+	private static class Change {
+		final static int RESET = 1;
+		final static int ADD = 2;
+		final static int RENAME = 3;
+		final static int INITIALIZE = 4;
+		/**
+		 * The value of since for the changes that are never stale.
+		 */
+		final static long CURRENT = Long.MAX_VALUE;
+
+		final int kind;
+		final String path;
+		final String newPath;
+		final FactoryMethod factoryMethod;
+		/**
+		 * The value of changeCount when the change happened.
+		 */
+		final long since;
+
+		Change(int kind, String path, String newPath, FactoryMethod factoryMethod) {
+			this(kind, path, newPath, factoryMethod, CURRENT);
+		}
+
+		Change(int kind, String path, String newPath, FactoryMethod factoryMethod, long since) {
+			this.kind = kind;
+			this.path = path;
+			this.newPath = newPath;
+			this.factoryMethod = factoryMethod;
+			this.since = since;
 		}
 	}
 }
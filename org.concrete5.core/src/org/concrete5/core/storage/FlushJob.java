@@ -0,0 +1,44 @@
+package org.concrete5.core.storage;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * The background job that writes to disk the changes of a factory method
+ * storage.
+ */
+class FlushJob extends Job {
+
+	/**
+	 * The family of all the jobs of this kind.
+	 */
+	final static Object FAMILY = FlushJob.class;
+
+	/**
+	 * How long to wait for other changes before writing to disk (in
+	 * milliseconds).
+	 */
+	final static long DELAY = 1000L;
+
+	private final FactoryMethodStorage storage;
+
+	FlushJob(FactoryMethodStorage storage) {
+		super("Saving concrete5 factory methods"); //$NON-NLS-1$
+		this.storage = storage;
+		this.setSystem(true);
+		this.setPriority(Job.LONG);
+	}
+
+	@Override
+	public boolean belongsTo(Object family) {
+		return family == FAMILY;
+	}
+
+	@Override
+	protected IStatus run(IProgressMonitor monitor) {
+		this.storage.flush();
+		return Status.OK_STATUS;
+	}
+}
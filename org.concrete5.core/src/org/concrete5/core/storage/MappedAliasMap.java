@@ -0,0 +1,168 @@
+package org.concrete5.core.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.concrete5.core.factory.AliasTarget;
+import org.concrete5.core.factory.CompiledAliasMap;
+import org.concrete5.core.storage.FactoryMethodSerializer.MappedFactoryMethodFile;
+
+/**
+ * A read-only alias map whose entries are read from a factory method file
+ * mapped in memory.
+ *
+ * Keys are found with a binary search of their UTF-8 bytes, and only the
+ * strings actually used are decoded: for the same reason, every value is
+ * compiled the first time it's used, and then kept with the map.
+ */
+class MappedAliasMap extends AbstractMap<String, String> implements CompiledAliasMap {
+
+	private final MappedFactoryMethodFile file;
+	private final int offset;
+	private final int size;
+	/**
+	 * The values compiled so far.
+	 */
+	private final AliasTarget[] targets;
+
+	MappedAliasMap(MappedFactoryMethodFile file, int offset, int size) {
+		this.file = file;
+		this.offset = offset;
+		this.size = size;
+		this.targets = new AliasTarget[size];
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.find(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		int index = this.find(key);
+		return index < 0 ? null : this.getValue(index);
+	}
+
+	@Override
+	public AliasTarget getAliasTarget(String key) {
+		int index = this.find(key);
+		if (index < 0) {
+			return null;
+		}
+		// Compiling a value twice is harmless: the targets are immutable
+		AliasTarget result = this.targets[index];
+		if (result == null) {
+			result = AliasTarget.compile(this.getValue(index));
+			this.targets[index] = result;
+		}
+		return result;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return this.index < MappedAliasMap.this.size;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (this.index >= MappedAliasMap.this.size) {
+							throw new NoSuchElementException();
+						}
+						int i = this.index++;
+						return new SimpleImmutableEntry<String, String>(MappedAliasMap.this.getKey(i),
+								MappedAliasMap.this.getValue(i));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return MappedAliasMap.this.size;
+			}
+		};
+	}
+
+	/**
+	 * Check if the map contains an entry, comparing its value without decoding
+	 * it (null strings are compared as empty strings, since that's how they
+	 * are serialized).
+	 */
+	boolean containsEntry(String key, String value) {
+		int index = this.find(key == null ? "" : key); //$NON-NLS-1$
+		if (index < 0) {
+			return false;
+		}
+		try {
+			return this.file.compareString(this.file.getInt(this.offset + 8 * index + 4),
+					(value == null ? "" : value).getBytes(FactoryMethodSerializer.UTF8)) == 0; //$NON-NLS-1$
+		} catch (IndexOutOfBoundsException x) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compute the fingerprint of the entries from their UTF-8 bytes, without
+	 * decoding them (see SegmentFingerprint).
+	 */
+	long hashEntries() {
+		long result = 0L;
+		for (int i = 0; i < this.size; i++) {
+			result += SegmentFingerprint.hashEntry(this.file.hashString(this.file.getInt(this.offset + 8 * i)),
+					this.file.hashString(this.file.getInt(this.offset + 8 * i + 4)));
+		}
+		return result;
+	}
+
+	private String getKey(int index) {
+		return this.file.getString(this.file.getInt(this.offset + 8 * index));
+	}
+
+	private String getValue(int index) {
+		return this.file.getString(this.file.getInt(this.offset + 8 * index + 4));
+	}
+
+	private int find(Object key) {
+		if (!(key instanceof String) || this.size == 0) {
+			return -1;
+		}
+		byte[] keyBytes = ((String) key).getBytes(FactoryMethodSerializer.UTF8);
+		int low = 0;
+		int high = this.size - 1;
+		try {
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int cmp = this.file.compareString(this.file.getInt(this.offset + 8 * middle), keyBytes);
+				if (cmp < 0) {
+					low = middle + 1;
+				} else if (cmp > 0) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+		} catch (IndexOutOfBoundsException x) {
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,109 @@
+package org.concrete5.core.storage;
+
+import java.util.Collection;
+
+/**
+ * A Bloom filter of case-folded method names, used to quickly reject the
+ * methods that are not factory methods.
+ *
+ * The filter may report that a name is present even if it's not, but never
+ * the opposite. Names with non-ASCII characters are always reported as
+ * possibly present, since their case folding depends on the whole string.
+ */
+class MethodNameFilter {
+
+	private final static int NUM_HASHES = 3;
+	private final static int BITS_PER_NAME = 16;
+	private final static int MIN_BITS = 64;
+
+	/**
+	 * A filter that rejects every name.
+	 */
+	final static MethodNameFilter EMPTY = new MethodNameFilter(new long[1]);
+
+	private final long[] bits;
+	private final int mask;
+
+	private MethodNameFilter(long[] bits) {
+		this.bits = bits;
+		this.mask = bits.length * 64 - 1;
+	}
+
+	/**
+	 * @param names
+	 *            The case-folded method names
+	 */
+	static MethodNameFilter create(Collection<String> names) {
+		if (names.isEmpty()) {
+			return EMPTY;
+		}
+		int numBits = MIN_BITS;
+		while (numBits < names.size() * BITS_PER_NAME && numBits < (1 << 30)) {
+			numBits <<= 1;
+		}
+		MethodNameFilter result = new MethodNameFilter(new long[numBits / 64]);
+		for (String name : names) {
+			int hash = hash(name);
+			if (hash != 0) {
+				result.add(hash);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check if a method name (case insensitive) may be in the filter.
+	 */
+	boolean mightContain(String name) {
+		if (name == null) {
+			return false;
+		}
+		int hash = hash(name);
+		if (hash == 0) {
+			return true;
+		}
+		int hash2 = secondaryHash(hash);
+		for (int i = 0; i < NUM_HASHES; i++) {
+			int bit = (hash + i * hash2) & this.mask;
+			if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(int hash) {
+		int hash2 = secondaryHash(hash);
+		for (int i = 0; i < NUM_HASHES; i++) {
+			int bit = (hash + i * hash2) & this.mask;
+			this.bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Compute the hash of the lower case version of an ASCII string.
+	 *
+	 * @return Return 0 if the string contains non-ASCII characters
+	 */
+	private static int hash(String name) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c >= 0x80) {
+				return 0;
+			}
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			hash = (hash ^ c) * 0x01000193;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	private static int secondaryHash(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash | 1;
+	}
+}
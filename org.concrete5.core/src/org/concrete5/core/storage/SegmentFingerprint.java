@@ -0,0 +1,203 @@
+package org.concrete5.core.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * Compute the fingerprint of the factory methods defined by a resource.
+ *
+ * The fingerprint doesn't depend on the definer resource path (so it survives
+ * renames) nor on the order of the aliases (so it doesn't depend on the
+ * implementation of the alias maps). The strings are hashed as their UTF-8
+ * bytes, so that the aliases of a mapped file can be hashed without decoding
+ * them (see MappedAliasMap).
+ *
+ * Fingerprints are not collision-free: segments with the same fingerprint
+ * must be compared with sameFactoryMethods() before being considered
+ * identical.
+ */
+final class SegmentFingerprint {
+
+	private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+	private final static long FNV_PRIME = 0x100000001b3L;
+
+	private SegmentFingerprint() {
+	}
+
+	static long compute(FactoryMethod[] segment) {
+		long result = FNV_OFFSET;
+		for (FactoryMethod factoryMethod : segment) {
+			result = combine(result, compute(factoryMethod));
+		}
+		return result;
+	}
+
+	static long compute(Collection<FactoryMethod> segment) {
+		long result = FNV_OFFSET;
+		for (FactoryMethod factoryMethod : segment) {
+			result = combine(result, compute(factoryMethod));
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the fingerprint of a single factory method.
+	 */
+	static long compute(FactoryMethod factoryMethod) {
+		long result = FNV_OFFSET;
+		result = combine(result, hash(factoryMethod.className));
+		result = combine(result, hash(factoryMethod.methodName));
+		result = combine(result, factoryMethod.discrimintatorIndex);
+		result = combine(result, factoryMethod.type);
+		result = combine(result, hash(factoryMethod.fallbackAlias));
+		long aliases = 0L;
+		if (factoryMethod.aliases instanceof MappedAliasMap) {
+			aliases = ((MappedAliasMap) factoryMethod.aliases).hashEntries();
+			result = combine(result, factoryMethod.aliases.size());
+		} else if (factoryMethod.aliases != null) {
+			for (Map.Entry<String, String> alias : factoryMethod.aliases.entrySet()) {
+				aliases += hashEntry(hash(alias.getKey()), hash(alias.getValue()));
+			}
+			result = combine(result, factoryMethod.aliases.size());
+		}
+		return combine(result, aliases);
+	}
+
+	/**
+	 * Check if two segments contain the same factory methods, in the same
+	 * order (their definer resource paths are ignored).
+	 */
+	static boolean sameFactoryMethods(FactoryMethod[] segment, List<FactoryMethod> other) {
+		if (segment.length != other.size()) {
+			return false;
+		}
+		for (int i = 0; i < segment.length; i++) {
+			FactoryMethod a = segment[i];
+			FactoryMethod b = other.get(i);
+			if (a != b && (a.discrimintatorIndex != b.discrimintatorIndex || a.type != b.type
+					|| !sameString(a.className, b.className) || !sameString(a.methodName, b.methodName)
+					|| !sameString(a.fallbackAlias, b.fallbackAlias) || !sameAliases(a.aliases, b.aliases))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two strings as they are serialized (null is an empty string).
+	 */
+	private static boolean sameString(String a, String b) {
+		return (a == null ? "" : a).equals(b == null ? "" : b); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private static boolean sameAliases(Map<String, String> a, Map<String, String> b) {
+		if (a == b) {
+			return true;
+		}
+		int size = a == null ? 0 : a.size();
+		if (size != (b == null ? 0 : b.size())) {
+			return false;
+		}
+		if (size == 0) {
+			return true;
+		}
+		if (a instanceof MappedAliasMap) {
+			// Decode the entries of the other map, if it's not mapped too
+			Map<String, String> swap = a;
+			a = b;
+			b = swap;
+		}
+		for (Map.Entry<String, String> alias : a.entrySet()) {
+			if (b instanceof MappedAliasMap) {
+				if (!((MappedAliasMap) b).containsEntry(alias.getKey(), alias.getValue())) {
+					return false;
+				}
+			} else {
+				String value = b.get(alias.getKey());
+				if ((value == null && !b.containsKey(alias.getKey())) || !sameString(value, alias.getValue())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hash an alias entry (the hashes of the entries are summed, so that their
+	 * order doesn't matter).
+	 */
+	static long hashEntry(long keyHash, long valueHash) {
+		return mix(combine(keyHash, valueHash));
+	}
+
+	/**
+	 * Hash the UTF-8 bytes of a string, without encoding it (null is hashed
+	 * like an empty string, since that's how it's serialized).
+	 */
+	static long hash(String s) {
+		long result = FNV_OFFSET;
+		if (s == null) {
+			return result;
+		}
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				result = update(result, c);
+			} else if (c < 0x800) {
+				result = update(result, 0xc0 | (c >> 6));
+				result = update(result, 0x80 | (c & 0x3f));
+			} else if (!Character.isSurrogate(c)) {
+				result = update(result, 0xe0 | (c >> 12));
+				result = update(result, 0x80 | ((c >> 6) & 0x3f));
+				result = update(result, 0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				result = update(result, 0xf0 | (codePoint >> 18));
+				result = update(result, 0x80 | ((codePoint >> 12) & 0x3f));
+				result = update(result, 0x80 | ((codePoint >> 6) & 0x3f));
+				result = update(result, 0x80 | (codePoint & 0x3f));
+			} else {
+				// Malformed surrogates are encoded as '?'
+				result = update(result, '?');
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Hash UTF-8 bytes (the result is the same as hash(String) for the decoded
+	 * string).
+	 */
+	static long hash(ByteBuffer buffer, int offset, int length) {
+		long result = FNV_OFFSET;
+		for (int i = 0; i < length; i++) {
+			result = update(result, buffer.get(offset + i) & 0xff);
+		}
+		return result;
+	}
+
+	private static long update(long hash, int b) {
+		return (hash ^ b) * FNV_PRIME;
+	}
+
+	private static long combine(long hash, long value) {
+		return (hash ^ mix(value)) * FNV_PRIME;
+	}
+
+	/**
+	 * Spread the bits of a value (the finalizer of MurmurHash3).
+	 */
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+}
@@ -0,0 +1,349 @@
+package org.concrete5.core.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * The files containing the factory methods of a project.
+ *
+ * The factory methods defined by every resource are saved in a segment file of
+ * the store shared by all the projects (see SharedSegmentStore), and a
+ * manifest file lists the fingerprint of the segment of every definer resource
+ * path (see SegmentFingerprint). While the segments are loaded, this store
+ * holds a reference to them.
+ */
+class SegmentStore {
+
+	private final static int MANIFEST_MAGIC = 0x43354d46; // C5MF
+	private final static int MANIFEST_VERSION = 1;
+	private final static String MANIFEST_FILE = "manifest"; //$NON-NLS-1$
+	private final static String SEGMENTS_DIRECTORY = "segments"; //$NON-NLS-1$
+	private final static String TEMP_FILE_EXTENSION = ".tmp"; //$NON-NLS-1$
+	private final static String LEGACY_STORAGE_FILE = "factoryMethods"; //$NON-NLS-1$
+
+	private final File dataDirectory;
+	private final File directory;
+	private final SharedSegmentStore sharedStore;
+	/**
+	 * The key in the shared store of the segment of every definer resource
+	 * path, as listed in the manifest (that is its fingerprint, unless another
+	 * segment has the same fingerprint: see SharedSegmentStore).
+	 */
+	private final Map<String, Long> fingerprints = new LinkedHashMap<String, Long>();
+	/**
+	 * Tells if this store holds a reference to the shared segments listed in
+	 * fingerprints.
+	 */
+	private boolean holdsReferences = false;
+
+	/**
+	 * @param dataDirectory
+	 *            The directory containing the data of the project
+	 * @param sharedDirectory
+	 *            The directory containing the segments shared by all the
+	 *            projects
+	 */
+	SegmentStore(File dataDirectory, File sharedDirectory) {
+		this.dataDirectory = dataDirectory;
+		this.directory = new File(dataDirectory, SEGMENTS_DIRECTORY);
+		this.sharedStore = SharedSegmentStore.get(sharedDirectory);
+	}
+
+	SharedSegmentStore getSharedStore() {
+		return this.sharedStore;
+	}
+
+	/**
+	 * Read all the segments.
+	 *
+	 * @return The factory methods of every definer resource path
+	 */
+	Map<String, FactoryMethod[]> load() {
+		this.releaseReferences();
+		Map<String, FactoryMethod[]> result = new LinkedHashMap<String, FactoryMethod[]>();
+		this.fingerprints.clear();
+		this.holdsReferences = true;
+		File legacyFile = new File(this.dataDirectory, LEGACY_STORAGE_FILE);
+		if (!readManifest(new File(this.directory, MANIFEST_FILE), this.fingerprints)) {
+			this.fingerprints.clear();
+			this.migrateLegacyStorage(legacyFile, result);
+			return result;
+		}
+		if (legacyFile.isFile()) {
+			legacyFile.delete();
+		}
+		boolean manifestChanged = false;
+		for (Map.Entry<String, Long> entry : new ArrayList<Map.Entry<String, Long>>(this.fingerprints.entrySet())) {
+			String path = entry.getKey();
+			FactoryMethod[] segment = this.sharedStore.acquire(entry.getValue().longValue());
+			if (segment == null) {
+				this.fingerprints.remove(path);
+				manifestChanged = true;
+				continue;
+			}
+			result.put(path, forPath(segment, path));
+		}
+		if (manifestChanged) {
+			try {
+				this.writeManifest();
+			} catch (IOException x) {
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the fingerprints of the segments read by load() or written by save().
+	 */
+	Map<String, Long> getFingerprints() {
+		return new HashMap<String, Long>(this.fingerprints);
+	}
+
+	/**
+	 * Get the factory methods of a segment as defined by a specific resource.
+	 *
+	 * @return Return the same array if its factory methods are already defined
+	 *         by the resource, or a copy of it (sharing the aliases)
+	 */
+	static FactoryMethod[] forPath(FactoryMethod[] segment, String path) {
+		FactoryMethod[] result = segment;
+		for (int i = 0; i < segment.length; i++) {
+			if (!path.equals(segment[i].definerResourcePath)) {
+				if (result == segment) {
+					result = segment.clone();
+				}
+				result[i] = segment[i].withDefinerResourcePath(path);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Save the segments of some definer resource paths.
+	 *
+	 * @param segments
+	 *            The factory methods of every definer resource path
+	 * @param fingerprints
+	 *            The fingerprints of the segments (the missing ones are
+	 *            computed)
+	 * @param paths
+	 *            The definer resource paths to be saved (the ones without
+	 *            factory methods will be removed)
+	 *
+	 * @throws IOException
+	 */
+	void save(Map<String, FactoryMethod[]> segments, Map<String, Long> fingerprints, Collection<String> paths)
+			throws IOException {
+		if (paths.isEmpty()) {
+			return;
+		}
+		List<Long> releasedFingerprints = new ArrayList<Long>();
+		for (String path : paths) {
+			FactoryMethod[] factoryMethods = segments.get(path);
+			Long oldFingerprint;
+			if (factoryMethods == null || factoryMethods.length == 0) {
+				oldFingerprint = this.fingerprints.remove(path);
+			} else {
+				Long fingerprint = fingerprints.get(path);
+				if (fingerprint == null) {
+					fingerprint = Long.valueOf(SegmentFingerprint.compute(factoryMethods));
+				}
+				Long key = Long.valueOf(this.sharedStore.store(fingerprint.longValue(), factoryMethods));
+				if (!this.holdsReferences) {
+					// Keep the reference only until the manifest is written
+					releasedFingerprints.add(key);
+				}
+				oldFingerprint = this.fingerprints.put(path, key);
+			}
+			if (oldFingerprint != null && this.holdsReferences) {
+				releasedFingerprints.add(oldFingerprint);
+			}
+		}
+		this.writeManifest();
+		for (Long fingerprint : releasedFingerprints) {
+			this.sharedStore.release(fingerprint.longValue());
+		}
+	}
+
+	/**
+	 * Move a segment to another definer resource path.
+	 *
+	 * @return Return false if the old path doesn't have a segment
+	 *
+	 * @throws IOException
+	 */
+	boolean rename(String oldPath, String newPath) throws IOException {
+		Long fingerprint = this.fingerprints.remove(oldPath);
+		if (fingerprint == null) {
+			return false;
+		}
+		Long replacedFingerprint = this.fingerprints.put(newPath, fingerprint);
+		this.writeManifest();
+		if (replacedFingerprint != null && this.holdsReferences) {
+			this.sharedStore.release(replacedFingerprint.longValue());
+		}
+		return true;
+	}
+
+	/**
+	 * Release the references to the shared segments (for instance because the
+	 * project has been closed): the files are not changed.
+	 */
+	void releaseReferences() {
+		if (this.holdsReferences) {
+			this.holdsReferences = false;
+			for (Long fingerprint : this.fingerprints.values()) {
+				this.sharedStore.release(fingerprint.longValue());
+			}
+		}
+	}
+
+	/**
+	 * Delete the shared segment files that are not used by any project.
+	 *
+	 * @param stateDirectory
+	 *            The directory containing the data directories of all the
+	 *            projects
+	 * @param sharedDirectory
+	 *            The directory containing the shared segments
+	 */
+	static void collectGarbage(final File stateDirectory, File sharedDirectory) {
+		SharedSegmentStore.get(sharedDirectory).collectGarbage(new SharedSegmentStore.ManifestReader() {
+			@Override
+			public Set<Long> readFingerprints() {
+				Set<Long> result = new HashSet<Long>();
+				File[] dataDirectories = stateDirectory.listFiles();
+				if (dataDirectories == null) {
+					return null;
+				}
+				for (File dataDirectory : dataDirectories) {
+					File manifest = new File(new File(dataDirectory, SEGMENTS_DIRECTORY), MANIFEST_FILE);
+					if (manifest.isFile()) {
+						Map<String, Long> fingerprints = new HashMap<String, Long>();
+						if (!readManifest(manifest, fingerprints)) {
+							// We don't know which segments it uses
+							return null;
+						}
+						result.addAll(fingerprints.values());
+					}
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Read a manifest file.
+	 *
+	 * @param fingerprints
+	 *            Receives the fingerprints of the segments
+	 *
+	 * @return Return false if the manifest can't be read
+	 */
+	private static boolean readManifest(File file, Map<String, Long> fingerprints) {
+		if (!file.isFile()) {
+			return false;
+		}
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (stream.readInt() != MANIFEST_MAGIC || stream.readInt() != MANIFEST_VERSION) {
+				return false;
+			}
+			int numSegments = stream.readInt();
+			for (int i = 0; i < numSegments; i++) {
+				String path = stream.readUTF();
+				fingerprints.put(path, Long.valueOf(stream.readLong()));
+			}
+			StorageIO.read(file.length());
+			return true;
+		} catch (IOException x) {
+			fingerprints.clear();
+			return false;
+		}
+	}
+
+	private void writeManifest() throws IOException {
+		if (!this.directory.isDirectory()) {
+			this.directory.mkdirs();
+		}
+		File file = new File(this.directory, MANIFEST_FILE);
+		File tempFile = new File(this.directory, MANIFEST_FILE + TEMP_FILE_EXTENSION);
+		try (FileOutputStream outputStream = new FileOutputStream(tempFile, false);
+				DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(outputStream))) {
+			stream.writeInt(MANIFEST_MAGIC);
+			stream.writeInt(MANIFEST_VERSION);
+			stream.writeInt(this.fingerprints.size());
+			for (Map.Entry<String, Long> fingerprint : this.fingerprints.entrySet()) {
+				stream.writeUTF(fingerprint.getKey());
+				stream.writeLong(fingerprint.getValue().longValue());
+			}
+			stream.flush();
+			outputStream.getFD().sync();
+			StorageIO.written(stream.size());
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Convert the factory methods saved by the previous versions of the plugin
+	 * (in a single file, using the Java serialization).
+	 */
+	private void migrateLegacyStorage(File legacyFile, Map<String, FactoryMethod[]> result) {
+		if (!legacyFile.isFile()) {
+			return;
+		}
+		FactoryMethod[] factoryMethods = readJavaSerializedStorage(legacyFile);
+		if (factoryMethods != null && factoryMethods.length > 0) {
+			Map<String, List<FactoryMethod>> byPath = new LinkedHashMap<String, List<FactoryMethod>>();
+			for (FactoryMethod factoryMethod : factoryMethods) {
+				List<FactoryMethod> list = byPath.get(factoryMethod.definerResourcePath);
+				if (list == null) {
+					list = new ArrayList<FactoryMethod>();
+					byPath.put(factoryMethod.definerResourcePath, list);
+				}
+				list.add(FactoryMethodInterner.intern(factoryMethod));
+			}
+			for (Map.Entry<String, List<FactoryMethod>> entry : byPath.entrySet()) {
+				result.put(entry.getKey(), entry.getValue().toArray(new FactoryMethod[entry.getValue().size()]));
+			}
+			try {
+				this.save(result, Collections.<String, Long>emptyMap(), result.keySet());
+			} catch (IOException x) {
+				// Keep the old file: we'll retry next time
+				return;
+			}
+		}
+		legacyFile.delete();
+	}
+
+	/**
+	 * Read the factory methods saved with the Java serialization.
+	 */
+	private static FactoryMethod[] readJavaSerializedStorage(File file) {
+		try (ObjectInputStream stream = new ObjectInputStream(new FileInputStream(file))) {
+			return (FactoryMethod[]) stream.readObject();
+		} catch (ClassNotFoundException | IOException | ClassCastException e) {
+			return null;
+		}
+	}
+}
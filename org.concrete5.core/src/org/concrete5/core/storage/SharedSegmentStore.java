@@ -0,0 +1,276 @@
+package org.concrete5.core.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.concrete5.core.factory.FactoryMethod;
+
+/**
+ * The segment files shared by all the projects of the workspace.
+ *
+ * Segments are addressed by their fingerprint (see SegmentFingerprint), so
+ * identical sets of factory methods defined by different projects (for
+ * instance by sites using the same concrete5 core version) are stored on disk
+ * and loaded in memory only once. Since different segments may have the same
+ * fingerprint, a segment is shared only after comparing its contents: in case
+ * of collision it's saved with the next free key (fingerprint + 1, ...).
+ *
+ * The projects add a reference to the segments they use: a loaded segment is
+ * kept in memory while it's referenced. Segment files are deleted by
+ * collectGarbage(), when no project references them anymore.
+ */
+final class SharedSegmentStore {
+
+	private final static String SEGMENT_FILE_EXTENSION = ".c5fm"; //$NON-NLS-1$
+	private final static String TEMP_FILE_EXTENSION = ".tmp"; //$NON-NLS-1$
+
+	private final static Map<File, SharedSegmentStore> instances = new HashMap<File, SharedSegmentStore>();
+
+	private final File directory;
+	/**
+	 * The referenced segments, by key.
+	 */
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+	/**
+	 * The keys used while collectGarbage() reads the manifests (null if it's
+	 * not running): they may be listed in manifests written after they have
+	 * been read.
+	 */
+	private Set<Long> keysUsedDuringCollection = null;
+
+	private SharedSegmentStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the shared store that uses a specific directory.
+	 */
+	static synchronized SharedSegmentStore get(File directory) {
+		File key = directory.getAbsoluteFile();
+		SharedSegmentStore result = instances.get(key);
+		if (result == null) {
+			result = new SharedSegmentStore(key);
+			instances.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Read a segment, and add a reference to it.
+	 *
+	 * @param key
+	 *            The key returned by store()
+	 *
+	 * @return Return null if the segment doesn't exist (in this case no
+	 *         reference is added)
+	 */
+	synchronized FactoryMethod[] acquire(long key) {
+		Long boxedKey = Long.valueOf(key);
+		this.keyUsed(boxedKey);
+		Entry entry = this.entries.get(boxedKey);
+		if (entry == null) {
+			FactoryMethod[] segment = read(this.getFile(key));
+			if (segment == null) {
+				return null;
+			}
+			for (int i = 0; i < segment.length; i++) {
+				segment[i] = FactoryMethodInterner.intern(segment[i]);
+			}
+			entry = new Entry(segment);
+			this.entries.put(boxedKey, entry);
+		}
+		entry.references++;
+		return entry.segment;
+	}
+
+	/**
+	 * Save a segment (if it's not already saved), and add a reference to it.
+	 *
+	 * @return The key of the segment: its fingerprint, unless a different
+	 *         segment with the same fingerprint is already saved
+	 *
+	 * @throws IOException
+	 */
+	synchronized long store(long fingerprint, FactoryMethod[] segment) throws IOException {
+		List<FactoryMethod> factoryMethods = Arrays.asList(segment);
+		for (long key = fingerprint;; key++) {
+			Long boxedKey = Long.valueOf(key);
+			Entry entry = this.entries.get(boxedKey);
+			File file = this.getFile(key);
+			FactoryMethod[] stored = entry == null ? read(file) : entry.segment;
+			if (stored != null && !SegmentFingerprint.sameFactoryMethods(stored, factoryMethods)) {
+				// Fingerprint collision
+				continue;
+			}
+			if (stored == null || !file.isFile()) {
+				if (!this.directory.isDirectory()) {
+					this.directory.mkdirs();
+				}
+				File tempFile = new File(this.directory, file.getName() + TEMP_FILE_EXTENSION);
+				FactoryMethodSerializer.write(tempFile, segment);
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			if (entry == null) {
+				entry = new Entry(segment);
+				this.entries.put(boxedKey, entry);
+			}
+			entry.references++;
+			this.keyUsed(boxedKey);
+			return key;
+		}
+	}
+
+	/**
+	 * Remove a reference to a segment.
+	 *
+	 * @param key
+	 *            The key returned by store()
+	 */
+	synchronized void release(long key) {
+		Long boxedKey = Long.valueOf(key);
+		this.keyUsed(boxedKey);
+		Entry entry = this.entries.get(boxedKey);
+		if (entry != null && --entry.references <= 0) {
+			this.entries.remove(boxedKey);
+		}
+	}
+
+	/**
+	 * Get a referenced segment with the same factory methods as another one,
+	 * without adding a reference to it (used to share the factory methods of
+	 * identical segments).
+	 *
+	 * @return Return null if no such segment is referenced
+	 */
+	synchronized FactoryMethod[] peek(long fingerprint, List<FactoryMethod> segment) {
+		for (long key = fingerprint;; key++) {
+			Entry entry = this.entries.get(Long.valueOf(key));
+			if (entry == null) {
+				return null;
+			}
+			if (SegmentFingerprint.sameFactoryMethods(entry.segment, segment)) {
+				return entry.segment;
+			}
+		}
+	}
+
+	/**
+	 * Delete the segment files that are not referenced.
+	 *
+	 * The manifests are read without locking the store (so that the storages
+	 * can still use it meanwhile): the store is locked only to exclude the
+	 * segments referenced in memory, or used while the manifests were read,
+	 * and to delete the files.
+	 *
+	 * @param manifestReader
+	 *            Called to get the keys listed in the manifests of all the
+	 *            projects
+	 */
+	void collectGarbage(ManifestReader manifestReader) {
+		synchronized (this) {
+			if (this.keysUsedDuringCollection != null) {
+				// Already running
+				return;
+			}
+			this.keysUsedDuringCollection = new HashSet<Long>();
+		}
+		Set<Long> referenced = null;
+		File[] files = null;
+		try {
+			referenced = manifestReader.readFingerprints();
+			if (referenced != null) {
+				final Set<Long> listed = referenced;
+				files = this.directory.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File pathname) {
+						Long key = parseFileName(pathname.getName());
+						return key == null || !listed.contains(key);
+					}
+				});
+			}
+		} finally {
+			synchronized (this) {
+				Set<Long> used = this.keysUsedDuringCollection;
+				this.keysUsedDuringCollection = null;
+				if (files != null) {
+					for (File file : files) {
+						Long key = parseFileName(file.getName());
+						if (key == null || (!used.contains(key) && !this.entries.containsKey(key))) {
+							// Files still mapped in memory can't be deleted on
+							// some systems: we'll retry next time
+							file.delete();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void keyUsed(Long key) {
+		if (this.keysUsedDuringCollection != null) {
+			this.keysUsedDuringCollection.add(key);
+		}
+	}
+
+	private File getFile(long key) {
+		return new File(this.directory, String.format("%016x", Long.valueOf(key)) + SEGMENT_FILE_EXTENSION); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return Return null if the file doesn't exist or can't be read
+	 */
+	private static FactoryMethod[] read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		FactoryMethod[] result;
+		try {
+			result = FactoryMethodSerializer.read(file);
+		} catch (IOException x) {
+			return null;
+		}
+		return result == null || result.length == 0 ? null : result;
+	}
+
+	/**
+	 * @return Return null if the name is not the name of a segment file
+	 */
+	private static Long parseFileName(String name) {
+		if (name.length() != 16 + SEGMENT_FILE_EXTENSION.length() || !name.endsWith(SEGMENT_FILE_EXTENSION)) {
+			return null;
+		}
+		try {
+			return Long.valueOf(
+					(Long.parseLong(name.substring(0, 8), 16) << 32) | Long.parseLong(name.substring(8, 16), 16));
+		} catch (NumberFormatException x) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read the fingerprints referenced by the projects (null if they can't be
+	 * determined, in this case no file is deleted).
+	 */
+	interface ManifestReader {
+		Set<Long> readFingerprints();
+	}
+
+	private static class Entry {
+		final FactoryMethod[] segment;
+		int references = 0;
+
+		Entry(FactoryMethod[] segment) {
+			this.segment = segment;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.concrete5.core.storage;
+
+import org.concrete5.core.metrics.Metrics;
+
+/**
+ * Count the bytes read and written by the storage.
+ *
+ * Besides the global metrics, the bytes are counted per thread, so that the
+ * bytes of a single load or save can be computed (the storage performs its
+ * I/O in the calling thread).
+ */
+final class StorageIO {
+
+	private final static ThreadLocal<long[]> BYTES = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	private StorageIO() {
+	}
+
+	static void read(long bytes) {
+		BYTES.get()[0] += bytes;
+		Metrics.STORAGE_BYTES_READ.add(bytes);
+	}
+
+	static void written(long bytes) {
+		BYTES.get()[1] += bytes;
+		Metrics.STORAGE_BYTES_WRITTEN.add(bytes);
+	}
+
+	/**
+	 * Get the bytes read so far by the current thread.
+	 */
+	static long getBytesRead() {
+		return BYTES.get()[0];
+	}
+
+	/**
+	 * Get the bytes written so far by the current thread.
+	 */
+	static long getBytesWritten() {
+		return BYTES.get()[1];
+	}
+}